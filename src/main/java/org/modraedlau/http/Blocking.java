@@ -0,0 +1,46 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.HttpResponse;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Waits for a response for the blocking calls. The caller parks on the future and holds no monitor,
+ * so a virtual thread waiting here unmounts from its carrier.
+ *
+ * @author modraedlau
+ */
+final class Blocking {
+
+    private Blocking() {
+    }
+
+    /**
+     * Wait for the response, the request is abandoned if the caller is interrupted
+     *
+     * @param future response future
+     * @return response
+     * @throws IOException          the cause of the failure, wrapped if it is not an io exception
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static HttpResponse await(CompletableFuture<HttpResponse> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // dropped from the queue if not written yet
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+}
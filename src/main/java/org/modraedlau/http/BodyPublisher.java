@@ -0,0 +1,18 @@
+package org.modraedlau.http;
+
+/**
+ * Source of a streamed request body, shaped after {@code java.util.concurrent.Flow.Publisher}.
+ * Each segment is copied before the next one is requested, so the publisher may reuse its buffers.
+ *
+ * @author modraedlau
+ */
+public interface BodyPublisher {
+
+    /**
+     * Start publishing to the subscriber, nothing is delivered before {@link BodySubscription#request(long)}.
+     * A cancelled subscription means the request failed or was abandoned.
+     *
+     * @param subscriber subscriber writing the segments to the connection
+     */
+    void subscribe(BodySubscriber subscriber);
+}
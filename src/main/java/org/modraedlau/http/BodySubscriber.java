@@ -0,0 +1,28 @@
+package org.modraedlau.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the body of a response segment by segment, as far as it has requested.
+ * The methods are shaped after {@code java.util.concurrent.Flow.Subscriber}.
+ *
+ * @author modraedlau
+ */
+public interface BodySubscriber {
+
+    /**
+     * The headers have been decoded, nothing is delivered before {@link BodySubscription#request(long)}
+     *
+     * @param subscription subscription
+     */
+    void onSubscribe(BodySubscription subscription);
+
+    /**
+     * @param segment body bytes, only valid during the call
+     */
+    void onNext(ByteBuffer segment);
+
+    void onError(Throwable e);
+
+    void onComplete();
+}
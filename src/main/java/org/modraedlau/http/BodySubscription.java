@@ -0,0 +1,19 @@
+package org.modraedlau.http;
+
+/**
+ * Demand of a {@link BodySubscriber}, the connection stops reading while there is none
+ *
+ * @author modraedlau
+ */
+public interface BodySubscription {
+
+    /**
+     * @param n number of segments the subscriber is ready to receive, must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stop receiving, the connection is closed since the rest of the body can not be skipped cheaply
+     */
+    void cancel();
+}
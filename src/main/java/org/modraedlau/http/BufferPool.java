@@ -0,0 +1,170 @@
+package org.modraedlau.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct byte buffers in power of two size classes, shared by the clients.
+ * A thread first uses its own cache, then the global arena, and allocates only when both are empty.
+ *
+ * @author modraedlau
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 10;
+    private static final int MAX_SIZE_SHIFT = 16;
+
+    /**
+     * 1 KB, 2 KB ... 64 KB
+     */
+    private static final int SIZE_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+
+    private static final int DEFAULT_THREAD_CACHE_SIZE = 16;
+    private static final int DEFAULT_ARENA_SIZE = 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_THREAD_CACHE_SIZE, DEFAULT_ARENA_SIZE);
+
+    /**
+     * max buffers per size class in the cache of a thread
+     */
+    private final int threadCacheSize;
+
+    /**
+     * max buffers per size class in the global arena
+     */
+    private final int arenaSize;
+
+    private final Queue<ByteBuffer>[] arena;
+
+    private final AtomicInteger[] arenaCounts;
+
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder released = new LongAdder();
+
+    public BufferPool(int threadCacheSize, int arenaSize) {
+        this.threadCacheSize = threadCacheSize;
+        this.arenaSize = arenaSize;
+        @SuppressWarnings("unchecked")
+        Queue<ByteBuffer>[] arena = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASSES];
+        this.arena = arena;
+        arenaCounts = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            arena[i] = new ConcurrentLinkedQueue<>();
+            arenaCounts[i] = new AtomicInteger();
+        }
+        threadCache = ThreadLocal.withInitial(ThreadCache::new);
+    }
+
+    /**
+     * The pool shared by all clients unless one is given
+     *
+     * @return default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Borrow a cleared direct buffer
+     *
+     * @param size min capacity
+     * @return buffer, its capacity is the size rounded up to the size class
+     */
+    public ByteBuffer acquire(int size) {
+        acquired.increment();
+        int sizeClass = sizeClass(size);
+        if (sizeClass >= SIZE_CLASSES) {
+            // too large to be pooled
+            return ByteBuffer.allocateDirect(size);
+        }
+        ThreadCache cache = threadCache.get();
+        cache.acquiring[sizeClass] = true;
+        ByteBuffer buffer = cache.buffers[sizeClass].poll();
+        if (buffer == null) {
+            buffer = arena[sizeClass].poll();
+            if (buffer != null) {
+                arenaCounts[sizeClass].decrementAndGet();
+            }
+        }
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT));
+        }
+        hits.increment();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer from {@link #acquire(int)}, it must not be used any more
+     *
+     * @param buffer buffer
+     */
+    public void release(ByteBuffer buffer) {
+        released.increment();
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (!buffer.isDirect() || sizeClass >= SIZE_CLASSES
+            || 1 << (sizeClass + MIN_SIZE_SHIFT) != capacity) {
+            return;
+        }
+        ThreadCache cache = threadCache.get();
+        if (cache.acquiring[sizeClass] && cache.buffers[sizeClass].size() < threadCacheSize) {
+            cache.buffers[sizeClass].push(buffer);
+        } else if (arenaCounts[sizeClass].incrementAndGet() <= arenaSize) {
+            arena[sizeClass].offer(buffer);
+        } else {
+            // dropped, the garbage collector frees it
+            arenaCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return buffers acquired and not released yet
+     */
+    public long getOutstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * @return ratio of acquisitions served without allocating
+     */
+    public double getHitRate() {
+        long total = acquired.sum();
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    /**
+     * Buffers cached by one thread. A thread only caches the size classes it acquires itself,
+     * e.g. the read buffers released by a decoding thread go back to the arena for the selector thread.
+     */
+    private static final class ThreadCache {
+        final ArrayDeque<ByteBuffer>[] buffers;
+        final boolean[] acquiring = new boolean[SIZE_CLASSES];
+
+        ThreadCache() {
+            @SuppressWarnings("unchecked")
+            ArrayDeque<ByteBuffer>[] buffers = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[SIZE_CLASSES];
+            this.buffers = buffers;
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                buffers[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,43 @@
+package org.modraedlau.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the callbacks, see {@link EventLoop#EventLoop(ExecutionMode, java.util.concurrent.Executor)}
+ *
+ * @author modraedlau
+ */
+public final class CallbackExecutors {
+    private static Logger logger = LoggerFactory.getLogger(CallbackExecutors.class);
+
+    private CallbackExecutors() {
+    }
+
+    /**
+     * One virtual thread per callback, so the callbacks may block.
+     * On a runtime without virtual threads, a cached pool of daemon threads is used instead.
+     *
+     * @return executor
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            // looked up at runtime, the client is built for Java 8
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads not available, using platform threads for the callbacks");
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "callback-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
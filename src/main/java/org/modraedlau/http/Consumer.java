@@ -1,11 +1,13 @@
 package org.modraedlau.http;
 
-import org.modraedlau.http.message.Decoded;
-import org.modraedlau.http.message.HttpRequest;
+import org.modraedlau.http.message.BodySink;
+import org.modraedlau.http.message.HttpMethod;
 import org.modraedlau.http.message.HttpResponse;
+import org.modraedlau.http.message.HttpResponseDecoder;
 
+import java.net.ProtocolException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
 
@@ -14,7 +16,7 @@ import java.util.Queue;
  *
  * @author modraedlau
  */
-public class Consumer implements Runnable {
+public class Consumer implements Runnable, HttpResponseDecoder.HeadersListener {
     private final SimpleHttpClient client;
 
     Consumer(SimpleHttpClient client) {
@@ -23,30 +25,168 @@ public class Consumer implements Runnable {
 
     @Override
     public void run() {
-        ByteBuffer readBuffer = client.getReadBuffer();
-        Queue<HttpRequest> requestQueue = client.getRequestQueue();
+        Queue<TimedRequest> requestQueue = client.getRequestQueue();
+        HttpResponseDecoder decoder = client.getDecoder();
         try {
             // ensures that the same client reads are executed in order
             client.lock();
+            Http2Connection http2 = client.getHttp2();
+            if (http2 != null) {
+                readFrames(http2);
+                return;
+            }
+            ByteBuffer readBuffer = client.getReadBuffer();
+            if (readBuffer == null) {
+                // decoded by a previous run
+                if (client.isInputShutdown()) {
+                    endOfInput(requestQueue, decoder);
+                }
+                return;
+            }
             readBuffer.flip();
             // decode
-            List<HttpResponse> responses = client.getDecoder().decode(readBuffer);
-            readBuffer.clear();
-            Iterator<HttpResponse> it = responses.iterator();
-            while (it.hasNext()) {
-                HttpResponse response = it.next();
-                if (response.getDecoded() == Decoded.END) {
-                    // remove from cached responses
-                    it.remove();
-                    // remove the first request from the request queue
-                    HttpRequest request = requestQueue.poll();
-                    if (request != null) {
-                        request.getPromise().complete(response);
-                    }
+            List<HttpResponse> responses = decoder.decode(readBuffer);
+            if (readBuffer.hasRemaining()) {
+                // a body sink has no demand, keep the rest and stop reading
+                readBuffer.compact();
+                client.pauseReading();
+                if (decoder.isReady()) {
+                    // the demand came while pausing
+                    client.resumeReading();
+                }
+            } else {
+                client.releaseReadBuffer();
+            }
+            for (HttpResponse response : responses) {
+                TimedRequest request = requestQueue.poll();
+                complete(request, response);
+                if (response.isConnectionClose() || (request != null && !request.isBodyQueued())) {
+                    // nothing after this response is processed by the server,
+                    // or answered before the end of its body that can not be ended any more
+                    client.releaseReadBuffer();
+                    client.recover(new ClosedChannelException(), true);
+                    return;
                 }
             }
+            if (client.isInputShutdown() && client.getReadBuffer() == null) {
+                // every byte before the close of the server has been decoded
+                endOfInput(requestQueue, decoder);
+                return;
+            }
+            if (!responses.isEmpty()) {
+                if (requestQueue.isEmpty()) {
+                    client.idle();
+                } else if (client.hasUnsent()) {
+                    // the in flight window has room again
+                    client.scheduleFlush();
+                }
+            }
+            if (!client.isChannelOpen()) {
+                // closed while decoding
+                client.releaseReadBuffer();
+            }
+        } catch (ProtocolException e) {
+            client.releaseReadBuffer();
+            client.closeByException(e);
         } finally {
+            // TLS may hold more than the read buffer took
+            client.readBuffered();
             client.unlock();
         }
     }
+
+    /**
+     * HTTP/2: the frames complete the responses of their streams in any order
+     */
+    private void readFrames(Http2Connection http2) throws ProtocolException {
+        Queue<TimedRequest> requestQueue = client.getRequestQueue();
+        int queued = requestQueue.size();
+        // the subscribers that asked for more first
+        http2.deliverPending();
+        ByteBuffer readBuffer = client.getReadBuffer();
+        if (readBuffer != null) {
+            readBuffer.flip();
+            http2.read(readBuffer);
+            client.releaseReadBuffer();
+        }
+        if (http2.isDrained()) {
+            // after a GOAWAY, the requests the server did not process go on a new connection
+            client.recover(new ClosedChannelException(), true);
+            return;
+        }
+        if (client.isInputShutdown()) {
+            client.endOfInput();
+            return;
+        }
+        if (http2.takeFlushNeeded() || (requestQueue.size() < queued && client.hasUnsent())) {
+            // control frames, a window or a stream opened up
+            client.scheduleFlush();
+        }
+        if (requestQueue.size() < queued && requestQueue.isEmpty()) {
+            client.idle();
+        }
+        if (!client.isChannelOpen()) {
+            client.releaseReadBuffer();
+        }
+    }
+
+    private void complete(TimedRequest request, HttpResponse response) {
+        // the responses come in the order of the requests
+        client.keepAlive(response);
+        if (request != null) {
+            request.cancelTimeouts();
+            if (request.getBodySink() != null) {
+                request.getBodySink().complete();
+            }
+            client.complete(request.getPromise(), response);
+        }
+    }
+
+    /**
+     * The server closed the connection, the response read until the close ends here
+     */
+    private void endOfInput(Queue<TimedRequest> requestQueue, HttpResponseDecoder decoder) {
+        HttpResponse response;
+        try {
+            response = decoder.decodeEnd();
+        } catch (ProtocolException e) {
+            // cut off, replay what can be replayed
+            client.recover(e, false);
+            return;
+        }
+        if (response != null) {
+            complete(requestQueue.poll(), response);
+        }
+        client.endOfInput();
+    }
+
+    /**
+     * The head of a response is decoded, the body of a streamed request goes to its sink
+     *
+     * @param response response without body
+     */
+    @Override
+    public void onHeaders(HttpResponse response) {
+        // the responses decoded before it from the same buffer are still queued
+        TimedRequest request = null;
+        for (TimedRequest queued : client.getRequestQueue()) {
+            if (!queued.isAnswered()) {
+                request = queued;
+                break;
+            }
+        }
+        if (request != null) {
+            request.setAnswered(true);
+            request.cancelPhase();
+            if (request.getMethod() == HttpMethod.HEAD) {
+                client.getDecoder().skipBody();
+            }
+        }
+        if (request != null && request.getBodySink() != null) {
+            BodySink bodySink = request.getBodySink();
+            response.setBodySink(bodySink);
+            // the promise of a streamed request completes with the head
+            client.complete(request.getPromise(), response);
+        }
+    }
 }
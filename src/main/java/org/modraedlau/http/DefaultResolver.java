@@ -0,0 +1,185 @@
+package org.modraedlau.http;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolver doing the blocking lookups of {@link InetAddress} on its own threads, with a cache.
+ * The lookups of the same host are shared, the unknown hosts are cached too for a shorter time.
+ *
+ * @author modraedlau
+ */
+public class DefaultResolver implements Resolver {
+    private static final long DEFAULT_TTL = 30000;
+
+    private static final long DEFAULT_NEGATIVE_TTL = 5000;
+
+    private static final int LOOKUP_THREADS = 4;
+
+    /**
+     * expired entries are purged when the cache grows beyond this
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final DefaultResolver DEFAULT = new DefaultResolver(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+
+    private final long ttl;
+
+    private final long negativeTtl;
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    /**
+     * @param ttl         milliseconds the addresses of a host are cached
+     * @param negativeTtl milliseconds an unknown host is cached
+     */
+    public DefaultResolver(long ttl, long negativeTtl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "dns-lookup");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * The resolver shared by all clients unless one is given
+     *
+     * @return default resolver
+     */
+    public static DefaultResolver getDefault() {
+        return DEFAULT;
+    }
+
+    @Override
+    public CompletableFuture<List<InetAddress>> resolve(String host) {
+        String key = host.toLowerCase();
+        while (true) {
+            Entry entry = cache.get(key);
+            if (entry != null && !entry.isExpired()) {
+                return entry.future;
+            }
+            Entry fresh = new Entry();
+            if (entry == null ? cache.putIfAbsent(key, fresh) != null : !cache.replace(key, entry, fresh)) {
+                // another thread started the lookup
+                continue;
+            }
+            if (cache.size() > MAX_ENTRIES) {
+                cache.values().removeIf(Entry::isExpired);
+            }
+            if (isLiteral(key)) {
+                // parsed, no lookup
+                complete(key, fresh);
+            } else {
+                executor.execute(() -> complete(key, fresh));
+            }
+            return fresh.future;
+        }
+    }
+
+    /**
+     * Forget the cached addresses of the host
+     *
+     * @param host host name
+     */
+    public void invalidate(String host) {
+        cache.remove(host.toLowerCase());
+    }
+
+    /**
+     * The blocking lookup, override it to resolve from somewhere else, e.g. a hosts file in tests
+     *
+     * @param host host name
+     * @return addresses, not empty
+     * @throws UnknownHostException if the host is unknown
+     */
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private void complete(String host, Entry entry) {
+        try {
+            InetAddress[] addresses = lookup(host);
+            if (addresses == null || addresses.length == 0) {
+                throw new UnknownHostException(host);
+            }
+            entry.expires = System.nanoTime() + ttl;
+            entry.future.complete(interleave(addresses));
+        } catch (UnknownHostException | RuntimeException e) {
+            entry.expires = System.nanoTime() + negativeTtl;
+            entry.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Alternate the address families, so a broken family does not delay the other for long
+     */
+    private static List<InetAddress> interleave(InetAddress[] addresses) {
+        if (addresses.length == 1) {
+            return Collections.singletonList(addresses[0]);
+        }
+        boolean firstIpv6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address == firstIpv6 ? first : second).add(address);
+        }
+        if (second.isEmpty()) {
+            return Collections.unmodifiableList(Arrays.asList(addresses));
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return Collections.unmodifiableList(ordered);
+    }
+
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        final CompletableFuture<List<InetAddress>> future = new CompletableFuture<>();
+
+        /**
+         * nano time, written before the future is completed
+         */
+        volatile long expires;
+
+        boolean isExpired() {
+            return future.isDone() && System.nanoTime() - expires >= 0;
+        }
+    }
+}
@@ -4,12 +4,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -22,6 +23,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class EventLoop {
     private static Logger logger = LoggerFactory.getLogger(EventLoop.class);
 
+    private static final long TICK_MILLIS = 10;
+
+    private static final int WHEEL_SIZE = 512;
+
     private final Selector selector;
 
     private final Thread selectThread;
@@ -32,28 +37,76 @@ public class EventLoop {
 
     private final ScheduledExecutorService scheduled;
 
+    /**
+     * request and connect deadlines, expired on the selector thread
+     */
+    private final TimingWheel timingWheel;
+
+    /**
+     * tasks submitted to run on the selector thread
+     */
+    private final Queue<Runnable> tasks;
+
+    private volatile boolean started;
+
+    /**
+     * the executors are shared by an event loop group, they are shut down by the group
+     */
+    private final boolean sharedExecutors;
+
+    private final ExecutionMode mode;
+
+    /**
+     * completes the promises if not null, otherwise they are completed by the reading thread
+     */
+    private final Executor callbackExecutor;
+
     public EventLoop() throws IOException {
-        selector = Selector.open();
-        clients = new ArrayList<>();
+        this(ExecutionMode.POOLED);
+    }
 
-        int availableProcessors = Runtime.getRuntime().availableProcessors();
-        ThreadFactory threadFactory = defaultThreadFactory();
+    public EventLoop(ExecutionMode mode) throws IOException {
+        this(mode, null);
+    }
 
-        // Read and write task thread pool
-        executor = new ThreadPoolExecutor(availableProcessors * 2,
-            200,
-            100L, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<>(10000),
-            threadFactory);
+    /**
+     * @param mode             where reads and writes are executed
+     * @param callbackExecutor executor completing the promises, null to complete them on the reading thread
+     */
+    public EventLoop(ExecutionMode mode, Executor callbackExecutor) throws IOException {
+        this("selector", mode == ExecutionMode.POOLED ? newExecutor() : null, newScheduled(), false,
+            mode, callbackExecutor);
+    }
 
-        scheduled = Executors.newScheduledThreadPool(availableProcessors, threadFactory);
+    EventLoop(String name, ExecutorService executor, ScheduledExecutorService scheduled,
+              boolean sharedExecutors, ExecutionMode mode, Executor callbackExecutor) throws IOException {
+        selector = Selector.open();
+        clients = new CopyOnWriteArrayList<>();
+        tasks = new ConcurrentLinkedQueue<>();
+        timingWheel = new TimingWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE, selector::wakeup);
+
+        this.executor = executor;
+        this.scheduled = scheduled;
+        this.sharedExecutors = sharedExecutors;
+        this.mode = mode;
+        this.callbackExecutor = callbackExecutor;
 
         // Selector thread
         selectThread = new Thread(() -> {
             try {
                 while (!Thread.currentThread().isInterrupted()) {
+                    runTasks();
+
                     // 阻塞
-                    selector.select();
+                    // not if the selector thread itself queued tasks, and until the next tick at most
+                    long timeout = timingWheel.nextTickMillis();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (timeout == 0) {
+                        selector.select();
+                    } else {
+                        selector.select(timeout);
+                    }
 
                     Set<SelectionKey> keys = selector.selectedKeys();
                     Iterator<SelectionKey> it = keys.iterator();
@@ -64,28 +117,52 @@ public class EventLoop {
 
                         final SimpleHttpClient client = (SimpleHttpClient) key.attachment();
 
+                        if (!key.isValid()) {
+                            // the channel has been closed by another thread
+                            continue;
+                        }
+
                         try {
                             if (key.isConnectable()) {
-                                if (client.getSocketChannel().finishConnect()) {
+                                boolean connected;
+                                try {
+                                    connected = client.getSocketChannel().finishConnect();
+                                } catch (IOException e) {
+                                    // 连接失败
+                                    // try the next address of the host
+                                    key.cancel();
+                                    client.connectFailed(e);
+                                    continue;
+                                }
+                                if (connected) {
                                     // 连接成功
-                                    client.connectedState();
-                                    client.notifyConnected();
+                                    // usable at once, or after the TLS handshake
+                                    client.channelConnected();
                                 }
                             }
 
-                            if (key.isReadable()) {
-                                // 执行读取线程
+                            if (key.isValid() && key.isWritable()) {
+                                // the socket buffer has room again
+                                client.executeProducer();
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                // 读取，并在当前线程或读写线程池中解码
                                 client.executeConsumer();
                             }
 
+                        } catch (CancelledKeyException e) {
+                            logger.debug("Channel closed while selecting", e);
                         } catch (IOException e) {
                             logger.error("Error reading", e);
 
-                            // 关闭连接，并清除请求队列
+                            // 关闭连接，并在新连接上重放请求
                             key.cancel();
-                            client.closeByException(e);
+                            client.recover(e, false);
                         }
                     }
+
+                    timingWheel.expire();
                 }
             } catch (IOException e) {
                 logger.error("Error selecting", e);
@@ -98,19 +175,125 @@ public class EventLoop {
                     logger.debug("Selector closed!");
                 }
             }
-        }, "selector");
+        }, name);
+        timingWheel.setThread(selectThread);
+    }
+
+    static ExecutorService newExecutor() {
+        int availableProcessors = Runtime.getRuntime().availableProcessors();
+
+        // Read and write task thread pool
+        return new ThreadPoolExecutor(availableProcessors * 2,
+            200,
+            100L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(10000),
+            defaultThreadFactory("rw-task-"));
+    }
+
+    static ScheduledExecutorService newScheduled() {
+        int availableProcessors = Runtime.getRuntime().availableProcessors();
+        return Executors.newScheduledThreadPool(availableProcessors, defaultThreadFactory("scheduled-"));
     }
 
     public void register(SimpleHttpClient client) throws ClosedChannelException {
-        clients.add(client);
-        // 注册选择器
-        client.getSocketChannel().register(selector,
-            SelectionKey.OP_CONNECT | SelectionKey.OP_READ, client);
+        if (!clients.contains(client)) {
+            // registered again with a new channel when the requests are replayed
+            clients.add(client);
+        }
+        client.setEventLoop(this);
         client.setExecutor(executor);
-        client.setScheduled(scheduled);
+        client.setInline(mode == ExecutionMode.INLINE);
+        client.setCallbackExecutor(callbackExecutor);
+        if (started && !inEventLoop()) {
+            // The selector is blocked in select(), let the selector thread do the registration
+            execute(() -> {
+                try {
+                    client.setSelectionKey(client.getSocketChannel().register(selector,
+                        client.interestOps(), client));
+                } catch (ClosedChannelException e) {
+                    // closed meanwhile, e.g. the host could not be resolved, whoever closed it failed the requests
+                    logger.debug("Channel closed before being registered", e);
+                }
+            });
+        } else {
+            // 注册选择器
+            client.setSelectionKey(client.getSocketChannel().register(selector,
+                client.interestOps(), client));
+        }
+    }
+
+    /**
+     * Run the task on the selector thread
+     *
+     * @param task task
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Is the current thread the selector thread of this loop?
+     *
+     * @return true if in this event loop
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == selectThread;
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Remove a closed client from this event loop
+     *
+     * @param client the client
+     */
+    void deregister(SimpleHttpClient client) {
+        clients.remove(client);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error running task", e);
+            }
+        }
+    }
+
+    /**
+     * Run the task on the selector thread after the delay, with the precision of a tick
+     *
+     * @param task  task, it must not block
+     * @param delay delay
+     * @param unit  unit of the delay
+     * @return timeout, cancel it when the task is no longer needed
+     */
+    TimingWheel.Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        return timingWheel.newTimeout(task, delay, unit);
+    }
+
+    ScheduledExecutorService getScheduled() {
+        return scheduled;
+    }
+
+    /**
+     * Number of clients registered, used to balance the loops of a group
+     *
+     * @return number of clients
+     */
+    public int load() {
+        return clients.size();
     }
 
     public void start() {
+        started = true;
         selectThread.start();
     }
 
@@ -119,11 +302,13 @@ public class EventLoop {
         for (SimpleHttpClient client : clients) {
             client.disconnectedState();
         }
-        executor.shutdown();
+        if (!sharedExecutors && executor != null) {
+            executor.shutdown();
+        }
     }
 
-    private static ThreadFactory defaultThreadFactory() {
-        return new DefaultThreadFactory();
+    private static ThreadFactory defaultThreadFactory(String namePrefix) {
+        return new DefaultThreadFactory(namePrefix);
     }
 
     /**
@@ -134,11 +319,11 @@ public class EventLoop {
         private final AtomicInteger threadNumber = new AtomicInteger(1);
         private final String namePrefix;
 
-        DefaultThreadFactory() {
+        DefaultThreadFactory(String namePrefix) {
             SecurityManager s = System.getSecurityManager();
             group = (s != null) ? s.getThreadGroup() :
                 Thread.currentThread().getThreadGroup();
-            namePrefix = "rw-task-";
+            this.namePrefix = namePrefix;
         }
 
         @Override
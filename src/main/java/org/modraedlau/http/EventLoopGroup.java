@@ -0,0 +1,161 @@
+package org.modraedlau.http;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of event loops, each with its own selector thread.
+ * A client is bound to one loop for its whole life.
+ *
+ * @author modraedlau
+ */
+public class EventLoopGroup {
+
+    /**
+     * How a loop is chosen for a new client
+     */
+    public enum Strategy {
+        /**
+         * One after another
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The loop with the fewest registered clients
+         */
+        LEAST_LOADED
+    }
+
+    private final EventLoop[] loops;
+
+    private final Strategy strategy;
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    /**
+     * null if the executors belong to the loops or in inline mode
+     */
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService scheduled;
+
+    /**
+     * One loop per available processor, round robin
+     */
+    public EventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public EventLoopGroup(int nThreads) throws IOException {
+        this(nThreads, Strategy.ROUND_ROBIN);
+    }
+
+    public EventLoopGroup(int nThreads, Strategy strategy) throws IOException {
+        this(nThreads, strategy, ExecutionMode.POOLED, null);
+    }
+
+    /**
+     * @param nThreads         number of loops
+     * @param strategy         how a loop is chosen for a new client
+     * @param mode             where reads and writes are executed
+     * @param callbackExecutor executor completing the promises, null to complete them on the reading thread
+     */
+    public EventLoopGroup(int nThreads, Strategy strategy, ExecutionMode mode, Executor callbackExecutor)
+        throws IOException {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("Illegal number of threads: " + nThreads);
+        }
+        this.strategy = strategy;
+        executor = mode == ExecutionMode.POOLED ? EventLoop.newExecutor() : null;
+        scheduled = EventLoop.newScheduled();
+        loops = new EventLoop[nThreads];
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                loops[i] = new EventLoop("selector-" + (i + 1), executor, scheduled, true,
+                    mode, callbackExecutor);
+            }
+        } catch (IOException e) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            scheduled.shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap loops created and started by the caller
+     *
+     * @param loops event loops
+     */
+    EventLoopGroup(EventLoop... loops) {
+        this.loops = loops;
+        this.strategy = Strategy.ROUND_ROBIN;
+        this.executor = null;
+        this.scheduled = null;
+    }
+
+    /**
+     * Choose the next loop by the strategy
+     *
+     * @return event loop
+     */
+    public EventLoop next() {
+        if (loops.length == 1) {
+            return loops[0];
+        }
+        if (strategy == Strategy.LEAST_LOADED) {
+            EventLoop least = loops[0];
+            for (int i = 1; i < loops.length; i++) {
+                if (loops[i].load() < least.load()) {
+                    least = loops[i];
+                }
+            }
+            return least;
+        }
+        return loops[(index.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Register the client to one of the loops
+     *
+     * @param client the client
+     * @return the loop the client is bound to
+     * @throws ClosedChannelException if the channel is closed
+     */
+    public EventLoop register(SimpleHttpClient client) throws ClosedChannelException {
+        EventLoop loop = next();
+        loop.register(client);
+        return loop;
+    }
+
+    ScheduledExecutorService getScheduled() {
+        return scheduled == null ? loops[0].getScheduled() : scheduled;
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (scheduled != null) {
+            scheduled.shutdown();
+        }
+    }
+}
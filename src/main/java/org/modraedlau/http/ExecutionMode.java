@@ -0,0 +1,19 @@
+package org.modraedlau.http;
+
+/**
+ * Where the reads, decoding and writes of a client are executed
+ *
+ * @author modraedlau
+ */
+public enum ExecutionMode {
+    /**
+     * Decoding and writing are submitted to the read and write task thread pool
+     */
+    POOLED,
+
+    /**
+     * Reading, decoding and writing all happen on the selector thread owning the client,
+     * callbacks must not block unless a callback executor is given
+     */
+    INLINE
+}
@@ -0,0 +1,129 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.BodySink;
+import org.modraedlau.http.message.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the body of a successful response to a file, straight from the read buffer.
+ * A body that can not be written to the end is deleted.
+ *
+ * @author modraedlau
+ */
+class FileSink implements BodySink {
+    private static Logger logger = LoggerFactory.getLogger(FileSink.class);
+
+    private final SimpleHttpClient client;
+
+    private final Path target;
+
+    /**
+     * completed once the file is closed, on the callback executor of the client
+     */
+    private final CompletableFuture<HttpResponse> done = new CompletableFuture<>();
+
+    private volatile boolean finished;
+
+    private HttpResponse response;
+
+    /**
+     * null until opened, or if the body is not written
+     */
+    private FileChannel channel;
+
+    FileSink(SimpleHttpClient client, Path target) {
+        this.client = client;
+        this.target = target;
+    }
+
+    CompletableFuture<HttpResponse> getDone() {
+        return done;
+    }
+
+    @Override
+    public void open(HttpResponse response) {
+        this.response = response;
+        int status = response.getStatus();
+        if (status < 200 || status >= 300) {
+            // the body of an error is dropped, the target is left untouched
+            return;
+        }
+        try {
+            channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public boolean ready() {
+        // the file takes everything, the rest of a failed body is drained
+        return true;
+    }
+
+    @Override
+    public void write(ByteBuffer segment) {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        try {
+            while (segment.hasRemaining()) {
+                channel.write(segment);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void complete() {
+        if (finished) {
+            return;
+        }
+        FileChannel channel = this.channel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        }
+        finished = true;
+        client.complete(done, response);
+    }
+
+    @Override
+    public void error(Throwable e) {
+        fail(e);
+    }
+
+    private void fail(Throwable e) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        FileChannel channel = this.channel;
+        this.channel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+                Files.deleteIfExists(target);
+            } catch (IOException e1) {
+                logger.error("Error deleting " + target, e1);
+            }
+        }
+        client.completeExceptionally(done, e);
+    }
+}
@@ -0,0 +1,349 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections to one scheme/host/port, each request leases an idle connection
+ *
+ * @author modraedlau
+ */
+class HostPool {
+    private static Logger logger = LoggerFactory.getLogger(HostPool.class);
+
+    private final String base;
+
+    private final EventLoopGroup group;
+
+    private final int minConnections;
+
+    private final int maxConnections;
+
+    private final long idleTimeout;
+
+    /**
+     * shared by the connections, so they resume the TLS session of the first one, null for the default
+     */
+    private final SSLContext sslContext;
+
+    /**
+     * all live connections, leased or idle
+     */
+    private final List<SimpleHttpClient> connections;
+
+    /**
+     * idle connections, the most recently used first
+     */
+    private final Deque<IdleConnection> idle;
+
+    /**
+     * requests waiting for a connection when the pool is full
+     */
+    private final Queue<Waiter> waiters;
+
+    private final Lock lock;
+
+    private boolean closed;
+
+    HostPool(String base, EventLoopGroup group, int minConnections, int maxConnections, long idleTimeout,
+             SSLContext sslContext) {
+        this.base = base;
+        this.group = group;
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.sslContext = sslContext;
+        connections = new ArrayList<>();
+        idle = new ArrayDeque<>();
+        waiters = new ArrayDeque<>();
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Lease a connection and send the request, or wait for one if the pool is full
+     *
+     * @param request    request, its target is the path
+     * @param subscriber body subscriber, null to keep the body in the response
+     * @param promise    result future
+     */
+    void send(Request request, BodySubscriber subscriber, CompletableFuture<HttpResponse> promise) {
+        SimpleHttpClient client;
+        try {
+            lock.lock();
+            if (closed) {
+                promise.completeExceptionally(new IllegalStateException("Pool closed: " + base));
+                return;
+            }
+            client = pollIdle();
+            if (client == null && connections.size() < maxConnections) {
+                client = open();
+            }
+            if (client == null) {
+                waiters.offer(new Waiter(request, subscriber, promise));
+                return;
+            }
+        } catch (IOException | UnresolvedAddressException e) {
+            promise.completeExceptionally(e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+        dispatch(client, request, subscriber, promise);
+    }
+
+    private void dispatch(SimpleHttpClient client, Request request, BodySubscriber subscriber,
+                          CompletableFuture<HttpResponse> promise) {
+        if (promise.isDone()) {
+            // cancelled by the caller while the connection was handed over
+            release(client);
+            return;
+        }
+        if (subscriber != null) {
+            // the connection is leased until the end of the streamed body, the subscription cancels it
+            client.get(request.getTarget(), new ReleasingSubscriber(client, subscriber)).whenComplete((response, e) -> {
+                if (e == null) {
+                    promise.complete(response);
+                } else {
+                    promise.completeExceptionally(e);
+                }
+            });
+            return;
+        }
+        CompletableFuture<HttpResponse> inner = client.execute(request);
+        inner.whenComplete((response, e) -> {
+            // give the connection back before running the callbacks of the caller
+            release(client);
+            if (e == null) {
+                promise.complete(response);
+            } else {
+                promise.completeExceptionally(e);
+            }
+        });
+        // dropped from the queue of the connection if not written yet, the connection is given back at once
+        promise.whenComplete((response, e) -> {
+            if (promise.isCancelled()) {
+                inner.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Give the connection back, hand it over to the first waiter if any
+     *
+     * @param client the leased connection
+     */
+    private void release(SimpleHttpClient client) {
+        Waiter waiter = null;
+        try {
+            lock.lock();
+            if (!client.isOpen() || closed) {
+                remove(client);
+                client = null;
+            }
+            while ((waiter = waiters.poll()) != null && waiter.promise.isDone()) {
+                // skip the waiters already completed by the caller
+            }
+            if (waiter == null) {
+                if (client != null) {
+                    idle.push(new IdleConnection(client, System.currentTimeMillis()));
+                }
+                return;
+            }
+            if (client == null) {
+                // the connection was dead, replace it for the waiter
+                client = open();
+            }
+        } catch (IOException | UnresolvedAddressException e) {
+            waiter.promise.completeExceptionally(e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+        dispatch(client, waiter.request, waiter.subscriber, waiter.promise);
+    }
+
+    /**
+     * Evict dead connections and the ones idle for too long, and keep the minimum number alive
+     */
+    void evict() {
+        try {
+            lock.lock();
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            // the least recently used are at the tail
+            Iterator<IdleConnection> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                IdleConnection connection = it.next();
+                if (!connection.client.isOpen()) {
+                    it.remove();
+                    remove(connection.client);
+                } else if (now - connection.since >= idleTimeout && connections.size() > minConnections) {
+                    it.remove();
+                    remove(connection.client);
+                    connection.client.close();
+                }
+            }
+            while (connections.size() < minConnections) {
+                idle.offer(new IdleConnection(open(), now));
+            }
+        } catch (IOException | UnresolvedAddressException e) {
+            logger.error("Error opening connection to " + base, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        List<SimpleHttpClient> toClose;
+        List<Waiter> toFail;
+        try {
+            lock.lock();
+            closed = true;
+            toClose = new ArrayList<>(connections);
+            toFail = new ArrayList<>(waiters);
+            connections.clear();
+            idle.clear();
+            waiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (SimpleHttpClient client : toClose) {
+            client.close();
+            deregister(client);
+        }
+        for (Waiter waiter : toFail) {
+            waiter.promise.completeExceptionally(new IllegalStateException("Pool closed: " + base));
+        }
+    }
+
+    int size() {
+        try {
+            lock.lock();
+            return connections.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int idleSize() {
+        try {
+            lock.lock();
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SimpleHttpClient pollIdle() {
+        IdleConnection connection;
+        while ((connection = idle.poll()) != null) {
+            if (connection.client.isOpen()) {
+                return connection.client;
+            }
+            remove(connection.client);
+        }
+        return null;
+    }
+
+    private SimpleHttpClient open() throws IOException {
+        SimpleHttpClient client = new SimpleHttpClient(base);
+        client.setSslContext(sslContext);
+        try {
+            // registered first, so the connect deadline runs on its loop
+            group.register(client);
+            client.connect();
+        } catch (IOException | UnresolvedAddressException e) {
+            client.close();
+            deregister(client);
+            throw e;
+        }
+        connections.add(client);
+        return client;
+    }
+
+    private void remove(SimpleHttpClient client) {
+        connections.remove(client);
+        deregister(client);
+    }
+
+    private static void deregister(SimpleHttpClient client) {
+        EventLoop loop = client.getEventLoop();
+        if (loop != null) {
+            loop.deregister(client);
+        }
+    }
+
+    private static final class IdleConnection {
+        final SimpleHttpClient client;
+        final long since;
+
+        IdleConnection(SimpleHttpClient client, long since) {
+            this.client = client;
+            this.since = since;
+        }
+    }
+
+    private static final class Waiter {
+        final Request request;
+        final BodySubscriber subscriber;
+        final CompletableFuture<HttpResponse> promise;
+
+        Waiter(Request request, BodySubscriber subscriber, CompletableFuture<HttpResponse> promise) {
+            this.request = request;
+            this.subscriber = subscriber;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * Gives the connection back when the streamed body ends
+     */
+    private final class ReleasingSubscriber implements BodySubscriber {
+        private final SimpleHttpClient client;
+        private final BodySubscriber delegate;
+
+        ReleasingSubscriber(SimpleHttpClient client, BodySubscriber delegate) {
+            this.client = client;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onSubscribe(BodySubscription subscription) {
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(ByteBuffer segment) {
+            delegate.onNext(segment);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            release(client);
+            delegate.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            release(client);
+            delegate.onComplete();
+        }
+    }
+}
@@ -0,0 +1,970 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.Decoded;
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.Headers;
+import org.modraedlau.http.message.HpackDecoder;
+import org.modraedlau.http.message.HpackEncoder;
+import org.modraedlau.http.message.HttpMessage;
+import org.modraedlau.http.message.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP/2 over the connection of a client, in cleartext with prior knowledge (h2c).
+ * Each request of the queue is sent on its own stream as soon as the server allows one more,
+ * the responses complete in any order. One per connection, guarded by the lock of the client.
+ *
+ * @author modraedlau
+ */
+class Http2Connection {
+    private static Logger logger = LoggerFactory.getLogger(Http2Connection.class);
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY = 0x20;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int CANCEL = 0x8;
+    private static final int REFUSED_STREAM = 0x7;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+
+    /**
+     * receive window announced for each stream, the bytes a slow body subscriber may leave buffered
+     */
+    private static final int STREAM_WINDOW = 1024 * 1024;
+
+    /**
+     * receive window of the whole connection
+     */
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+    /**
+     * streams opened before the settings of the server give its limit
+     */
+    private static final int DEFAULT_MAX_STREAMS = 100;
+
+    private static final int MAX_HEADER_BLOCK = 256 * 1024;
+
+    private final SimpleHttpClient client;
+
+    private final BufferPool bufferPool;
+
+    private final String scheme;
+
+    private final String authority;
+
+    private final HpackEncoder hpackEncoder = new HpackEncoder();
+
+    private final HpackDecoder hpackDecoder = new HpackDecoder();
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    /**
+     * streams with body bytes waiting for their subscriber
+     */
+    private final List<Stream> blocked = new ArrayList<>();
+
+    private boolean prefaceSent;
+
+    private int nextStreamId = 1;
+
+    /**
+     * settings of the server
+     */
+    private int maxConcurrentStreams = DEFAULT_MAX_STREAMS;
+    private int initialWindow = DEFAULT_WINDOW;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    /**
+     * bytes the server accepts on the connection
+     */
+    private long sendWindow = DEFAULT_WINDOW;
+
+    /**
+     * bytes received on the connection and not given back by a WINDOW_UPDATE yet
+     */
+    private int unacknowledged;
+
+    /**
+     * no stream is opened any more, after a GOAWAY or once the stream ids are exhausted
+     */
+    private boolean draining;
+
+    /**
+     * control frames or window updates were queued by the reading side
+     */
+    private boolean flushNeeded;
+
+    /**
+     * the frame being read
+     */
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private int frameHeaderCount;
+    private int type;
+    private int flags;
+    private int streamId;
+    private int remaining;
+
+    /**
+     * payload of a frame other than DATA
+     */
+    private final byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private int payloadCount;
+
+    /**
+     * padding of the DATA frame being read, -1 until its Pad Length is read
+     */
+    private int padding;
+
+    /**
+     * header block of a HEADERS frame and its CONTINUATION frames
+     */
+    private byte[] headerBlock = new byte[1024];
+    private int headerBlockLength;
+    private int headerBlockStream;
+    private boolean headerBlockEndStream;
+
+    /**
+     * reused to encode the header blocks
+     */
+    private ByteBuffer blockBuffer = ByteBuffer.allocate(1024);
+
+    Http2Connection(SimpleHttpClient client) {
+        this.client = client;
+        this.bufferPool = client.getBufferPool();
+        URI uri = client.getUri();
+        this.scheme = client.isSecure() ? "https" : "http";
+        this.authority = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * Open streams for the requests waiting in the queue and queue the body bytes the windows allow, with the lock held
+     *
+     * @param outbound outbound segments of the connection
+     * @return open streams
+     */
+    int write(Outbound outbound) {
+        if (!prefaceSent) {
+            prefaceSent = true;
+            writePreface(outbound);
+        }
+        Iterator<TimedRequest> it = client.getRequestQueue().iterator();
+        while (it.hasNext() && !draining && streams.size() < maxConcurrentStreams) {
+            TimedRequest request = it.next();
+            if (request.isEncoded()) {
+                continue;
+            }
+            if (request.getPromise().isDone()) {
+                // expired before being sent
+                it.remove();
+                request.cancelTimeouts();
+                continue;
+            }
+            RequestBody body = request.getBody();
+            if (body instanceof RequestBody.Streamed) {
+                it.remove();
+                client.fail(request, new IOException("Streamed request bodies are not sent over HTTP/2"));
+                continue;
+            }
+            Stream stream = new Stream(nextStreamId, request, initialWindow);
+            if (body instanceof RequestBody.File) {
+                try {
+                    stream.file = ((RequestBody.File) body).open();
+                } catch (IOException e) {
+                    it.remove();
+                    client.fail(request, e);
+                    continue;
+                }
+            } else if (body != null) {
+                stream.bytes = ((RequestBody.Bytes) body).buffer();
+            }
+            stream.bodyRemaining = body == null ? 0 : body.length();
+            streams.put(stream.id, stream);
+            nextStreamId += 2;
+            if (nextStreamId < 0) {
+                // the ids are exhausted, a new connection is needed for the next requests
+                draining = true;
+            }
+            client.encoded(request);
+            writeHeaders(stream, outbound);
+        }
+        Iterator<Stream> streamIt = streams.values().iterator();
+        while (streamIt.hasNext() && sendWindow > 0) {
+            Stream stream = streamIt.next();
+            try {
+                writeData(stream, outbound);
+            } catch (IOException e) {
+                streamIt.remove();
+                blocked.remove(stream);
+                closeFile(stream);
+                writeRstStream(stream.id, CANCEL);
+                client.getRequestQueue().remove(stream.request);
+                client.fail(stream.request, e);
+            }
+        }
+        return streams.size();
+    }
+
+    /**
+     * Read the frames of the buffer, every byte is consumed: the body bytes a subscriber does not want yet
+     * are kept by their stream, the window of the stream stops the server meanwhile
+     *
+     * @param in read buffer
+     * @throws ProtocolException if the server breaks the protocol, the connection can not be used any more
+     */
+    void read(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (frameHeaderCount < FRAME_HEADER_LENGTH) {
+                frameHeader[frameHeaderCount++] = in.get();
+                if (frameHeaderCount == FRAME_HEADER_LENGTH) {
+                    startFrame();
+                    if (remaining == 0) {
+                        endFrame();
+                    }
+                }
+                continue;
+            }
+            if (type == DATA) {
+                readData(in);
+            } else {
+                int n = Math.min(remaining, in.remaining());
+                in.get(payload, payloadCount, n);
+                payloadCount += n;
+                remaining -= n;
+            }
+            if (remaining == 0) {
+                endFrame();
+            }
+        }
+    }
+
+    /**
+     * Deliver the body bytes kept for the subscribers that want more, with the lock held
+     *
+     * @throws ProtocolException if a body can not be decoded
+     */
+    void deliverPending() throws ProtocolException {
+        Iterator<Stream> it = blocked.iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            ByteBuffer segment;
+            while ((segment = stream.pending.peek()) != null && stream.response.isReady()) {
+                stream.pending.poll();
+                int n = segment.remaining();
+                stream.response.appendBody(segment, n);
+                consumed(stream, n);
+            }
+            if (stream.pending.isEmpty()) {
+                it.remove();
+                if (stream.ended) {
+                    complete(stream);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if frames were queued by the reading side, cleared by the call
+     */
+    boolean takeFlushNeeded() {
+        boolean needed = flushNeeded;
+        flushNeeded = false;
+        return needed;
+    }
+
+    /**
+     * @return true after a GOAWAY once the streams processed by the server are complete,
+     * the other requests must be sent on a new connection
+     */
+    boolean isDrained() {
+        return draining && streams.isEmpty();
+    }
+
+    /**
+     * Stop the stream of a request that failed, e.g. timed out, the other streams go on. With the lock held.
+     *
+     * @param request the request, already failed
+     */
+    void cancel(TimedRequest request) {
+        for (Stream stream : streams.values()) {
+            if (stream.request == request) {
+                removeStream(stream);
+                writeRstStream(stream.id, CANCEL);
+                client.scheduleFlush();
+                return;
+            }
+        }
+    }
+
+    private void writePreface(Outbound outbound) {
+        ByteBuffer buffer = bufferPool.acquire(PREFACE.length + 2 * FRAME_HEADER_LENGTH + 12 + 4);
+        buffer.put(PREFACE);
+        putFrameHeader(buffer, 12, SETTINGS, 0, 0);
+        buffer.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        buffer.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+        putFrameHeader(buffer, 4, WINDOW_UPDATE, 0, 0);
+        buffer.putInt(CONNECTION_WINDOW - DEFAULT_WINDOW);
+        buffer.flip();
+        outbound.add(buffer, (TimedRequest) null);
+    }
+
+    private void writeHeaders(Stream stream, Outbound outbound) {
+        TimedRequest request = stream.request;
+        String path = request.getPath().isEmpty() ? "/" : request.getPath();
+        int length = HpackEncoder.maxLength(":method", request.getMethod().name())
+            + HpackEncoder.maxLength(":scheme", scheme)
+            + HpackEncoder.maxLength(":authority", authority)
+            + HpackEncoder.maxLength(":path", path);
+        Headers headers = request.headers();
+        for (int i = 0, n = headers.size(); i < n; i++) {
+            length += HpackEncoder.maxLength(headers.name(i), headers.value(i));
+        }
+        if (blockBuffer.capacity() < length) {
+            blockBuffer = ByteBuffer.allocate(Math.max(length, blockBuffer.capacity() * 2));
+        }
+        ByteBuffer block = blockBuffer;
+        block.clear();
+        hpackEncoder.encode(":method", request.getMethod().name(), block);
+        hpackEncoder.encode(":scheme", scheme, block);
+        hpackEncoder.encode(":authority", authority, block);
+        hpackEncoder.encode(":path", path, block);
+        for (int i = 0, n = headers.size(); i < n; i++) {
+            String name = headers.name(i).toLowerCase(Locale.ROOT);
+            if (!isConnectionSpecific(name)) {
+                hpackEncoder.encode(name, headers.value(i), block);
+            }
+        }
+        block.flip();
+
+        // HEADERS, then CONTINUATION frames if the block is larger than a frame
+        int frames = Math.max(1, (block.remaining() + maxFrameSize - 1) / maxFrameSize);
+        ByteBuffer buffer = bufferPool.acquire(block.remaining() + frames * FRAME_HEADER_LENGTH);
+        boolean endStream = stream.bodyRemaining == 0;
+        int frameType = HEADERS;
+        do {
+            int n = Math.min(block.remaining(), maxFrameSize);
+            int frameFlags = (frameType == HEADERS && endStream ? END_STREAM : 0)
+                | (n == block.remaining() ? END_HEADERS : 0);
+            putFrameHeader(buffer, n, frameType, frameFlags, stream.id);
+            int limit = block.limit();
+            block.limit(block.position() + n);
+            buffer.put(block);
+            block.limit(limit);
+            frameType = CONTINUATION;
+        } while (block.hasRemaining());
+        buffer.flip();
+        if (endStream) {
+            request.setBodyQueued(true);
+            outbound.add(buffer, request);
+        } else {
+            outbound.add(buffer, (TimedRequest) null);
+        }
+    }
+
+    /**
+     * Hop by hop fields have no meaning in HTTP/2, the host is the :authority
+     */
+    private static boolean isConnectionSpecific(String name) {
+        return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+            || name.equals("transfer-encoding") || name.equals("upgrade") || name.equals("host");
+    }
+
+    /**
+     * Queue DATA frames of the body, as far as the windows of the stream and of the connection allow
+     */
+    private void writeData(Stream stream, Outbound outbound) throws IOException {
+        while (stream.bodyRemaining > 0) {
+            int n = (int) Math.min(Math.min(stream.bodyRemaining, maxFrameSize),
+                Math.min(sendWindow, stream.sendWindow));
+            if (n <= 0) {
+                // the rest is sent on WINDOW_UPDATE
+                return;
+            }
+            ByteBuffer buffer = bufferPool.acquire(FRAME_HEADER_LENGTH + n);
+            boolean last = n == stream.bodyRemaining;
+            putFrameHeader(buffer, n, DATA, last ? END_STREAM : 0, stream.id);
+            try {
+                readBody(stream, buffer, n);
+            } catch (IOException e) {
+                bufferPool.release(buffer);
+                throw e;
+            }
+            buffer.flip();
+            stream.bodyRemaining -= n;
+            stream.sendWindow -= n;
+            sendWindow -= n;
+            if (last) {
+                closeFile(stream);
+                stream.request.setBodyQueued(true);
+                outbound.add(buffer, stream.request);
+            } else {
+                outbound.add(buffer, (TimedRequest) null);
+            }
+        }
+    }
+
+    private static void readBody(Stream stream, ByteBuffer buffer, int n) throws IOException {
+        if (stream.bytes != null) {
+            ByteBuffer bytes = stream.bytes;
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + n);
+            buffer.put(bytes);
+            bytes.limit(limit);
+            return;
+        }
+        int end = buffer.position() + n;
+        int limit = buffer.limit();
+        buffer.limit(end);
+        try {
+            while (buffer.hasRemaining()) {
+                int read = stream.file.read(buffer, stream.filePosition);
+                if (read < 0) {
+                    throw new IOException("File shorter than its Content-Length");
+                }
+                stream.filePosition += read;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    private void startFrame() throws ProtocolException {
+        int length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8 | (frameHeader[2] & 0xff);
+        type = frameHeader[3] & 0xff;
+        flags = frameHeader[4] & 0xff;
+        streamId = ((frameHeader[5] & 0x7f) << 24) | (frameHeader[6] & 0xff) << 16
+            | (frameHeader[7] & 0xff) << 8 | (frameHeader[8] & 0xff);
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new ProtocolException("Frame exceeds " + DEFAULT_MAX_FRAME_SIZE + " bytes: " + length);
+        }
+        if (headerBlockStream != 0 && (type != CONTINUATION || streamId != headerBlockStream)) {
+            throw new ProtocolException("Expected CONTINUATION of stream " + headerBlockStream);
+        }
+        remaining = length;
+        payloadCount = 0;
+        if (type == DATA) {
+            if (streamId == 0) {
+                throw new ProtocolException("DATA on stream 0");
+            }
+            padding = (flags & PADDED) != 0 ? -1 : 0;
+            // the connection window is given back at once, the stream keeps what its subscriber does not want
+            unacknowledged += length;
+            if (unacknowledged >= CONNECTION_WINDOW / 2) {
+                writeWindowUpdate(0, unacknowledged);
+                unacknowledged = 0;
+            }
+            Stream stream = streams.get(streamId);
+            if (stream != null && stream.response == null) {
+                // RFC 9113 8.1, a stream error: only this stream is reset, its frame is skipped like a reset one
+                removeStream(stream);
+                writeRstStream(streamId, PROTOCOL_ERROR);
+                client.getRequestQueue().remove(stream.request);
+                client.fail(stream.request, new ProtocolException("DATA before HEADERS on stream " + streamId));
+            }
+        }
+    }
+
+    private void readData(ByteBuffer in) throws ProtocolException {
+        Stream stream = streams.get(streamId);
+        if (padding < 0) {
+            padding = in.get() & 0xff;
+            remaining--;
+            if (padding > remaining) {
+                throw new ProtocolException("Padding exceeds the DATA frame");
+            }
+            if (stream != null) {
+                consumed(stream, padding + 1);
+            }
+            return;
+        }
+        int n = Math.min(remaining - padding, in.remaining());
+        if (n > 0) {
+            if (stream == null || stream.response == null) {
+                // reset by us meanwhile
+                in.position(in.position() + n);
+            } else {
+                deliver(stream, in, n);
+            }
+            remaining -= n;
+        }
+        if (remaining == padding) {
+            int skip = Math.min(padding, in.remaining());
+            in.position(in.position() + skip);
+            remaining -= skip;
+            padding -= skip;
+        }
+    }
+
+    private void deliver(Stream stream, ByteBuffer in, int n) throws ProtocolException {
+        HttpResponse response = stream.response;
+        if (stream.pending.isEmpty() && response.isReady()) {
+            response.appendBody(in, n);
+            consumed(stream, n);
+            return;
+        }
+        // kept until the subscriber wants more, its window is not given back meanwhile
+        ByteBuffer copy = ByteBuffer.allocate(n);
+        int limit = in.limit();
+        in.limit(in.position() + n);
+        copy.put(in);
+        in.limit(limit);
+        copy.flip();
+        if (stream.pending.isEmpty()) {
+            blocked.add(stream);
+        }
+        stream.pending.offer(copy);
+    }
+
+    private void consumed(Stream stream, int n) {
+        stream.unacknowledged += n;
+        if (stream.unacknowledged >= STREAM_WINDOW / 2 && !stream.ended) {
+            writeWindowUpdate(stream.id, stream.unacknowledged);
+            stream.unacknowledged = 0;
+        }
+    }
+
+    private void endFrame() throws ProtocolException {
+        frameHeaderCount = 0;
+        switch (type) {
+            case DATA:
+                if ((flags & END_STREAM) != 0) {
+                    endStream(streams.get(streamId));
+                }
+                break;
+            case HEADERS:
+                headers();
+                break;
+            case CONTINUATION:
+                if (headerBlockStream == 0) {
+                    throw new ProtocolException("Unexpected CONTINUATION");
+                }
+                appendHeaderBlock(payload, 0, payloadCount);
+                if ((flags & END_HEADERS) != 0) {
+                    endOfHeaders();
+                }
+                break;
+            case RST_STREAM:
+                checkLength(4);
+                rstStream(streams.get(streamId), readInt(payload, 0));
+                break;
+            case SETTINGS:
+                settings();
+                break;
+            case PING:
+                checkLength(8);
+                if ((flags & ACK) == 0) {
+                    ByteBuffer buffer = bufferPool.acquire(FRAME_HEADER_LENGTH + 8);
+                    putFrameHeader(buffer, 8, PING, ACK, 0);
+                    buffer.put(payload, 0, 8);
+                    queueControl(buffer);
+                }
+                break;
+            case GOAWAY:
+                goAway();
+                break;
+            case WINDOW_UPDATE:
+                checkLength(4);
+                windowUpdate(readInt(payload, 0) & 0x7fffffff);
+                break;
+            case PUSH_PROMISE:
+                throw new ProtocolException("PUSH_PROMISE while push is disabled");
+            default:
+                // PRIORITY and unknown frames are ignored
+                break;
+        }
+    }
+
+    private void checkLength(int length) throws ProtocolException {
+        if (payloadCount != length) {
+            throw new ProtocolException("Illegal length of frame type " + type + ": " + payloadCount);
+        }
+    }
+
+    private void headers() throws ProtocolException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new ProtocolException("HEADERS on stream " + streamId);
+        }
+        int start = 0;
+        int end = payloadCount;
+        if ((flags & PADDED) != 0) {
+            end -= payloadCount > 0 ? payload[start++] & 0xff : 0;
+        }
+        if ((flags & PRIORITY) != 0) {
+            start += 5;
+        }
+        if (start > end) {
+            throw new ProtocolException("Illegal HEADERS padding");
+        }
+        headerBlockStream = streamId;
+        headerBlockEndStream = (flags & END_STREAM) != 0;
+        headerBlockLength = 0;
+        appendHeaderBlock(payload, start, end - start);
+        if ((flags & END_HEADERS) != 0) {
+            endOfHeaders();
+        }
+    }
+
+    private void appendHeaderBlock(byte[] bytes, int offset, int length) throws ProtocolException {
+        int needed = headerBlockLength + length;
+        if (needed > MAX_HEADER_BLOCK) {
+            throw new ProtocolException("Header block exceeds " + MAX_HEADER_BLOCK + " bytes");
+        }
+        if (needed > headerBlock.length) {
+            byte[] larger = new byte[Math.max(needed, headerBlock.length * 2)];
+            System.arraycopy(headerBlock, 0, larger, 0, headerBlockLength);
+            headerBlock = larger;
+        }
+        System.arraycopy(bytes, offset, headerBlock, headerBlockLength, length);
+        headerBlockLength = needed;
+    }
+
+    private void endOfHeaders() throws ProtocolException {
+        int id = headerBlockStream;
+        headerBlockStream = 0;
+        // decoded even for a stream reset by us, the dynamic table must stay in sync
+        List<Header> fields = hpackDecoder.decode(headerBlock, 0, headerBlockLength);
+        if (headerBlock.length > 4096) {
+            headerBlock = new byte[1024];
+        }
+        Stream stream = streams.get(id);
+        if (stream == null) {
+            return;
+        }
+        if (stream.response != null) {
+            // trailers
+            for (Header field : fields) {
+                stream.response.setTrailer(field.getName(), field.getValue());
+            }
+        } else {
+            String status = null;
+            for (Header field : fields) {
+                if (field.getName().equals(":status")) {
+                    status = field.getValue();
+                }
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Illegal :status of stream " + id + ": " + status);
+            }
+            if (code >= 100 && code < 200) {
+                // interim response, the final one follows
+                return;
+            }
+            open(stream, code, fields);
+        }
+        if (headerBlockEndStream) {
+            endStream(stream);
+        }
+    }
+
+    /**
+     * The head of the final response is decoded
+     */
+    private void open(Stream stream, int status, List<Header> fields) {
+        HttpResponse response = new HttpResponse(status);
+        response.setVersion(HttpMessage.HTTP_2_0);
+        for (Header field : fields) {
+            String name = field.getName();
+            if (name.startsWith(":")) {
+                continue;
+            }
+            response.setHeader(name, field.getValue());
+            if (name.equals("content-length")) {
+                try {
+                    response.setContentLength(Long.parseLong(field.getValue()));
+                } catch (NumberFormatException e) {
+                    // only a hint to size the body
+                }
+            }
+        }
+        if (response.getContentLength() > Integer.MAX_VALUE && stream.request.getBodySink() == null) {
+            // never kept
+            response.setContentLength(-1);
+        }
+        response.setDecoded(Decoded.BLANK);
+        stream.response = response;
+        TimedRequest request = stream.request;
+        request.setAnswered(true);
+        request.cancelPhase();
+        if (request.getBodySink() != null) {
+            response.setBodySink(request.getBodySink());
+            // the promise of a streamed request completes with the head
+            client.complete(request.getPromise(), response);
+        }
+    }
+
+    private void endStream(Stream stream) throws ProtocolException {
+        if (stream == null) {
+            return;
+        }
+        if (stream.response == null) {
+            throw new ProtocolException("Stream " + stream.id + " ended without a response");
+        }
+        stream.ended = true;
+        if (stream.pending.isEmpty()) {
+            complete(stream);
+        }
+    }
+
+    private void complete(Stream stream) {
+        removeStream(stream);
+        if (stream.bodyRemaining > 0) {
+            // answered before the end of its body, the rest is not sent
+            writeRstStream(stream.id, CANCEL);
+        }
+        TimedRequest request = stream.request;
+        HttpResponse response = stream.response;
+        response.setDecoded(Decoded.END);
+        client.getRequestQueue().remove(request);
+        request.cancelTimeouts();
+        if (request.getBodySink() != null) {
+            request.getBodySink().complete();
+        }
+        client.complete(request.getPromise(), response);
+    }
+
+    private void rstStream(Stream stream, int errorCode) {
+        if (stream == null) {
+            return;
+        }
+        removeStream(stream);
+        TimedRequest request = stream.request;
+        if (errorCode == REFUSED_STREAM && !request.isAnswered()) {
+            // not processed, sent again on a new stream
+            request.replay(false);
+            flushNeeded = true;
+            return;
+        }
+        if (errorCode == NO_ERROR && stream.response != null && stream.bodyRemaining > 0) {
+            // the server answered and does not want the rest of the body
+            stream.bodyRemaining = 0;
+            return;
+        }
+        client.getRequestQueue().remove(request);
+        IOException e = new IOException("Stream reset by the server, error code " + errorCode);
+        client.fail(request, e);
+    }
+
+    private void settings() throws ProtocolException {
+        if (streamId != 0 || payloadCount % 6 != 0) {
+            throw new ProtocolException("Illegal SETTINGS frame");
+        }
+        if ((flags & ACK) != 0) {
+            return;
+        }
+        for (int i = 0; i < payloadCount; i += 6) {
+            int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+            int value = readInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new ProtocolException("Illegal initial window size");
+                    }
+                    // applies to the open streams too
+                    int delta = value - initialWindow;
+                    initialWindow = value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new ProtocolException("Illegal max frame size: " + value);
+                    }
+                    maxFrameSize = value;
+                    break;
+                default:
+                    // the encoder uses no dynamic table, the other settings do not matter to a client
+                    break;
+            }
+        }
+        ByteBuffer buffer = bufferPool.acquire(FRAME_HEADER_LENGTH);
+        putFrameHeader(buffer, 0, SETTINGS, ACK, 0);
+        queueControl(buffer);
+    }
+
+    /**
+     * The server processes no stream after the last one, the later ones are sent again on a new connection
+     */
+    private void goAway() throws ProtocolException {
+        if (payloadCount < 8) {
+            throw new ProtocolException("Illegal GOAWAY frame");
+        }
+        int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+        logger.debug("GOAWAY from {}, last stream {}, error code {}", authority, lastStreamId, readInt(payload, 4));
+        draining = true;
+        Iterator<Stream> it = streams.values().iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            if (stream.id > lastStreamId) {
+                it.remove();
+                blocked.remove(stream);
+                closeFile(stream);
+                stream.request.replay(false);
+            }
+        }
+    }
+
+    private void windowUpdate(int increment) throws ProtocolException {
+        if (increment == 0) {
+            throw new ProtocolException("WINDOW_UPDATE with no increment");
+        }
+        if (streamId == 0) {
+            sendWindow += increment;
+            if (sendWindow > MAX_WINDOW) {
+                throw new ProtocolException("Connection window overflow");
+            }
+        } else {
+            Stream stream = streams.get(streamId);
+            if (stream != null) {
+                stream.sendWindow += increment;
+            }
+        }
+        flushNeeded = true;
+    }
+
+    private void removeStream(Stream stream) {
+        streams.remove(stream.id);
+        blocked.remove(stream);
+        closeFile(stream);
+    }
+
+    private void writeRstStream(int id, int errorCode) {
+        ByteBuffer buffer = bufferPool.acquire(FRAME_HEADER_LENGTH + 4);
+        putFrameHeader(buffer, 4, RST_STREAM, 0, id);
+        buffer.putInt(errorCode);
+        queueControl(buffer);
+    }
+
+    private void writeWindowUpdate(int id, int increment) {
+        ByteBuffer buffer = bufferPool.acquire(FRAME_HEADER_LENGTH + 4);
+        putFrameHeader(buffer, 4, WINDOW_UPDATE, 0, id);
+        buffer.putInt(increment);
+        queueControl(buffer);
+    }
+
+    private void queueControl(ByteBuffer buffer) {
+        buffer.flip();
+        client.getOutbound().add(buffer, (TimedRequest) null);
+        flushNeeded = true;
+    }
+
+    private static void closeFile(Stream stream) {
+        if (stream.file != null) {
+            try {
+                stream.file.close();
+            } catch (IOException e) {
+                // read only, nothing is lost
+            }
+            stream.file = null;
+        }
+    }
+
+    private static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+            | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * A request and its response on one stream
+     */
+    private static final class Stream {
+        final int id;
+        final TimedRequest request;
+
+        /**
+         * null until the head of the final response
+         */
+        HttpResponse response;
+
+        /**
+         * bytes the server accepts on this stream
+         */
+        long sendWindow;
+
+        /**
+         * body not queued yet, read from the bytes or the file
+         */
+        long bodyRemaining;
+        ByteBuffer bytes;
+        FileChannel file;
+        long filePosition;
+
+        /**
+         * body bytes received, not given back by a WINDOW_UPDATE yet
+         */
+        int unacknowledged;
+
+        /**
+         * body bytes waiting for the subscriber
+         */
+        final Deque<ByteBuffer> pending = new ArrayDeque<>();
+
+        /**
+         * END_STREAM received, the response completes once the pending bytes are delivered
+         */
+        boolean ended;
+
+        Stream(int id, TimedRequest request, int sendWindow) {
+            this.id = id;
+            this.request = request;
+            this.sendWindow = sendWindow;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.modraedlau.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Encoded segments waiting to be written to the channel, guarded by the lock of the client
+ *
+ * @author modraedlau
+ */
+class Outbound {
+    /**
+     * max buffers in one gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final SimpleHttpClient client;
+
+    private final BufferPool bufferPool;
+
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    Outbound(SimpleHttpClient client) {
+        this.client = client;
+        this.bufferPool = client.getBufferPool();
+    }
+
+    /**
+     * Queue a buffer borrowed from the pool, it is given back once written
+     *
+     * @param buffer  buffer ready to be read
+     * @param request the request this segment ends, null if more segments of the request follow
+     */
+    void add(ByteBuffer buffer, TimedRequest request) {
+        segments.offer(new Segment(buffer, true, null, 0, request, null));
+    }
+
+    /**
+     * Queue a segment of a streamed body, borrowed from the pool
+     *
+     * @param buffer  buffer ready to be read
+     * @param written called once the segment has been written
+     */
+    void add(ByteBuffer buffer, Runnable written) {
+        segments.offer(new Segment(buffer, true, null, 0, null, written));
+    }
+
+    /**
+     * Queue a body owned by the caller, it is not given back to the pool
+     *
+     * @param body    body ready to be read
+     * @param request the request this body ends
+     */
+    void addBody(ByteBuffer body, TimedRequest request) {
+        segments.offer(new Segment(body, false, null, 0, request, null));
+    }
+
+    /**
+     * Queue a file transferred to the channel without copying it through the heap, it is closed once written.
+     * Over TLS it is read in chunks to be encrypted.
+     *
+     * @param file    file channel at position 0
+     * @param length  bytes to transfer
+     * @param request the request this file ends
+     */
+    void addFile(FileChannel file, long length, TimedRequest request) {
+        segments.offer(new Segment(null, false, file, length, request, null));
+    }
+
+    /**
+     * Write as much as the socket accepts, the queued buffers are gathered into one write
+     *
+     * @param channel socket channel, or TLS over it
+     * @return true if everything has been written, false if the socket buffer is full
+     * @throws IOException io exception
+     */
+    boolean flush(GatheringByteChannel channel) throws IOException {
+        Segment head;
+        while ((head = segments.peek()) != null) {
+            if (head.file != null) {
+                long position = head.position;
+                boolean done = transfer(head, channel);
+                if (head.position > position) {
+                    client.transferred();
+                }
+                if (!done) {
+                    return false;
+                }
+                segments.poll();
+                written(head);
+                continue;
+            }
+            int length = 0;
+            for (Segment segment : segments) {
+                if (length == MAX_GATHER || segment.file != null) {
+                    break;
+                }
+                gather[length++] = segment.buffer;
+            }
+            try {
+                if (channel.write(gather, 0, length) > 0) {
+                    client.transferred();
+                }
+            } finally {
+                Arrays.fill(gather, 0, length, null);
+            }
+
+            int written = 0;
+            Segment segment;
+            while ((segment = segments.peek()) != null && segment.file == null && !segment.buffer.hasRemaining()) {
+                segments.poll();
+                written(segment);
+                written++;
+            }
+            if (written < length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Give back the buffers and close the files of the segments that will never be written
+     */
+    void release() {
+        Segment segment;
+        while ((segment = segments.poll()) != null) {
+            if (segment.pooled) {
+                bufferPool.release(segment.buffer);
+            }
+            closeFile(segment);
+        }
+    }
+
+    /**
+     * @return true if the whole file has been transferred
+     */
+    private static boolean transfer(Segment segment, WritableByteChannel channel) throws IOException {
+        while (segment.position < segment.end) {
+            long n = segment.file.transferTo(segment.position, segment.end - segment.position, channel);
+            if (n == 0) {
+                if (segment.position >= segment.file.size()) {
+                    throw new IOException("File shorter than its Content-Length");
+                }
+                // the socket buffer is full
+                return false;
+            }
+            segment.position += n;
+        }
+        return true;
+    }
+
+    private void written(Segment segment) {
+        if (segment.pooled) {
+            bufferPool.release(segment.buffer);
+        }
+        closeFile(segment);
+        if (segment.written != null) {
+            segment.written.run();
+        }
+        if (segment.request != null) {
+            client.written(segment.request);
+        }
+    }
+
+    private static void closeFile(Segment segment) {
+        if (segment.file != null) {
+            try {
+                segment.file.close();
+            } catch (IOException e) {
+                // read only, nothing is lost
+            }
+        }
+    }
+
+    private static final class Segment {
+        final ByteBuffer buffer;
+        final boolean pooled;
+        final FileChannel file;
+        final long end;
+        final TimedRequest request;
+        final Runnable written;
+        long position;
+
+        Segment(ByteBuffer buffer, boolean pooled, FileChannel file, long end, TimedRequest request,
+                Runnable written) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+            this.file = file;
+            this.end = end;
+            this.request = request;
+            this.written = written;
+        }
+    }
+}
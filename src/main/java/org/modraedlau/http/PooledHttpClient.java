@@ -0,0 +1,258 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HttpMethod;
+import org.modraedlau.http.message.HttpResponse;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled http client, keeps a pool of {@link SimpleHttpClient} connections per scheme/host/port
+ *
+ * @author modraedlau
+ */
+public class PooledHttpClient {
+    private static final int DEFAULT_PORT = 80;
+
+    private static final int DEFAULT_HTTPS_PORT = 443;
+
+    private static final int DEFAULT_MIN_CONNECTIONS = 0;
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static final long MAX_EVICT_INTERVAL = 1000;
+
+    private final EventLoopGroup group;
+
+    private final int minConnections;
+
+    private final int maxConnections;
+
+    private final long idleTimeout;
+
+    private final ConcurrentMap<String, HostPool> pools;
+
+    private final ScheduledFuture<?> evictor;
+
+    private volatile SSLContext sslContext;
+
+    private volatile ResponseCache cache;
+
+    public PooledHttpClient(EventLoop eventLoop) {
+        this(new EventLoopGroup(eventLoop));
+    }
+
+    public PooledHttpClient(EventLoopGroup group) {
+        this(group, DEFAULT_MIN_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param eventLoop      event loop the connections are registered to
+     * @param minConnections connections kept alive per host even when idle
+     * @param maxConnections max connections per host
+     * @param idleTimeout    milliseconds after which an idle connection is closed
+     */
+    public PooledHttpClient(EventLoop eventLoop, int minConnections, int maxConnections, long idleTimeout) {
+        this(new EventLoopGroup(eventLoop), minConnections, maxConnections, idleTimeout);
+    }
+
+    /**
+     * @param group          event loops the connections are spread over
+     * @param minConnections connections kept alive per host even when idle
+     * @param maxConnections max connections per host
+     * @param idleTimeout    milliseconds after which an idle connection is closed
+     */
+    public PooledHttpClient(EventLoopGroup group, int minConnections, int maxConnections, long idleTimeout) {
+        if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections) {
+            throw new IllegalArgumentException("Illegal pool size, min: " + minConnections + ", max: " + maxConnections);
+        }
+        this.group = group;
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        pools = new ConcurrentHashMap<>();
+
+        long interval = Math.max(1, Math.min(idleTimeout, MAX_EVICT_INTERVAL));
+        evictor = group.getScheduled().scheduleWithFixedDelay(() -> {
+            for (HostPool pool : pools.values()) {
+                pool.evict();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asynchronous GET
+     *
+     * @param url absolute url, e.g. http://www.baidu.com/more
+     * @return result future
+     */
+    public CompletableFuture<HttpResponse> get(String url) {
+        return get(url, null);
+    }
+
+    /**
+     * Blocking GET, meant for virtual threads: the caller parks on the response without pinning its carrier
+     *
+     * @param url absolute url
+     * @return response
+     * @throws IOException          if the request failed, or the cause wrapped, e.g. a timeout
+     * @throws InterruptedException if interrupted while waiting, the request is abandoned
+     */
+    public HttpResponse send(String url) throws IOException, InterruptedException {
+        return Blocking.await(get(url));
+    }
+
+    /**
+     * Asynchronous GET streaming the body to the subscriber, the connection is leased until the body ends
+     *
+     * @param url        absolute url
+     * @param subscriber body subscriber, null to keep the body in the response
+     * @return future completed with the status and headers when streaming
+     */
+    public CompletableFuture<HttpResponse> get(String url, BodySubscriber subscriber) {
+        return send(Request.get(url), subscriber);
+    }
+
+    /**
+     * Asynchronous request with any method, headers and body
+     *
+     * @param request request, its target is the absolute url
+     * @return result future
+     */
+    public CompletableFuture<HttpResponse> execute(Request request) {
+        return send(request, null);
+    }
+
+    /**
+     * Blocking request with any method, headers and body, see {@link #send(String)}
+     *
+     * @param request request, its target is the absolute url
+     * @return response
+     * @throws IOException          if the request failed, or the cause wrapped, e.g. a timeout
+     * @throws InterruptedException if interrupted while waiting, the request is abandoned
+     */
+    public HttpResponse send(Request request) throws IOException, InterruptedException {
+        return Blocking.await(execute(request));
+    }
+
+    private CompletableFuture<HttpResponse> send(Request request, BodySubscriber subscriber) {
+        URI uri = URI.create(request.getTarget());
+        String path = path(uri);
+        HostPool pool = pool(uri);
+        ResponseCache cache = this.cache;
+        if (cache == null) {
+            return send(pool, request.withTarget(path), subscriber);
+        }
+        String key = key(uri) + path;
+        if (request.getMethod() == HttpMethod.GET && request.getBody() == null && subscriber == null) {
+            return cache.get(key, request.getHeaders(), headers -> {
+                Request sent = new Request(HttpMethod.GET, path);
+                for (Header header : headers) {
+                    sent.header(header.getName(), header.getValue());
+                }
+                return send(pool, sent, null);
+            });
+        }
+        CompletableFuture<HttpResponse> future = send(pool, request.withTarget(path), subscriber);
+        if (ResponseCache.invalidates(request.getMethod())) {
+            future.thenAccept(response -> {
+                if (response.getStatus() < 400) {
+                    cache.invalidate(key);
+                }
+            });
+        }
+        return future;
+    }
+
+    private static CompletableFuture<HttpResponse> send(HostPool pool, Request request, BodySubscriber subscriber) {
+        CompletableFuture<HttpResponse> promise = new CompletableFuture<>();
+        pool.send(request, subscriber, promise);
+        return promise;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * The context of the https connections, shared so they resume the TLS sessions of each other.
+     * Set it before sending requests.
+     *
+     * @param sslContext context, null for {@link SSLContext#getDefault()}
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Serve the GET responses from the cache while they are fresh and revalidate them when stale, see
+     * {@link SimpleHttpClient#setCache(ResponseCache)}
+     *
+     * @param cache cache, null for none
+     */
+    public void setCache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Close all the connections
+     */
+    public void close() {
+        evictor.cancel(false);
+        for (HostPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+
+    /**
+     * Live connections to the host of the url
+     *
+     * @param url absolute url
+     * @return number of connections
+     */
+    public int connections(String url) {
+        HostPool pool = pools.get(key(URI.create(url)));
+        return pool == null ? 0 : pool.size();
+    }
+
+    /**
+     * Idle connections to the host of the url
+     *
+     * @param url absolute url
+     * @return number of idle connections
+     */
+    public int idleConnections(String url) {
+        HostPool pool = pools.get(key(URI.create(url)));
+        return pool == null ? 0 : pool.idleSize();
+    }
+
+    private HostPool pool(URI uri) {
+        return pools.computeIfAbsent(key(uri),
+            base -> new HostPool(base, group, minConnections, maxConnections, idleTimeout, sslContext));
+    }
+
+    private static String path(URI uri) {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        return uri.getRawQuery() == null ? path : path + "?" + uri.getRawQuery();
+    }
+
+    private static String key(URI uri) {
+        String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+        int port = uri.getPort() != -1 ? uri.getPort() : scheme.equals("https") ? DEFAULT_HTTPS_PORT : DEFAULT_PORT;
+        return scheme + "://" + uri.getHost().toLowerCase() + ":" + port;
+    }
+}
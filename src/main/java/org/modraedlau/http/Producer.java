@@ -1,17 +1,18 @@
 package org.modraedlau.http;
 
-import org.modraedlau.http.message.HttpRequest;
+import org.modraedlau.http.message.HttpRequestEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Queue;
 
 /**
- * Producer, writes the request in the queue to the channel
+ * Producer, encodes the requests in the queue and writes them to the channel
  *
  * @author modraedlau
  */
@@ -26,40 +27,95 @@ public class Producer implements Runnable {
 
     @Override
     public void run() {
-        SocketChannel channel = client.getSocketChannel();
-        ByteBuffer writeBuffer = client.getWriteBuffer();
-        Queue<HttpRequest> requestQueue = client.getRequestQueue();
+        BufferPool bufferPool = client.getBufferPool();
+        HttpRequestEncoder encoder = client.getEncoder();
+        Queue<TimedRequest> requestQueue = client.getRequestQueue();
 
-        // Waiting for a connected
-        if (!client.isConnected()) {
-            try {
-                client.waitConnected();
-            } catch (InterruptedException e) {
-                logger.error("Waiting for connection to be interrupted!", e);
-            }
-        }
-
-        // Take the request from the queue and write to the channel
+        // cleared before checking the connection, a connection completing later flushes the queue again
+        client.flushStarted();
         try {
-            // In order to reuse the writeBuffer,
-            // here the lock prevents the state of the writeBuffer from being incorrectly modified.
+            // Ensures that the requests are written in the order of the queue
             client.lock();
-            for (HttpRequest request : requestQueue) {
-                // Find a request that has not been written
-                if (request != null && !request.isWritten()) {
-                    writeBuffer.put(request.toString().getBytes(StandardCharsets.UTF_8));
-                    writeBuffer.flip();
+            Outbound outbound = client.getOutbound();
+            if (!client.isConnected()) {
+                // still connecting or replaced meanwhile, the queue is written once connected
+                if (!client.isChannelOpen()) {
+                    outbound.release();
+                }
+                return;
+            }
+            Http2Connection http2 = client.getHttp2();
+            int maxInFlight = http2 == null ? client.getMaxInFlight() : 0;
+            int inFlight = http2 == null ? 0 : http2.write(outbound);
+            // a body is being streamed, nothing can be written after it before its end
+            boolean uploading = false;
+            // HTTP/1.1 in the order of the queue, HTTP/2 opened its streams above
+            Iterator<TimedRequest> it = http2 == null ? requestQueue.iterator() : Collections.emptyIterator();
+            while (it.hasNext()) {
+                TimedRequest request = it.next();
+                if (request.isEncoded()) {
+                    inFlight++;
+                    uploading |= !request.isBodyQueued();
+                    continue;
+                }
+                if (request.getPromise().isDone()) {
+                    // expired before being sent
+                    it.remove();
+                    request.cancelTimeouts();
+                    continue;
+                }
+                if (uploading || inFlight >= maxInFlight) {
+                    // the rest is written when responses come back or the body ends
+                    break;
+                }
+                RequestBody body = request.getBody();
+                FileChannel file = null;
+                if (body instanceof RequestBody.File) {
                     try {
-                        channel.write(writeBuffer);
-                        request.setWritten(true);
+                        file = ((RequestBody.File) body).open();
                     } catch (IOException e) {
-                        logger.error("Error writing", e);
-
-                        // Close channel
-                        client.closeByException(e);
+                        it.remove();
+                        client.fail(request, e);
+                        continue;
                     }
-                    writeBuffer.clear();
                 }
+                // borrowed until the segment is written
+                ByteBuffer buffer = bufferPool.acquire(encoder.encodedLength(request));
+                encoder.encode(request, buffer);
+                buffer.flip();
+                client.encoded(request);
+                inFlight++;
+                if (body == null) {
+                    outbound.add(buffer, request);
+                    request.setBodyQueued(true);
+                } else if (body instanceof RequestBody.Bytes) {
+                    outbound.add(buffer, (TimedRequest) null);
+                    outbound.addBody(((RequestBody.Bytes) body).buffer(), request);
+                    request.setBodyQueued(true);
+                } else if (file != null) {
+                    outbound.add(buffer, (TimedRequest) null);
+                    outbound.addFile(file, body.length(), request);
+                    request.setBodyQueued(true);
+                } else {
+                    outbound.add(buffer, (TimedRequest) null);
+                    client.upload(request);
+                    uploading = true;
+                }
+            }
+            if (inFlight > client.getPeakInFlight()) {
+                client.setPeakInFlight(inFlight);
+            }
+            try {
+                // when the socket buffer is full, the rest is written once the selector finds it writable
+                client.setWritePending(!client.flushOutbound());
+            } catch (IOException e) {
+                logger.error("Error writing", e);
+
+                // Replay on a new connection what can be replayed
+                client.recover(e, false);
+            }
+            if (!client.isChannelOpen()) {
+                outbound.release();
             }
         } finally {
             client.unlock();
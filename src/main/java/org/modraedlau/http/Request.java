@@ -0,0 +1,99 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a request with any method, headers and a body, e.g.
+ * {@code Request.put("/files/a", RequestBody.ofFile(path)).header("Content-Type", "text/plain")}
+ *
+ * @author modraedlau
+ */
+public final class Request {
+    private final HttpMethod method;
+
+    private final String target;
+
+    private final List<Header> headers = new ArrayList<>();
+
+    private RequestBody body;
+
+    /**
+     * @param method method
+     * @param target path of a {@link SimpleHttpClient}, absolute url of a {@link PooledHttpClient}
+     */
+    public Request(HttpMethod method, String target) {
+        this.method = method;
+        this.target = target;
+    }
+
+    public static Request get(String target) {
+        return new Request(HttpMethod.GET, target);
+    }
+
+    public static Request head(String target) {
+        return new Request(HttpMethod.HEAD, target);
+    }
+
+    public static Request post(String target, RequestBody body) {
+        return new Request(HttpMethod.POST, target).body(body);
+    }
+
+    public static Request put(String target, RequestBody body) {
+        return new Request(HttpMethod.PUT, target).body(body);
+    }
+
+    public static Request delete(String target) {
+        return new Request(HttpMethod.DELETE, target);
+    }
+
+    /**
+     * Add a header. Host is set by the client unless given here, Content-Length and Transfer-Encoding
+     * always follow the body
+     *
+     * @param name  name
+     * @param value value
+     * @return this request
+     */
+    public Request header(String name, String value) {
+        headers.add(new Header(name, value));
+        return this;
+    }
+
+    /**
+     * @param body body, null for none
+     * @return this request
+     */
+    public Request body(RequestBody body) {
+        this.body = body;
+        return this;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public List<Header> getHeaders() {
+        return headers;
+    }
+
+    public RequestBody getBody() {
+        return body;
+    }
+
+    /**
+     * The same request sent to another target, e.g. the path of an absolute url
+     */
+    Request withTarget(String target) {
+        Request request = new Request(method, target).body(body);
+        request.headers.addAll(headers);
+        return request;
+    }
+}
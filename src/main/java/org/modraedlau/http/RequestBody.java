@@ -0,0 +1,129 @@
+package org.modraedlau.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Body of a request. The bytes are written as they are, a file is transferred by the kernel
+ * and a publisher is streamed, none of them is copied into the heap first.
+ *
+ * @author modraedlau
+ */
+public abstract class RequestBody {
+
+    /**
+     * @return length in bytes, -1 if unknown, the body is then sent chunked
+     */
+    public abstract long length();
+
+    /**
+     * @return true if the body can be sent again when the connection is lost
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * @param bytes body, not copied, it must not be modified until the request completes
+     * @return body
+     */
+    public static RequestBody of(byte[] bytes) {
+        return of(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param buffer body from its position to its limit, not consumed, it must not be modified until
+     *               the request completes
+     * @return body
+     */
+    public static RequestBody of(ByteBuffer buffer) {
+        return new Bytes(buffer.slice());
+    }
+
+    /**
+     * The file is opened when the request is written and sent with {@link FileChannel#transferTo}
+     *
+     * @param file regular file, its length must not change until the request completes
+     * @return body
+     * @throws IOException if the length can not be read
+     */
+    public static RequestBody ofFile(Path file) throws IOException {
+        return new File(file, Files.size(file));
+    }
+
+    /**
+     * @param publisher publisher, subscribed once when the request is written
+     * @param length    exact length in bytes, -1 to send the body chunked
+     * @return body, it can not be sent again once subscribed
+     */
+    public static RequestBody ofPublisher(BodyPublisher publisher, long length) {
+        return new Streamed(publisher, length);
+    }
+
+    static final class Bytes extends RequestBody {
+        private final ByteBuffer buffer;
+
+        private Bytes(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long length() {
+            return buffer.remaining();
+        }
+
+        /**
+         * @return a view ready to be written, each attempt has its own position
+         */
+        ByteBuffer buffer() {
+            return buffer.duplicate();
+        }
+    }
+
+    static final class File extends RequestBody {
+        private final Path path;
+        private final long length;
+
+        private File(Path path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        FileChannel open() throws IOException {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+    }
+
+    static final class Streamed extends RequestBody {
+        private final BodyPublisher publisher;
+        private final long length;
+
+        private Streamed(BodyPublisher publisher, long length) {
+            this.publisher = publisher;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        BodyPublisher publisher() {
+            return publisher;
+        }
+    }
+}
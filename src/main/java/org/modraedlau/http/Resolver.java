@@ -0,0 +1,22 @@
+package org.modraedlau.http;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves host names without blocking the caller
+ *
+ * @author modraedlau
+ */
+public interface Resolver {
+
+    /**
+     * Resolve the host
+     *
+     * @param host host name or literal address
+     * @return future of the addresses in the order they are tried, never empty,
+     * completed with an {@link java.net.UnknownHostException} if the host is unknown
+     */
+    CompletableFuture<List<InetAddress>> resolve(String host);
+}
@@ -0,0 +1,582 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.Decoded;
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HttpMethod;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Private cache of GET responses (RFC 9111), it can be shared by many clients.
+ * A response is stored as its Cache-Control or Expires allow and served while it is fresh, a stale one is
+ * revalidated with If-None-Match or If-Modified-Since and served again when the server answers 304 Not Modified.
+ * The bodies are kept in memory, the least recently used responses are evicted beyond the size limit.
+ *
+ * @author modraedlau
+ */
+public class ResponseCache {
+    private static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * a response larger than this part of the cache is not stored, so one body does not flush all the others
+     */
+    private static final int MAX_ENTRY_PART = 8;
+
+    /**
+     * bytes counted for an entry besides its body and headers
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * without explicit freshness a response with Last-Modified is fresh for a tenth of its age, at most a day
+     */
+    private static final int HEURISTIC_FRACTION = 10;
+    private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    private static final int NOT_MODIFIED = 304;
+
+    private final long maxSize;
+
+    /**
+     * entries by url in access order, guarded by the lock
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * bytes of the entries, guarded by the lock
+     */
+    private long size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder revalidated = new LongAdder();
+
+    public ResponseCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize bytes of bodies and headers kept, 32MB by default
+     */
+    public ResponseCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Illegal cache size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * GET through the cache: a fresh response is served without a request, a stale one is revalidated
+     *
+     * @param key     absolute url
+     * @param headers headers of the request, null for none
+     * @param network sends the request with the given headers
+     * @return result future
+     */
+    CompletableFuture<HttpResponse> get(String key, List<Header> headers,
+                                        Function<List<Header>, CompletableFuture<HttpResponse>> network) {
+        Map<String, String> directives = directives(headers, Header.CACHE_CONTROL);
+        if (directives.containsKey("no-store") || isConditional(headers)) {
+            // the caller deals with the server itself
+            return network.apply(headers);
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = lookup(key);
+        if (entry != null && !entry.matches(headers)) {
+            entry = null;
+        }
+        if (entry != null && entry.isFresh(now, directives, headers)) {
+            hits.increment();
+            return CompletableFuture.completedFuture(entry.toResponse(now));
+        }
+        misses.increment();
+        List<Header> sent = headers;
+        Entry stale = entry != null && entry.hasValidator() ? entry : null;
+        if (stale != null) {
+            sent = headers == null ? new ArrayList<>(2) : new ArrayList<>(headers);
+            if (stale.etag != null) {
+                sent.add(new Header(Header.IF_NONE_MATCH, stale.etag));
+            }
+            if (stale.lastModified != null) {
+                sent.add(new Header(Header.IF_MODIFIED_SINCE, stale.lastModified));
+            }
+        }
+        CompletableFuture<HttpResponse> request = network.apply(sent);
+        CompletableFuture<HttpResponse> result = request.thenApply(response -> {
+            long responseTime = System.currentTimeMillis();
+            if (stale != null && response.getStatus() == NOT_MODIFIED) {
+                revalidated.increment();
+                Entry updated = stale.update(response, now, responseTime);
+                put(key, updated);
+                return updated.toResponse(responseTime);
+            }
+            store(key, headers, response, now, responseTime);
+            return response;
+        });
+        // a caller giving up abandons the request
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                request.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forget the response of the url, e.g. after a successful unsafe request to it
+     *
+     * @param key absolute url
+     */
+    void invalidate(String key) {
+        try {
+            lock.lock();
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if a successful response to the method invalidates the cached one of its url
+     */
+    static boolean invalidates(HttpMethod method) {
+        return method == HttpMethod.POST || method == HttpMethod.PUT || method == HttpMethod.DELETE
+            || method == HttpMethod.PATCH;
+    }
+
+    /**
+     * Remove every response
+     */
+    public void clear() {
+        try {
+            lock.lock();
+            entries.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes of the stored responses
+     */
+    public long size() {
+        try {
+            lock.lock();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of stored responses
+     */
+    public int count() {
+        try {
+            lock.lock();
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return requests answered from the cache without going to the server
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return requests sent to the server, the revalidations included
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return revalidations the server answered with 304 Not Modified
+     */
+    public long getRevalidated() {
+        return revalidated.sum();
+    }
+
+    private Entry lookup(String key) {
+        try {
+            lock.lock();
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(String key, List<Header> headers, HttpResponse response, long requestTime,
+                       long responseTime) {
+        Entry entry = response.isStreamed() ? null : Entry.of(response, headers, requestTime, responseTime);
+        if (entry == null || entry.size > maxSize / MAX_ENTRY_PART) {
+            invalidate(key);
+        } else {
+            put(key, entry);
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        try {
+            lock.lock();
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entry.size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                size -= eldest.next().size;
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isConditional(List<Header> headers) {
+        if (headers != null) {
+            for (Header header : headers) {
+                String name = header.getName();
+                if (name.regionMatches(true, 0, "If-", 0, 3) || name.equalsIgnoreCase("Range")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the directives of the Cache-Control fields, lower case names, null for a directive without value
+     */
+    private static Map<String, String> directives(List<Header> headers, String name) {
+        Map<String, String> directives = Collections.emptyMap();
+        if (headers == null) {
+            return directives;
+        }
+        for (Header header : headers) {
+            if (!header.getName().equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (String directive : header.getValue().split(",")) {
+                directive = directive.trim();
+                if (directive.isEmpty()) {
+                    continue;
+                }
+                if (directives.isEmpty()) {
+                    directives = new HashMap<>();
+                }
+                int equals = directive.indexOf('=');
+                if (equals < 0) {
+                    directives.put(directive.toLowerCase(), null);
+                } else {
+                    directives.put(directive.substring(0, equals).trim().toLowerCase(),
+                        directive.substring(equals + 1).trim().replace("\"", ""));
+                }
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * @return all the values of the name joined, null if absent
+     */
+    private static String value(List<Header> headers, String name) {
+        String value = null;
+        if (headers != null) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    value = value == null ? header.getValue() : value + ", " + header.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return seconds of the directive in milliseconds, -1 if absent or invalid
+     */
+    private static long seconds(Map<String, String> directives, String name) {
+        return seconds(directives.get(name));
+    }
+
+    /**
+     * @return delta-seconds in milliseconds, -1 if absent or invalid
+     */
+    private static long seconds(String value) {
+        if (value != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return milliseconds since the epoch of an HTTP-date, -1 if absent or invalid
+     */
+    private static long date(String value) {
+        if (value != null) {
+            try {
+                return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+            } catch (DateTimeException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A stored response, immutable, every hit gets its own copy
+     */
+    private static final class Entry {
+        private final int status;
+        private final String version;
+        private final List<Header> headers;
+        private final byte[] body;
+        private final long contentLength;
+
+        /**
+         * names of the Vary header and the values the request had for them, null if absent
+         */
+        private final String[] vary;
+        private final String[] varied;
+
+        private final String etag;
+        private final String lastModified;
+
+        /**
+         * milliseconds, see RFC 9111 4.2
+         */
+        private final long responseTime;
+        private final long initialAge;
+        private final long lifetime;
+
+        /**
+         * revalidated before every use
+         */
+        private final boolean noCache;
+
+        private final int size;
+
+        private Entry(int status, String version, List<Header> headers, byte[] body, long contentLength,
+                      String[] vary, String[] varied, long requestTime, long responseTime) {
+            this.status = status;
+            this.version = version;
+            this.headers = headers;
+            this.body = body;
+            this.contentLength = contentLength;
+            this.vary = vary;
+            this.varied = varied;
+            this.etag = value(headers, Header.ETAG);
+            this.lastModified = value(headers, Header.LAST_MODIFIED);
+            this.responseTime = responseTime;
+
+            Map<String, String> directives = directives(headers, Header.CACHE_CONTROL);
+            this.noCache = directives.containsKey("no-cache")
+                || !directives.containsKey("max-age") && "no-cache".equalsIgnoreCase(value(headers, Header.PRAGMA));
+            long date = date(value(headers, Header.DATE));
+            if (date < 0) {
+                date = responseTime;
+            }
+            long age = seconds(value(headers, Header.AGE));
+            this.initialAge = Math.max(Math.max(0, responseTime - date), Math.max(0, age) + responseTime - requestTime);
+            this.lifetime = lifetime(directives, date);
+
+            int size = ENTRY_OVERHEAD + body.length;
+            for (Header header : headers) {
+                size += 2 * (header.getName().length() + header.getValue().length());
+            }
+            this.size = size;
+        }
+
+        /**
+         * @return the entry of the response, null if it can not be stored
+         */
+        static Entry of(HttpResponse response, List<Header> requestHeaders, long requestTime, long responseTime) {
+            int status = response.getStatus();
+            if (status < 200 || status == 206 || status == NOT_MODIFIED) {
+                return null;
+            }
+            List<Header> headers = new ArrayList<>(response.getHeaders());
+            Map<String, String> directives = directives(headers, Header.CACHE_CONTROL);
+            if (directives.containsKey("no-store")) {
+                return null;
+            }
+            String[] vary = null;
+            String[] varied = null;
+            String varyValue = value(headers, Header.VARY);
+            if (varyValue != null) {
+                if (varyValue.trim().equals("*")) {
+                    return null;
+                }
+                vary = varyValue.split(",");
+                varied = new String[vary.length];
+                for (int i = 0; i < vary.length; i++) {
+                    vary[i] = vary[i].trim();
+                    varied[i] = value(requestHeaders, vary[i]);
+                }
+            }
+            Entry entry = new Entry(status, response.getVersion(), headers, response.getBodyBytes(),
+                response.getContentLength(), vary, varied, requestTime, responseTime);
+            if (entry.lifetime <= 0 && !entry.hasValidator()) {
+                // could never be used
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+         * @return this response with the fields of a 304 Not Modified, fresh again
+         */
+        Entry update(HttpResponse notModified, long requestTime, long responseTime) {
+            List<Header> headers = new ArrayList<>(this.headers.size());
+            for (Header header : this.headers) {
+                if (!notModified.headers().contains(header.getName())) {
+                    headers.add(header);
+                }
+            }
+            for (Header header : notModified.getHeaders()) {
+                if (!header.getName().equalsIgnoreCase(Header.CONTENT_LENGTH)
+                    && !header.getName().equalsIgnoreCase(Header.TRANSFER_ENCODING)) {
+                    headers.add(header);
+                }
+            }
+            return new Entry(status, version, headers, body, contentLength, vary, varied, requestTime, responseTime);
+        }
+
+        private long lifetime(Map<String, String> directives, long date) {
+            long maxAge = seconds(directives, "max-age");
+            if (maxAge >= 0) {
+                return maxAge;
+            }
+            String expires = value(headers, Header.EXPIRES);
+            if (expires != null) {
+                // an invalid date is in the past
+                long time = date(expires);
+                return time < 0 ? 0 : time - date;
+            }
+            long modified = date(lastModified);
+            if (modified >= 0 && modified < date && isHeuristic(status)) {
+                return Math.min((date - modified) / HEURISTIC_FRACTION, MAX_HEURISTIC_LIFETIME);
+            }
+            return 0;
+        }
+
+        /**
+         * @return true for the statuses that may be cached without explicit freshness, RFC 9110 15.1
+         */
+        private static boolean isHeuristic(int status) {
+            switch (status) {
+                case 200:
+                case 203:
+                case 204:
+                case 300:
+                case 301:
+                case 308:
+                case 404:
+                case 405:
+                case 410:
+                case 414:
+                case 501:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * @return true if the request has the same values for the headers named by Vary
+         */
+        boolean matches(List<Header> requestHeaders) {
+            if (vary != null) {
+                for (int i = 0; i < vary.length; i++) {
+                    String value = value(requestHeaders, vary[i]);
+                    if (value == null ? varied[i] != null : !value.equals(varied[i])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private long age(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        boolean isFresh(long now, Map<String, String> requestDirectives, List<Header> requestHeaders) {
+            if (noCache || requestDirectives.containsKey("no-cache")
+                || requestDirectives.isEmpty() && "no-cache".equalsIgnoreCase(value(requestHeaders, Header.PRAGMA))) {
+                return false;
+            }
+            long age = age(now);
+            long maxAge = seconds(requestDirectives, "max-age");
+            if (maxAge >= 0 && age > maxAge) {
+                return false;
+            }
+            return age < lifetime;
+        }
+
+        HttpResponse toResponse(long now) {
+            HttpResponse response = new HttpResponse(status);
+            response.setVersion(version);
+            for (Header header : headers) {
+                if (!header.getName().equalsIgnoreCase(Header.AGE)) {
+                    response.setHeader(header.getName(), header.getValue());
+                }
+            }
+            response.setHeader(Header.AGE, Long.toString(TimeUnit.MILLISECONDS.toSeconds(age(now))));
+            // the body array is allocated once
+            response.setContentLength(body.length);
+            try {
+                response.appendBody(ByteBuffer.wrap(body), body.length);
+            } catch (ProtocolException e) {
+                // not decompressed again, it never happens
+                throw new IllegalStateException(e);
+            }
+            response.setContentLength(contentLength);
+            response.setDecoded(Decoded.END);
+            return response;
+        }
+    }
+}
@@ -1,23 +1,38 @@
 package org.modraedlau.http;
 
+import org.modraedlau.http.message.BodySink;
+import org.modraedlau.http.message.Header;
 import org.modraedlau.http.message.HttpMethod;
-import org.modraedlau.http.message.HttpRequest;
+import org.modraedlau.http.message.HttpRequestEncoder;
 import org.modraedlau.http.message.HttpResponse;
 import org.modraedlau.http.message.HttpResponseDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.misc.Unsafe;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -30,14 +45,61 @@ public class SimpleHttpClient {
 
     private static final int DEFAULT_PORT = 80;
 
-    private static final long DEFAULT_TIMEOUT = 10000;
+    private static final int DEFAULT_HTTPS_PORT = 443;
+
+    /**
+     * ALPN protocol ids
+     */
+    private static final String H2 = "h2";
+    private static final String HTTP_1_1 = "http/1.1";
+
+    private static final long DEFAULT_REQUEST_TIMEOUT = 10000;
+
+    /**
+     * the next address of the host is tried when one has not connected after this, without a connect timeout,
+     * the connection attempt delay of RFC 8305
+     */
+    private static final long CONNECT_ATTEMPT_DELAY = 250;
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /**
+     * times a request is sent again after the connection was lost by an error
+     */
+    private static final int MAX_REPLAYS = 2;
+
+    /**
+     * an idle connection is closed this long before the Keep-Alive timeout of the server
+     */
+    private static final long KEEP_ALIVE_MARGIN = 1000;
+
+    private static final String ACCEPT_GZIP_DEFLATE = "gzip, deflate";
 
     private final URI uri;
 
-    private final SocketChannel socketChannel;
+    /**
+     * https, every connection starts with a TLS handshake
+     */
+    private final boolean secure;
+
+    private volatile SSLContext sslContext;
+
+    /**
+     * TLS of the current connection, null until the socket is connected or for http, guarded by the lock
+     */
+    private volatile TlsChannel tls;
+
+    private final LongAdder handshakes = new LongAdder();
+
+    private final LongAdder resumedHandshakes = new LongAdder();
+
+    /**
+     * replaced by a new channel when the requests are replayed
+     */
+    private volatile SocketChannel socketChannel;
 
     /**
-     * connection state
+     * connection state, the requests sent while connecting wait in the queue
      */
     private volatile int connection;
 
@@ -45,39 +107,185 @@ public class SimpleHttpClient {
     private static final int CONNECTING = 1;
     private static final int CONNECTED = 2;
 
-    private volatile WaitNode waiters;
+    private static final AtomicIntegerFieldUpdater<SimpleHttpClient> CONNECTION =
+        AtomicIntegerFieldUpdater.newUpdater(SimpleHttpClient.class, "connection");
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * read buffer, borrowed from the buffer pool while there are bytes to decode, guarded by the lock
+     */
+    private ByteBuffer readBuffer;
+
+    private final BufferPool bufferPool;
 
     /**
-     * read buffer
+     * segments waiting to be written, guarded by the lock
      */
-    private final ByteBuffer readBuffer;
+    private final Outbound outbound;
 
     /**
-     * write buffer
+     * the socket buffer was full, waiting for OP_WRITE
      */
-    private final ByteBuffer writeBuffer;
+    private volatile boolean writePending;
 
     /**
      * request queue
      */
-    private final Queue<HttpRequest> requestQueue;
+    private final Queue<TimedRequest> requestQueue;
+
+    /**
+     * max requests written and not answered yet on the connection
+     */
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * highest number of requests in flight, written by the producer with the lock held
+     */
+    private volatile int peakInFlight;
+
+    private final LongAdder replayed = new LongAdder();
+
+    /**
+     * deadlines in milliseconds, 0 for none
+     */
+    private volatile long connectTimeout;
+    private volatile long writeTimeout;
+    private volatile long responseTimeout;
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+    private volatile TimingWheel.Timeout connectDeadline;
+
+    /**
+     * deadline of the connection to the current address, when there is a next one to try
+     */
+    private volatile TimingWheel.Timeout attemptDeadline;
+
+    /**
+     * milliseconds after which an idle connection is closed, 0 to keep it until the server closes it
+     */
+    private volatile long idleTimeout;
+
+    /**
+     * from the Keep-Alive header of the server, -1 if unknown
+     */
+    private volatile long serverKeepAlive = -1;
+
+    private volatile TimingWheel.Timeout idleDeadline;
+
+    /**
+     * nanoTime of the last byte read or written, keeps a streamed body within the request timeout alive
+     */
+    private volatile long lastTransfer;
+
+    private volatile Resolver resolver = DefaultResolver.getDefault();
+
+    /**
+     * addresses of the host and the one being connected to
+     */
+    private volatile List<InetAddress> addresses;
+    private volatile int addressIndex;
+
+    /**
+     * closed by the user, it will never connect again
+     */
+    private volatile boolean closed;
+
+    /**
+     * the server closed its side, nothing more can be read
+     */
+    private volatile boolean inputShutdown;
+
+    private volatile EventLoop eventLoop;
 
     private volatile ExecutorService executor;
 
-    private volatile ScheduledExecutorService scheduled;
+    /**
+     * read, decode and write on the selector thread
+     */
+    private volatile boolean inline;
+
+    private volatile Executor callbackExecutor;
+
+    private final Producer producer;
+
+    /**
+     * a producer is scheduled and has not started encoding yet
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Consumer consumer;
+
+    private volatile SelectionKey selectionKey;
+
+    /**
+     * reading stopped because a body subscriber has no demand
+     */
+    private volatile boolean readPaused;
+
+    private final Runnable interestUpdater;
+
+    private final Runnable readResumer;
+
+    private final Runnable bufferedReader;
+
+    /**
+     * the buffered reader is scheduled, guarded by the lock
+     */
+    private boolean bufferedReadScheduled;
 
     private final HttpResponseDecoder decoder;
 
+    private final HttpRequestEncoder encoder;
+
+    /**
+     * ask for gzip or deflate bodies and decompress them
+     */
+    private volatile boolean decompression;
+
+    /**
+     * GET responses are served from it while fresh, null to always go to the server
+     */
+    private volatile ResponseCache cache;
+
+    /**
+     * identical GETs in flight share one request
+     */
+    private volatile boolean coalescing;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * speak HTTP/2, with prior knowledge for http or if the server selects it with ALPN for https
+     */
+    private volatile boolean http2Enabled;
+
+    /**
+     * HTTP/2 state of the current connection, null when speaking HTTP/1.1
+     */
+    private volatile Http2Connection http2;
+
     /**
      * exclusive lock
      */
-    private final Lock lock;
+    private final ReentrantLock lock;
 
     public SimpleHttpClient(String url) throws IOException {
-        this.uri = URI.create(url);
+        this(url, BufferPool.getDefault());
+    }
 
-        readBuffer = ByteBuffer.allocateDirect(10 * 1024);
-        writeBuffer = ByteBuffer.allocateDirect(1024);
+    /**
+     * @param url        base url, e.g. http://www.baidu.com or https://www.baidu.com
+     * @param bufferPool pool the read and write buffers are borrowed from
+     */
+    public SimpleHttpClient(String url, BufferPool bufferPool) throws IOException {
+        this.uri = URI.create(url);
+        this.secure = "https".equalsIgnoreCase(uri.getScheme());
+        if (!secure && !"http".equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("Unsupported scheme: " + url);
+        }
+        this.bufferPool = bufferPool;
+        this.outbound = new Outbound(this);
 
         requestQueue = new ConcurrentLinkedQueue<>();
 
@@ -85,8 +293,32 @@ public class SimpleHttpClient {
         socketChannel.configureBlocking(false);
 
         decoder = new HttpResponseDecoder();
+        // no port in the Host header for the default one of the scheme
+        encoder = new HttpRequestEncoder(uri.getHost(), uri.getPort() == defaultPort() ? -1 : uri.getPort());
 
         lock = new ReentrantLock();
+
+        producer = new Producer(this);
+        consumer = new Consumer(this);
+        decoder.setHeadersListener(consumer);
+        interestUpdater = this::updateInterest;
+        readResumer = () -> {
+            updateInterest();
+            if (!readPaused) {
+                dispatchConsumer();
+            }
+        };
+        bufferedReader = () -> {
+            try {
+                lock.lock();
+                bufferedReadScheduled = false;
+                executeConsumer();
+            } catch (IOException e) {
+                recover(e, false);
+            } finally {
+                lock.unlock();
+            }
+        };
     }
 
     /**
@@ -96,235 +328,1430 @@ public class SimpleHttpClient {
      * @return result future
      */
     public CompletableFuture<HttpResponse> get(String path) {
+        return enqueue(HttpMethod.GET, path, null, null, null);
+    }
+
+    /**
+     * Asynchronous request with any method, headers and body
+     *
+     * @param request request, its target is the path
+     * @return result future
+     */
+    public CompletableFuture<HttpResponse> execute(Request request) {
+        return enqueue(request.getMethod(), request.getTarget(), request.getHeaders(), request.getBody(), null);
+    }
+
+    /**
+     * Blocking request with any method, headers and body, see {@link #send(String)}
+     *
+     * @param request request, its target is the path
+     * @return response
+     * @throws IOException          if the request failed, or the cause wrapped, e.g. a timeout
+     * @throws InterruptedException if interrupted while waiting, the request is abandoned
+     */
+    public HttpResponse send(Request request) throws IOException, InterruptedException {
+        return Blocking.await(execute(request));
+    }
+
+    /**
+     * Blocking GET, meant for virtual threads: the caller parks on the response without pinning its carrier
+     *
+     * @param path request path
+     * @return response
+     * @throws IOException          if the request failed, or the cause wrapped, e.g. a timeout
+     * @throws InterruptedException if interrupted while waiting, the request is abandoned
+     */
+    public HttpResponse send(String path) throws IOException, InterruptedException {
+        return Blocking.await(get(path));
+    }
+
+    /**
+     * Asynchronous GET streaming the body to the subscriber, reading stops while it has no demand
+     *
+     * @param path       request path
+     * @param subscriber body subscriber
+     * @return future completed with the status and headers, the body is not kept in the response
+     */
+    public CompletableFuture<HttpResponse> get(String path, BodySubscriber subscriber) {
+        return enqueue(HttpMethod.GET, path, null, null, new StreamSubscription(this, subscriber));
+    }
+
+    /**
+     * Asynchronous GET writing the body to a file without keeping it in memory.
+     * The file is written only for a 2xx response, it is deleted if the body can not be read to the end.
+     * The request timeout does not cut a body still coming, only one stalled for as long.
+     *
+     * @param path   request path
+     * @param target file, created or truncated
+     * @return future completed with the status and headers once the file is closed
+     */
+    public CompletableFuture<HttpResponse> download(String path, Path target) {
+        FileSink sink = new FileSink(this, target);
+        enqueue(HttpMethod.GET, path, null, null, sink).whenComplete((response, e) -> {
+            if (e != null) {
+                // failed before the head
+                sink.error(e);
+            }
+        });
+        return sink.getDone();
+    }
+
+    private CompletableFuture<HttpResponse> enqueue(HttpMethod method, String path, List<Header> headers,
+                                                    RequestBody body, BodySink bodySink) {
+        ResponseCache cache = this.cache;
+        if (method == HttpMethod.GET && body == null && bodySink == null) {
+            return cache == null ? fetch(path, headers) : cache.get(cacheKey(path), headers, sent -> fetch(path, sent));
+        }
+        CompletableFuture<HttpResponse> future = submit(method, path, headers, body, bodySink);
+        if (cache != null && ResponseCache.invalidates(method)) {
+            future.thenAccept(response -> {
+                if (response.getStatus() < 400) {
+                    cache.invalidate(cacheKey(path));
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * GET with the body kept in the response, shared with the identical ones in flight when coalescing
+     */
+    private CompletableFuture<HttpResponse> fetch(String path, List<Header> headers) {
+        if (coalescing) {
+            return singleFlight.get(path, headers, () -> submit(HttpMethod.GET, path, headers, null, null));
+        }
+        return submit(HttpMethod.GET, path, headers, null, null);
+    }
+
+    private CompletableFuture<HttpResponse> submit(HttpMethod method, String path, List<Header> headers,
+                                                   RequestBody body, BodySink bodySink) {
         CompletableFuture<HttpResponse> promise = new CompletableFuture<>();
-        scheduled.schedule(() -> {
-            TimeoutException timeoutException = new TimeoutException("Request time out: " + DEFAULT_TIMEOUT + "ms");
-            promise.completeExceptionally(timeoutException);
-            closeByException(timeoutException);
-        }, DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        TimedRequest request = new TimedRequest(method, path, promise, bodySink, body);
+        if (headers != null) {
+            for (Header header : headers) {
+                if (!header.getName().equalsIgnoreCase(Header.CONTENT_LENGTH)
+                    && !header.getName().equalsIgnoreCase(Header.TRANSFER_ENCODING)) {
+                    request.setHeader(header.getName(), header.getValue());
+                }
+            }
+        }
+        if (decompression && !http2Enabled && !request.headers().contains(Header.ACCEPT_ENCODING)) {
+            request.setHeader(Header.ACCEPT_ENCODING, ACCEPT_GZIP_DEFLATE);
+        }
+        // the framing always follows the body
+        if (body != null && body.length() < 0) {
+            request.setHeader(Header.TRANSFER_ENCODING, Header.CHUNKED);
+        } else if (body != null || method.expectsBody()) {
+            request.setHeader(Header.CONTENT_LENGTH, body == null ? "0" : Long.toString(body.length()));
+        }
+        cancelIdle();
+        // queued before checking the connection, so a connection closed meanwhile is connected again for it
+        requestQueue.offer(request);
         try {
             checkConnection();
-        } catch (IOException e) {
+        } catch (IOException | UnresolvedAddressException e) {
+            requestQueue.remove(request);
+            if (bodySink != null) {
+                bodySink.error(e);
+            }
             promise.completeExceptionally(e);
             return promise;
         }
-        HttpRequest request = new HttpRequest(HttpMethod.GET, path, promise);
-        requestQueue.offer(request);
-        executor.execute(new Producer(this));
+        long requestTimeout = this.requestTimeout;
+        if (requestTimeout > 0) {
+            armTotal(request, requestTimeout, requestTimeout);
+        }
+        scheduleFlush();
         return promise;
     }
 
     /**
-     * Check the connection status, connect if not connected
+     * Check the connection status, connect if not connected, with a new channel if the previous one was closed
      *
      * @throws IOException io exception
      */
     private void checkConnection() throws IOException {
-        if (connection == DISCONNCTED) {
-            connectingState();
-            socketChannel.connect(new InetSocketAddress(this.uri.getHost(),
-                this.uri.getPort() == -1 ? DEFAULT_PORT : this.uri.getPort()));
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (connection == DISCONNCTED && connectingState()) {
+            // resolving and every address tried count
+            armConnectTimeout();
+            SocketChannel channel = socketChannel;
+            try {
+                if (!channel.isOpen()) {
+                    channel = reopen();
+                }
+                CompletableFuture<List<InetAddress>> addresses = resolver.resolve(uri.getHost());
+                if (addresses.isDone() && !addresses.isCompletedExceptionally()) {
+                    // cached, connect at once
+                    connect(channel, addresses.join(), 0);
+                } else {
+                    SocketChannel resolving = channel;
+                    addresses.whenComplete((resolved, e) -> connectResolved(resolving, resolved, e));
+                }
+            } catch (IOException | UnresolvedAddressException e) {
+                channel.close();
+                disconnectedState();
+                throw e;
+            }
         }
     }
 
-    void closeByException(Exception e) {
+    /**
+     * Connect once the host is resolved, on a thread of the resolver
+     */
+    private void connectResolved(SocketChannel channel, List<InetAddress> addresses, Throwable e) {
+        if (channel != socketChannel || connection != CONNECTING) {
+            // closed meanwhile
+            return;
+        }
         try {
-            socketChannel.close();
-        } catch (IOException e1) {
-            logger.error("Error closing channel", e1);
-        } finally {
-            disconnectedState();
-            for (HttpRequest request : requestQueue) {
-                request.getPromise().completeExceptionally(e);
+            if (e != null) {
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
             }
-            requestQueue.clear();
+            connect(channel, addresses, 0);
+        } catch (IOException e1) {
+            closeByException(e1);
         }
     }
 
-    void setExecutor(ExecutorService executor) {
-        this.executor = executor;
-    }
-
-    void setScheduled(ScheduledExecutorService scheduled) {
-        this.scheduled = scheduled;
-    }
-
     /**
-     * Is connected?
+     * Connect the channel to one of the addresses of the host
      *
-     * @return return true if connected, else false
+     * @param channel   channel not connected yet
+     * @param addresses addresses of the host
+     * @param index     the address to connect to, the next ones are tried if it fails
+     * @throws IOException io exception
      */
-    public boolean isConnected() {
-        return connection == CONNECTED;
+    private void connect(SocketChannel channel, List<InetAddress> addresses, int index) throws IOException {
+        this.addresses = addresses;
+        this.addressIndex = index;
+        EventLoop eventLoop = this.eventLoop;
+        if (channel.connect(new InetSocketAddress(addresses.get(index), port()))) {
+            // connected immediately, no OP_CONNECT will be selected
+            cancelAttemptDeadline();
+            if (secure) {
+                // the handshake goes on on the selector thread
+                eventLoop.execute(() -> {
+                    try {
+                        channelConnected();
+                    } catch (IOException e) {
+                        closeByException(e);
+                    }
+                });
+                return;
+            }
+            connectedState();
+            notifyConnected();
+            scheduleFlush();
+        } else if (index + 1 < addresses.size() && eventLoop != null) {
+            armAttemptDeadline(eventLoop, channel, addresses, index);
+        }
+        if (eventLoop != null) {
+            eventLoop.execute(interestUpdater);
+        }
     }
 
-    void connectingState() {
-        UNSAFE.compareAndSwapInt(this, connectionOffset, DISCONNCTED, CONNECTING);
+    /**
+     * Try the next address if this one does not connect in time, e.g. its packets are dropped.
+     * The connect timeout is shared by the addresses, without one each has {@link #CONNECT_ATTEMPT_DELAY}.
+     */
+    private void armAttemptDeadline(EventLoop eventLoop, SocketChannel channel, List<InetAddress> addresses,
+                                    int index) {
+        long connectTimeout = this.connectTimeout;
+        long delay = connectTimeout > 0 ? Math.max(1, connectTimeout / addresses.size()) : CONNECT_ATTEMPT_DELAY;
+        attemptDeadline = eventLoop.newTimeout(() -> {
+            if (channel == socketChannel && connection == CONNECTING && addressIndex == index
+                && !channel.isConnected()) {
+                connectFailed(new ConnectException("Connect to " + addresses.get(index) + " timed out: "
+                    + delay + "ms"));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    void connectedState() {
-        UNSAFE.compareAndSwapInt(this, connectionOffset, CONNECTING, CONNECTED);
+    private void cancelAttemptDeadline() {
+        TimingWheel.Timeout attemptDeadline = this.attemptDeadline;
+        if (attemptDeadline != null) {
+            attemptDeadline.cancel();
+            this.attemptDeadline = null;
+        }
     }
 
-    void disconnectedState() {
-        if (!UNSAFE.compareAndSwapInt(this, connectionOffset, CONNECTED, DISCONNCTED)) {
-            UNSAFE.compareAndSwapInt(this, connectionOffset, CONNECTING, DISCONNCTED);
+    /**
+     * The channel failed to connect, try the next address of the host, on the selector thread
+     *
+     * @param e why it failed
+     */
+    void connectFailed(IOException e) {
+        cancelAttemptDeadline();
+        List<InetAddress> addresses = this.addresses;
+        int next = addressIndex + 1;
+        if (closed || connection != CONNECTING || addresses == null || next >= addresses.size()) {
+            closeByException(e);
+            return;
+        }
+        logger.debug("Connect to {} failed, trying {}", addresses.get(addressIndex), addresses.get(next), e);
+        try {
+            closeChannel();
+            connect(reopen(), addresses, next);
+        } catch (IOException e1) {
+            closeByException(e1);
         }
     }
 
-    void waitConnected() throws InterruptedException {
-        awaitConnection();
+    /**
+     * Replace the closed channel, closed by the server, when idle or after an error
+     *
+     * @return new channel, not connected yet
+     * @throws IOException io exception
+     */
+    private SocketChannel reopen() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            lock.lock();
+            // the state left by the previous connection
+            resetConnection();
+            channel.configureBlocking(false);
+            socketChannel = channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        EventLoop eventLoop = this.eventLoop;
+        if (eventLoop != null) {
+            eventLoop.register(this);
+        }
+        return channel;
     }
 
-    void notifyConnected() {
-        finishConnection();
+    /**
+     * Forget what belongs to the previous connection, with the lock held
+     */
+    private void resetConnection() {
+        releaseReadBuffer();
+        readPaused = false;
+        inputShutdown = false;
+        writePending = false;
+        decoder.reset();
+        outbound.release();
+        TlsChannel tls = this.tls;
+        if (tls != null) {
+            tls.release();
+            this.tls = null;
+        }
+        // over TLS the protocol is known after the handshake
+        http2 = http2Enabled && !secure ? new Http2Connection(this) : null;
     }
 
-    static final class WaitNode {
-        volatile Thread thread;
-        volatile WaitNode next;
-
-        WaitNode() {
-            thread = Thread.currentThread();
+    private void armConnectTimeout() {
+        long connectTimeout = this.connectTimeout;
+        EventLoop eventLoop = this.eventLoop;
+        if (connectTimeout > 0 && eventLoop != null) {
+            connectDeadline = eventLoop.newTimeout(offSelector(() -> {
+                if (connection == CONNECTING) {
+                    closeByException(new ConnectException("Connect timed out: " + connectTimeout + "ms"));
+                }
+            }), connectTimeout, TimeUnit.MILLISECONDS);
         }
     }
 
-    private int awaitConnection()
-        throws InterruptedException {
-        WaitNode q = null;
-        boolean queued = false;
-        while (true) {
-            if (Thread.interrupted()) {
-                removeWaiter(q);
-                throw new InterruptedException();
-            }
-            int conn = connection;
-            if (conn > CONNECTING) {
-                if (q != null) {
-                    q.thread = null;
-                }
-                return conn;
-            } else if (conn == CONNECTING) {
-                Thread.yield();
-            } else if (q == null) {
-                q = new WaitNode();
-            } else if (!queued) {
-                queued = UNSAFE.compareAndSwapObject(this, waitersOffset,
-                    q.next = waiters, q);
+    /**
+     * The deadlines expire on the selector thread, the callbacks of the requests they fail must run where
+     * the consumer runs: on the executor unless inline or given to the callback executor
+     *
+     * @param deadline task failing requests
+     * @return task for the timing wheel
+     */
+    private Runnable offSelector(Runnable deadline) {
+        return () -> {
+            if (inline || callbackExecutor != null) {
+                deadline.run();
             } else {
-                LockSupport.park(this);
-            }
-        }
-    }
-
-    private void removeWaiter(WaitNode node) {
-        if (node != null) {
-            node.thread = null;
-            retry:
-            while (true) {
-                for (WaitNode pred = null, q = waiters, s; q != null; q = s) {
-                    s = q.next;
-                    if (q.thread != null) {
-                        pred = q;
-                    } else if (pred != null) {
-                        pred.next = s;
-                        if (pred.thread == null) {
-                            continue retry;
-                        }
-                    } else if (!UNSAFE.compareAndSwapObject(this, waitersOffset, q, s)) {
-                        continue retry;
-                    }
-                }
-                break;
+                executor.execute(deadline);
             }
-        }
+        };
     }
 
-    private void finishConnection() {
-        for (WaitNode q; (q = waiters) != null; ) {
-            if (UNSAFE.compareAndSwapObject(this, waitersOffset, q, null)) {
-                while (true) {
-                    Thread t = q.thread;
-                    if (t != null) {
-                        q.thread = null;
-                        LockSupport.unpark(t);
-                    }
-                    WaitNode next = q.next;
-                    if (next == null) {
-                        break;
-                    }
-                    q.next = null;
-                    q = next;
-                }
-                break;
+    /**
+     * A streamed body may take longer than the request timeout, it only fails once no byte has moved
+     * on the connection for as long, or its subscriber has no demand
+     *
+     * @param request        the request
+     * @param requestTimeout milliseconds
+     * @param delay          milliseconds before checking
+     */
+    private void armTotal(TimedRequest request, long requestTimeout, long delay) {
+        request.setTotal(eventLoop.newTimeout(offSelector(() -> {
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastTransfer);
+            if (request.isTransferring() && (readPaused || idle < requestTimeout)) {
+                armTotal(request, requestTimeout, readPaused ? requestTimeout : requestTimeout - idle);
+                return;
             }
+            expire(request, new TimeoutException("Request timed out: " + requestTimeout + "ms"));
+        }), delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Bytes have been read or written on the connection
+     */
+    void transferred() {
+        lastTransfer = System.nanoTime();
+    }
+
+    /**
+     * A deadline of the request has passed, where the consumer runs.
+     * Only the request fails if the connection stays usable, its response is dropped when it comes.
+     *
+     * @param request the request
+     * @param e       timeout exception
+     */
+    private void expire(TimedRequest request, TimeoutException e) {
+        if (http2 != null) {
+            expireStream(request, e);
+            return;
+        }
+        if (request.getBodySink() != null && request.isAnswered()) {
+            // the body is being streamed, only closing the connection stops it
+            request.getBodySink().error(e);
+            recover(e, false);
+            return;
+        }
+        if (request.getPromise().isDone()) {
+            return;
+        }
+        request.cancelTimeouts();
+        if (request.getBodySink() != null) {
+            request.getBodySink().error(e);
+        }
+        completeExceptionally(request.getPromise(), e);
+        if (request.isEncoded() && !request.isWritten()) {
+            // partly written, nothing else can be written on the connection
+            recover(e, false);
         }
     }
 
-    void executeConsumer() throws IOException {
+    /**
+     * Only the stream of the request is reset, the other streams of the connection go on
+     */
+    private void expireStream(TimedRequest request, TimeoutException e) {
         try {
             lock.lock();
-            while (!Thread.currentThread().isInterrupted() &&
-                socketChannel.isOpen() && socketChannel.read(readBuffer) != -1) {
-                if (readBuffer.position() > 0) {
-                    break;
-                }
+            if (request.getPromise().isDone() && !(request.getBodySink() != null && request.isAnswered())) {
+                return;
             }
-            if (readBuffer.position() > 0) {
-                executor.execute(new Consumer(this));
+            requestQueue.remove(request);
+            fail(request, e);
+            Http2Connection http2 = this.http2;
+            if (http2 != null) {
+                http2.cancel(request);
             }
         } finally {
             lock.unlock();
         }
     }
 
-    void lock() {
-        lock.lock();
-    }
-
-    void unlock() {
+    /**
+     * The request failed before being encoded, with the lock held
+     *
+     * @param request the request, removed from the queue
+     * @param e       cause
+     */
+    void fail(TimedRequest request, Exception e) {
+        request.cancelTimeouts();
+        if (request.getBodySink() != null) {
+            request.getBodySink().error(e);
+        }
+        completeExceptionally(request.getPromise(), e);
+    }
+
+    /**
+     * Start streaming the body of the request from its publisher, with the lock held
+     *
+     * @param request encoded request with a streamed body
+     */
+    void upload(TimedRequest request) {
+        Upload upload = new Upload(this, request, request.getBody().length());
+        request.setUpload(upload);
+        ((RequestBody.Streamed) request.getBody()).publisher().subscribe(upload);
+    }
+
+    /**
+     * The publisher failed or did not match the Content-Length, the body written so far can not be ended
+     * so the connection is replaced
+     *
+     * @param upload the failed attempt
+     * @param e      cause
+     */
+    void abortUpload(Upload upload, Throwable e) {
+        try {
+            lock.lock();
+            TimedRequest request = upload.getRequest();
+            if (request.getUpload() != upload || request.getPromise().isDone()) {
+                return;
+            }
+            Exception cause = e instanceof Exception ? (Exception) e : new IOException(e);
+            fail(request, cause);
+            recover(cause, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The request has been written, with the lock held
+     *
+     * @param request the request
+     */
+    void written(TimedRequest request) {
+        request.setWritten(true);
+        long responseTimeout = this.responseTimeout;
+        if (responseTimeout > 0) {
+            request.setPhase(eventLoop.newTimeout(offSelector(() -> expire(request,
+                new TimeoutException("Response timed out: " + responseTimeout + "ms"))),
+                responseTimeout, TimeUnit.MILLISECONDS));
+        } else {
+            request.cancelPhase();
+        }
+    }
+
+    /**
+     * The request is queued to be written, with the lock held
+     *
+     * @param request the request
+     */
+    void encoded(TimedRequest request) {
+        request.setEncoded(true);
+        long writeTimeout = this.writeTimeout;
+        if (writeTimeout > 0) {
+            request.setPhase(eventLoop.newTimeout(offSelector(() -> expire(request,
+                new TimeoutException("Write timed out: " + writeTimeout + "ms"))),
+                writeTimeout, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * @return absolute url of the path, the key of its responses in the cache
+     */
+    private String cacheKey(String path) {
+        return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + port() + path;
+    }
+
+    private int port() {
+        return uri.getPort() == -1 ? defaultPort() : uri.getPort();
+    }
+
+    private int defaultPort() {
+        return secure ? DEFAULT_HTTPS_PORT : DEFAULT_PORT;
+    }
+
+    /**
+     * The socket is connected, on the selector thread. Over TLS the connection is usable after the handshake.
+     *
+     * @throws IOException io exception
+     */
+    void channelConnected() throws IOException {
+        cancelAttemptDeadline();
+        if (secure) {
+            try {
+                lock.lock();
+                tls = new TlsChannel(socketChannel, createEngine(), bufferPool);
+            } finally {
+                lock.unlock();
+            }
+            handshake();
+            return;
+        }
+        connectedState();
+        notifyConnected();
+        updateInterest();
+        // write the requests queued while connecting
+        executeProducer();
+    }
+
+    /**
+     * A client engine for the host, so the sessions of the context are resumed by the next connections to it
+     */
+    private SSLEngine createEngine() throws IOException {
+        SSLContext sslContext = this.sslContext;
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new SSLException(e);
+            }
+        }
+        SSLEngine engine = sslContext.createSSLEngine(uri.getHost(), port());
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        // the certificate must match the host
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        parameters.setApplicationProtocols(http2Enabled ? new String[]{H2, HTTP_1_1} : new String[]{HTTP_1_1});
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Go on with the TLS handshake when the socket is ready, on the selector thread.
+     * The connect timeout covers it, the connection is still connecting.
+     *
+     * @throws IOException io exception, or SSLException if the server is not trusted
+     */
+    private void handshake() throws IOException {
+        try {
+            lock.lock();
+            TlsChannel tls = this.tls;
+            if (tls == null || connection != CONNECTING) {
+                return;
+            }
+            if (!tls.handshake()) {
+                updateInterest();
+                return;
+            }
+            handshakes.increment();
+            if (tls.isResumed()) {
+                resumedHandshakes.increment();
+            }
+            if (http2Enabled && H2.equals(tls.getApplicationProtocol())) {
+                http2 = new Http2Connection(this);
+            }
+            connectedState();
+            notifyConnected();
+            updateInterest();
+            // the server may have sent more than its last handshake message
+            readBuffered();
+        } finally {
+            lock.unlock();
+        }
+        executeProducer();
+    }
+
+    private boolean isHandshaking() {
+        return tls != null && connection == CONNECTING;
+    }
+
+    /**
+     * Start connecting in advance, used by the pool to warm up connections
+     *
+     * @throws IOException io exception
+     */
+    void connect() throws IOException {
+        checkConnection();
+    }
+
+    /**
+     * Close the connection, the requests that have not been answered will fail.
+     * A closed client can not be used any more.
+     */
+    public void close() {
+        closed = true;
+        closeByException(new ClosedChannelException());
+    }
+
+    /**
+     * The connection is lost, send the requests that can be sent again on a new connection and fail the others.
+     * The requests written after a response closing the connection were never processed, so they are all replayed;
+     * after an error only the idempotent ones are, at most {@link #MAX_REPLAYS} times.
+     *
+     * @param cause    why the connection is lost
+     * @param graceful true if the server closed the connection after a complete response
+     */
+    void recover(Exception cause, boolean graceful) {
+        try {
+            lock.lock();
+            if (connection != CONNECTED || !socketChannel.isOpen()) {
+                // lost while connecting or closed by the user, there is nothing to recover
+                closeByException(cause);
+                return;
+            }
+            boolean replay = false;
+            Iterator<TimedRequest> it = requestQueue.iterator();
+            while (it.hasNext()) {
+                TimedRequest request = it.next();
+                if (request.getBodySink() != null && request.isAnswered()) {
+                    // a part of the body may have been streamed already, the promise completed with the head
+                    it.remove();
+                    request.cancelTimeouts();
+                    request.getBodySink().error(cause);
+                    completeExceptionally(request.getPromise(), cause);
+                } else if (request.getPromise().isDone()) {
+                    // timed out
+                    it.remove();
+                    request.cancelTimeouts();
+                } else if (!request.isRepeatable()) {
+                    // the streamed body has been consumed
+                    it.remove();
+                    fail(request, cause);
+                } else if (graceful || !request.isWritten()
+                    || (request.getMethod().isIdempotent() && request.getReplays() < MAX_REPLAYS)) {
+                    request.replay(!graceful);
+                    replay = true;
+                } else {
+                    it.remove();
+                    fail(request, cause);
+                }
+            }
+            if (!replay) {
+                disconnect();
+                return;
+            }
+            closeChannel();
+            disconnectedState();
+            // the bytes left belong to the lost connection
+            resetConnection();
+            replayed.increment();
+            logger.debug("Connection to {} lost, requests replayed", uri, cause);
+            checkConnection();
+            flushStarted();
+            scheduleFlush();
+        } catch (IOException | UnresolvedAddressException e) {
+            logger.error("Error reconnecting", e);
+            closeByException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the channel without failing any request, with the lock held.
+     * The requests queued meanwhile are sent on a new connection.
+     */
+    void disconnect() {
+        cancelIdle();
+        closeChannel();
+        disconnectedState();
+        resetConnection();
+        if (!closed && !requestQueue.isEmpty()) {
+            try {
+                checkConnection();
+                scheduleFlush();
+            } catch (IOException | UnresolvedAddressException e) {
+                closeByException(e);
+            }
+        }
+    }
+
+    /**
+     * The server closed the connection and every byte has been decoded, with the lock held
+     */
+    void endOfInput() {
+        if (requestQueue.isEmpty()) {
+            logger.debug("Connection closed by {}", uri);
+            disconnect();
+        } else {
+            // the server closed an idle connection while the requests were on the way
+            recover(new EOFException("Connection closed by " + uri), false);
+        }
+    }
+
+    /**
+     * No request left, close the connection before the server closes it, with the lock held
+     */
+    void idle() {
+        long limit = idleTimeout;
+        long keepAlive = serverKeepAlive;
+        if (keepAlive > 0) {
+            // the next request must not meet the close of the server
+            long beforeServer = Math.max(keepAlive - KEEP_ALIVE_MARGIN, keepAlive / 2);
+            limit = limit > 0 ? Math.min(limit, beforeServer) : beforeServer;
+        }
+        EventLoop eventLoop = this.eventLoop;
+        if (limit > 0 && eventLoop != null) {
+            cancelIdle();
+            idleDeadline = eventLoop.newTimeout(this::closeIdle, limit, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelIdle() {
+        TimingWheel.Timeout idleDeadline = this.idleDeadline;
+        if (idleDeadline != null) {
+            idleDeadline.cancel();
+        }
+    }
+
+    private void closeIdle() {
+        try {
+            lock.lock();
+            if (connection == CONNECTED && requestQueue.isEmpty()) {
+                logger.debug("Closing idle connection to {}", uri);
+                disconnect();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remember how long the server keeps the connection idle
+     *
+     * @param response response
+     */
+    void keepAlive(HttpResponse response) {
+        int timeout = response.getKeepAliveTimeout();
+        if (timeout > 0) {
+            serverKeepAlive = TimeUnit.SECONDS.toMillis(timeout);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.error("Error closing channel", e);
+        }
+    }
+
+    void closeByException(Exception e) {
+        try {
+            cancelIdle();
+            cancelAttemptDeadline();
+            socketChannel.close();
+        } catch (IOException e1) {
+            logger.error("Error closing channel", e1);
+        } finally {
+            disconnectedState();
+            TimedRequest request;
+            while ((request = requestQueue.poll()) != null) {
+                request.cancelTimeouts();
+                if (request.getBodySink() != null) {
+                    request.getBodySink().error(e);
+                }
+                completeExceptionally(request.getPromise(), e);
+            }
+            // give back the read buffer, unless this thread is decoding from it
+            if (lock.tryLock()) {
+                try {
+                    if (lock.getHoldCount() == 1) {
+                        resetConnection();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    void setEventLoop(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * The event loop this client is registered to
+     *
+     * @return event loop, null if not registered
+     */
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Complete the promise, on the callback executor if there is one
+     */
+    void complete(CompletableFuture<HttpResponse> promise, HttpResponse response) {
+        Executor callbackExecutor = this.callbackExecutor;
+        if (callbackExecutor == null) {
+            promise.complete(response);
+        } else {
+            callbackExecutor.execute(() -> promise.complete(response));
+        }
+    }
+
+    void completeExceptionally(CompletableFuture<HttpResponse> promise, Throwable e) {
+        Executor callbackExecutor = this.callbackExecutor;
+        if (callbackExecutor == null) {
+            promise.completeExceptionally(e);
+        } else {
+            callbackExecutor.execute(() -> promise.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Is the client still usable? The connection itself may be closed, the next request connects again.
+     *
+     * @return false once closed by {@link #close()}
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * @return true if the current channel is open
+     */
+    boolean isChannelOpen() {
+        return socketChannel.isOpen();
+    }
+
+    boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    /**
+     * Is connected?
+     *
+     * @return return true if connected, else false
+     */
+    public boolean isConnected() {
+        return connection == CONNECTED;
+    }
+
+    boolean connectingState() {
+        return CONNECTION.compareAndSet(this, DISCONNCTED, CONNECTING);
+    }
+
+    void connectedState() {
+        CONNECTION.compareAndSet(this, CONNECTING, CONNECTED);
+    }
+
+    void disconnectedState() {
+        if (!CONNECTION.compareAndSet(this, CONNECTED, DISCONNCTED)) {
+            CONNECTION.compareAndSet(this, CONNECTING, DISCONNCTED);
+        }
+    }
+
+    void notifyConnected() {
+        TimingWheel.Timeout connectDeadline = this.connectDeadline;
+        if (connectDeadline != null) {
+            connectDeadline.cancel();
+            this.connectDeadline = null;
+        }
+    }
+
+    /**
+     * Stop reading from the socket, the bytes already read stay in the read buffer
+     */
+    void pauseReading() {
+        readPaused = true;
+        eventLoop.execute(interestUpdater);
+    }
+
+    /**
+     * Decode the bytes left in the read buffer and read from the socket again
+     */
+    void resumeReading() {
+        if (readPaused || http2 != null) {
+            // HTTP/2 never stops reading, the bytes kept for the subscriber are delivered by the consumer
+            readPaused = false;
+            eventLoop.execute(readResumer);
+        }
+    }
+
+    /**
+     * Interest set for the current state, an unconnected channel must not be selected at all
+     *
+     * @return interest set
+     */
+    int interestOps() {
+        int ops = 0;
+        if (socketChannel.isConnectionPending()) {
+            ops |= SelectionKey.OP_CONNECT;
+        }
+        TlsChannel tls = this.tls;
+        if (tls != null && connection == CONNECTING) {
+            return socketChannel.isConnected() ? tls.handshakeInterest() : ops;
+        }
+        if (socketChannel.isConnected() && !readPaused && !inputShutdown) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (socketChannel.isConnected() && writePending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * Apply the latest state to the selection key, on the selector thread
+     */
+    void updateInterest() {
+        SelectionKey key = selectionKey;
+        if (key != null && key.isValid()) {
+            key.interestOps(interestOps());
+        }
+    }
+
+    private void dispatchConsumer() {
+        if (inline) {
+            consumer.run();
+        } else {
+            executor.execute(consumer);
+        }
+    }
+
+    /**
+     * Record whether the outbound segments wait for the socket to be writable, with the lock held
+     *
+     * @param writePending true if the socket buffer is full
+     */
+    void setWritePending(boolean writePending) {
+        if (this.writePending != writePending) {
+            this.writePending = writePending;
+            if (eventLoop.inEventLoop()) {
+                updateInterest();
+            } else {
+                eventLoop.execute(interestUpdater);
+            }
+        }
+    }
+
+    /**
+     * Schedule the producer unless one is already scheduled, the requests offered before it starts
+     * are merged into one flush
+     */
+    void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (inline) {
+                eventLoop.execute(producer);
+            } else {
+                executor.execute(producer);
+            }
+        }
+    }
+
+    /**
+     * The producer starts encoding, the requests offered from now on need another flush
+     */
+    void flushStarted() {
+        flushScheduled.set(false);
+    }
+
+    /**
+     * The socket is writable again, write the rest of the outbound segments
+     */
+    void executeProducer() throws IOException {
+        if (isHandshaking()) {
+            handshake();
+            return;
+        }
+        // stop selecting OP_WRITE meanwhile, the producer registers it again if the socket is still full
+        writePending = false;
+        updateInterest();
+        if (inline) {
+            producer.run();
+        } else {
+            executor.execute(producer);
+        }
+    }
+
+    void executeConsumer() throws IOException {
+        if (isHandshaking()) {
+            handshake();
+            return;
+        }
+        if (readPaused) {
+            return;
+        }
+        try {
+            lock.lock();
+            ByteBuffer buffer = acquireReadBuffer();
+            SocketChannel channel = socketChannel;
+            TlsChannel tls = this.tls;
+            int read = 0;
+            if (channel.isConnected()) {
+                read = tls == null ? channel.read(buffer) : tls.read(buffer);
+            }
+            if (read > 0) {
+                transferred();
+            }
+            if (tls != null && tls.hasPendingOutput()) {
+                // a record of the TLS protocol itself to answer
+                scheduleFlush();
+            }
+            if (read < 0) {
+                // closed by the server, stop reading and let the consumer end what it has decoded
+                inputShutdown = true;
+                updateInterest();
+                dispatchConsumer();
+            } else if (buffer.position() > 0) {
+                dispatchConsumer();
+            } else {
+                releaseReadBuffer();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read again what TLS unwrapped or received beyond the read buffer, with the lock held once it is decoded.
+     * No OP_READ is selected for it, the socket may have nothing more.
+     */
+    void readBuffered() {
+        TlsChannel tls = this.tls;
+        if (tls != null && readBuffer == null && !readPaused && !bufferedReadScheduled
+            && connection == CONNECTED && tls.hasBuffered()) {
+            bufferedReadScheduled = true;
+            eventLoop.execute(bufferedReader);
+        }
+    }
+
+    /**
+     * Write the outbound segments, through TLS for https, with the lock held
+     *
+     * @return true if everything has been written, false if the socket buffer is full
+     * @throws IOException io exception
+     */
+    boolean flushOutbound() throws IOException {
+        TlsChannel tls = this.tls;
+        if (tls == null) {
+            return outbound.flush(socketChannel);
+        }
+        return outbound.flush(tls) && tls.flush();
+    }
+
+    /**
+     * Borrow the read buffer if not borrowed yet, with the lock held
+     *
+     * @return read buffer
+     */
+    private ByteBuffer acquireReadBuffer() {
+        if (readBuffer == null) {
+            TlsChannel tls = this.tls;
+            // room for a whole record, unwrapped without going through another buffer
+            readBuffer = bufferPool.acquire(tls == null ? READ_BUFFER_SIZE : tls.getApplicationBufferSize());
+        }
+        return readBuffer;
+    }
+
+    /**
+     * Give back the read buffer when there is nothing left to decode, with the lock held
+     */
+    void releaseReadBuffer() {
+        if (readBuffer != null) {
+            bufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
         lock.unlock();
     }
 
+    public URI getUri() {
+        return uri;
+    }
+
+    Producer getProducer() {
+        return producer;
+    }
+
     public SocketChannel getSocketChannel() {
         return socketChannel;
     }
 
-    public ByteBuffer getReadBuffer() {
+    /**
+     * @return read buffer, null if nothing has been read, with the lock held
+     */
+    ByteBuffer getReadBuffer() {
         return readBuffer;
     }
 
-    public ByteBuffer getWriteBuffer() {
-        return writeBuffer;
+    BufferPool getBufferPool() {
+        return bufferPool;
     }
 
-    Queue<HttpRequest> getRequestQueue() {
+    Outbound getOutbound() {
+        return outbound;
+    }
+
+    Queue<TimedRequest> getRequestQueue() {
         return requestQueue;
     }
 
-    public HttpResponseDecoder getDecoder() {
-        return decoder;
+    /**
+     * @return max requests written and not answered yet on the connection
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Set the pipelining depth, 1 sends the next request only after the previous response
+     *
+     * @param maxInFlight max requests written and not answered yet on the connection
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Illegal max in flight: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        if (eventLoop != null) {
+            // the window may have grown
+            scheduleFlush();
+        }
     }
 
-    private static final sun.misc.Unsafe UNSAFE;
-    private static final long connectionOffset;
-    private static final long waitersOffset;
+    public boolean isHttp2() {
+        return http2Enabled;
+    }
 
-    static {
+    /**
+     * Speak HTTP/2 instead of HTTP/1.1: in cleartext with prior knowledge (h2c) for http, the server must accept it,
+     * offered with ALPN for https, a connection falls back to HTTP/1.1 if the server does not select it.
+     * The requests are multiplexed as concurrent streams on one connection, up to the limit of the server,
+     * and {@link #setMaxInFlight(int)} does not apply. Streamed request bodies are not supported.
+     * Set it before sending requests.
+     *
+     * @param http2 true for HTTP/2, false by default
+     */
+    public void setHttp2(boolean http2) {
         try {
-            Field field = Unsafe.class.getDeclaredField("theUnsafe");
-            field.setAccessible(true);
-            UNSAFE = (Unsafe) field.get(null);
+            lock.lock();
+            this.http2Enabled = http2;
+            this.http2 = http2 && !secure ? new Http2Connection(this) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Http2Connection getHttp2() {
+        return http2;
+    }
 
-            Class<?> k = SimpleHttpClient.class;
-            connectionOffset = UNSAFE.objectFieldOffset
-                (k.getDeclaredField("connection"));
-            waitersOffset = UNSAFE.objectFieldOffset
-                (k.getDeclaredField("waiters"));
-        } catch (Exception e) {
-            throw new Error(e);
+    /**
+     * @return true for https
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * The context the TLS engines come from, it also caches the sessions, so the connections sharing it
+     * resume the session of an earlier one to the same host and port with an abbreviated handshake.
+     * Set it before sending requests.
+     *
+     * @param sslContext context, null for {@link SSLContext#getDefault()}
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * @return TLS handshakes completed
+     */
+    public long getTlsHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * @return TLS handshakes that resumed an earlier session
+     */
+    public long getTlsResumed() {
+        return resumedHandshakes.sum();
+    }
+
+    public boolean isDecompression() {
+        return decompression;
+    }
+
+    /**
+     * Send Accept-Encoding: gzip, deflate unless a request has its own, and decompress the bodies as they are read.
+     * A decompressed response has no Content-Encoding header, its Content-Length is the compressed length.
+     * Set it before sending requests.
+     *
+     * @param decompression true to decompress, false by default
+     */
+    public void setDecompression(boolean decompression) {
+        this.decompression = decompression;
+        decoder.setDecompression(decompression);
+    }
+
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Serve the GET responses from the cache while they are fresh and revalidate them when stale.
+     * Streamed and downloaded bodies are not cached. A successful POST, PUT, DELETE or PATCH removes the response
+     * of its path.
+     *
+     * @param cache cache, may be shared with other clients, null for none
+     */
+    public void setCache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Send one request for the GETs of the same path and headers that are in flight at the same time, all of them
+     * complete with the same response, so it must not be modified. Streamed and downloaded bodies are not shared.
+     * With a cache only the misses and revalidations are coalesced.
+     *
+     * @param coalescing true to coalesce, false by default
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * @return GETs that were answered by the request of an identical one
+     */
+    public long getCoalesced() {
+        return singleFlight.getCoalesced();
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to connect, 0 for no limit; each address of the host gets an equal share
+     *                       before the next one is tried
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = checkTimeout(connectTimeout);
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * @param writeTimeout milliseconds to write a request once encoded, 0 for no limit
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = checkTimeout(writeTimeout);
+    }
+
+    public long getResponseTimeout() {
+        return responseTimeout;
+    }
+
+    /**
+     * @param responseTimeout milliseconds from the request written to the head of the response, 0 for no limit
+     */
+    public void setResponseTimeout(long responseTimeout) {
+        this.responseTimeout = checkTimeout(responseTimeout);
+    }
+
+    public Resolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * @param resolver resolves the host when connecting
+     */
+    public void setResolver(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout milliseconds after which an idle connection is closed, 0 to keep it until the server
+     *                    closes it or its Keep-Alive timeout is near
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = checkTimeout(idleTimeout);
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * @param requestTimeout milliseconds from get() to the end of the response, 0 for no limit.
+     *                       A file or publisher body being written and a body being streamed or downloaded
+     *                       may take longer, the request fails once nothing moves on the connection for as long
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = checkTimeout(requestTimeout);
+    }
+
+    private static long checkTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Illegal timeout: " + timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return requests not answered yet, in flight or waiting for the window
+     */
+    public int getQueueDepth() {
+        return requestQueue.size();
+    }
+
+    /**
+     * @return requests written, or being written, and not answered yet
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (TimedRequest request : requestQueue) {
+            if (!request.isEncoded()) {
+                break;
+            }
+            inFlight++;
+        }
+        return inFlight;
+    }
+
+    /**
+     * Are there requests waiting for the in flight window?
+     *
+     * @return true if a request has not been encoded yet
+     */
+    boolean hasUnsent() {
+        for (TimedRequest request : requestQueue) {
+            if (!request.isEncoded()) {
+                return true;
+            }
         }
+        return false;
     }
 
+    /**
+     * @return highest number of requests in flight so far
+     */
+    public int getPeakInFlight() {
+        return peakInFlight;
+    }
+
+    void setPeakInFlight(int peakInFlight) {
+        this.peakInFlight = peakInFlight;
+    }
+
+    /**
+     * @return times the connection was replaced to replay the requests
+     */
+    public long getReplayed() {
+        return replayed.sum();
+    }
 
+    public HttpResponseDecoder getDecoder() {
+        return decoder;
+    }
+
+    HttpRequestEncoder getEncoder() {
+        return encoder;
+    }
 }
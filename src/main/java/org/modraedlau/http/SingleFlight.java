@@ -0,0 +1,158 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Identical GETs in flight at the same time share one request, its response is given to all of them.
+ * Every caller has its own future, the request is cancelled only when all of them are cancelled.
+ *
+ * @author modraedlau
+ */
+final class SingleFlight {
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param path    request path
+     * @param headers headers of the request, null for none, part of what makes requests identical
+     * @param network sends the request
+     * @return future of this caller
+     */
+    CompletableFuture<HttpResponse> get(String path, List<Header> headers,
+                                        Supplier<CompletableFuture<HttpResponse>> network) {
+        String key = key(path, headers);
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight first = new Flight();
+                if (flights.putIfAbsent(key, first) != null) {
+                    continue;
+                }
+                first.join();
+                CompletableFuture<HttpResponse> promise = first.promise();
+                CompletableFuture<HttpResponse> request = network.get();
+                first.start(request);
+                request.whenComplete((response, e) -> {
+                    // later callers send a new request
+                    flights.remove(key, first);
+                    if (e != null) {
+                        first.shared.completeExceptionally(e);
+                    } else {
+                        first.shared.complete(response);
+                    }
+                });
+                return promise;
+            }
+            if (flight.join()) {
+                coalesced.increment();
+                return flight.promise();
+            }
+            // all its callers are gone
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return requests that shared the request of another
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private static String key(String path, List<Header> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return path;
+        }
+        StringBuilder key = new StringBuilder(path);
+        for (Header header : headers) {
+            key.append('\n').append(header.getName().toLowerCase()).append(':').append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    private static final class Flight {
+        /**
+         * completed with the response of the request
+         */
+        private final CompletableFuture<HttpResponse> shared = new CompletableFuture<>();
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * guarded by lock
+         */
+        private CompletableFuture<HttpResponse> request;
+        private int waiters;
+        private boolean abandoned;
+
+        /**
+         * @return false if the flight was abandoned, a new one is needed
+         */
+        boolean join() {
+            try {
+                lock.lock();
+                if (abandoned) {
+                    return false;
+                }
+                waiters++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void start(CompletableFuture<HttpResponse> request) {
+            try {
+                lock.lock();
+                this.request = request;
+                if (abandoned) {
+                    request.cancel(false);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        CompletableFuture<HttpResponse> promise() {
+            CompletableFuture<HttpResponse> promise = new CompletableFuture<>();
+            shared.whenComplete((response, e) -> {
+                if (e != null) {
+                    promise.completeExceptionally(e);
+                } else {
+                    promise.complete(response);
+                }
+            });
+            promise.whenComplete((response, e) -> {
+                if (promise.isCancelled()) {
+                    leave();
+                }
+            });
+            return promise;
+        }
+
+        private void leave() {
+            try {
+                lock.lock();
+                if (--waiters == 0 && !shared.isDone()) {
+                    abandoned = true;
+                    if (request != null) {
+                        // dropped from the queue if not written yet
+                        request.cancel(false);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
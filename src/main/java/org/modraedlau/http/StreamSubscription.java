@@ -0,0 +1,92 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.BodySink;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers a streamed body to a {@link BodySubscriber}, reading is paused while there is no demand
+ *
+ * @author modraedlau
+ */
+class StreamSubscription implements BodySubscription, BodySink {
+    private final SimpleHttpClient client;
+
+    private final BodySubscriber subscriber;
+
+    private final AtomicLong demand = new AtomicLong();
+
+    private volatile boolean done;
+
+    StreamSubscription(SimpleHttpClient client, BodySubscriber subscriber) {
+        this.client = client;
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+        if (done) {
+            return;
+        }
+        if (n <= 0) {
+            error(new IllegalArgumentException("Non-positive request: " + n));
+            client.closeByException(new CancellationException("Body subscription cancelled"));
+            return;
+        }
+        long current;
+        long next;
+        do {
+            current = demand.get();
+            next = current + n < 0 ? Long.MAX_VALUE : current + n;
+        } while (!demand.compareAndSet(current, next));
+        client.resumeReading();
+    }
+
+    @Override
+    public void cancel() {
+        if (!done) {
+            done = true;
+            client.closeByException(new CancellationException("Body subscription cancelled"));
+        }
+    }
+
+    @Override
+    public void open(HttpResponse response) {
+        subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public boolean ready() {
+        return !done && demand.get() > 0;
+    }
+
+    @Override
+    public void write(ByteBuffer segment) {
+        demand.decrementAndGet();
+        try {
+            subscriber.onNext(segment);
+        } catch (RuntimeException e) {
+            error(e);
+            client.closeByException(e);
+        }
+    }
+
+    @Override
+    public void complete() {
+        if (!done) {
+            done = true;
+            subscriber.onComplete();
+        }
+    }
+
+    @Override
+    public void error(Throwable e) {
+        if (!done) {
+            done = true;
+            subscriber.onError(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.BodySink;
+import org.modraedlau.http.message.HttpMethod;
+import org.modraedlau.http.message.HttpRequest;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Request with its deadlines, the timeouts are cancelled as soon as they are no longer needed
+ *
+ * @author modraedlau
+ */
+class TimedRequest extends HttpRequest {
+    /**
+     * from get() to the end of the response, not enforced while a streamed body keeps moving
+     */
+    private volatile TimingWheel.Timeout total;
+
+    /**
+     * no timeout is needed any more
+     */
+    private volatile boolean finished;
+
+    /**
+     * of the current phase, writing or waiting for the head of the response
+     */
+    private volatile TimingWheel.Timeout phase;
+
+    /**
+     * null if none
+     */
+    private final RequestBody body;
+
+    /**
+     * every segment of the body is queued to be written, true at once unless the body is streamed
+     */
+    private volatile boolean bodyQueued;
+
+    /**
+     * streaming the body of the current attempt
+     */
+    private volatile Upload upload;
+
+    TimedRequest(HttpMethod method, String path, CompletableFuture<HttpResponse> promise, BodySink bodySink,
+                 RequestBody body) {
+        super(method, path, promise, bodySink);
+        this.body = body;
+    }
+
+    RequestBody getBody() {
+        return body;
+    }
+
+    /**
+     * @return true if it can be encoded again on a new connection
+     */
+    boolean isRepeatable() {
+        return body == null || body.isRepeatable() || !isEncoded();
+    }
+
+    boolean isBodyQueued() {
+        return bodyQueued;
+    }
+
+    void setBodyQueued(boolean bodyQueued) {
+        this.bodyQueued = bodyQueued;
+    }
+
+    Upload getUpload() {
+        return upload;
+    }
+
+    void setUpload(Upload upload) {
+        this.upload = upload;
+    }
+
+    private void cancelUpload() {
+        Upload upload = this.upload;
+        if (upload != null) {
+            upload.cancel();
+            this.upload = null;
+        }
+    }
+
+    /**
+     * @param total deadline of the request, cancelled at once if the request has finished meanwhile
+     */
+    void setTotal(TimingWheel.Timeout total) {
+        this.total = total;
+        if (finished) {
+            total.cancel();
+        }
+    }
+
+    /**
+     * @return true while a streamed body is moving, a file or publisher being written
+     * or a response body going to its sink
+     */
+    boolean isTransferring() {
+        if (getBodySink() != null && isAnswered()) {
+            return true;
+        }
+        return body != null && !(body instanceof RequestBody.Bytes) && isEncoded() && !isWritten();
+    }
+
+    /**
+     * Start a new phase, the deadline of the previous one is cancelled
+     *
+     * @param phase deadline of the phase, null if none
+     */
+    void setPhase(TimingWheel.Timeout phase) {
+        cancelPhase();
+        this.phase = phase;
+    }
+
+    void cancelPhase() {
+        TimingWheel.Timeout phase = this.phase;
+        if (phase != null) {
+            phase.cancel();
+            this.phase = null;
+        }
+    }
+
+    /**
+     * The request is answered or failed, the body is no longer streamed either
+     */
+    void cancelTimeouts() {
+        finished = true;
+        cancelUpload();
+        cancelPhase();
+        TimingWheel.Timeout total = this.total;
+        if (total != null) {
+            total.cancel();
+            this.total = null;
+        }
+    }
+
+    @Override
+    public void replay(boolean counted) {
+        cancelPhase();
+        cancelUpload();
+        bodyQueued = false;
+        super.replay(counted);
+    }
+}
@@ -0,0 +1,302 @@
+package org.modraedlau.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Hashed timing wheel driven by the selector thread of an event loop.
+ * Timeouts can be added and cancelled from any thread, they expire and are removed on the selector thread only.
+ *
+ * @author modraedlau
+ */
+class TimingWheel {
+    private static Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long startTime;
+
+    /**
+     * the next tick to expire, on the selector thread only
+     */
+    private long tick;
+
+    /**
+     * added and not put in a bucket yet
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * cancelled by other threads, still in a bucket
+     */
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * timeouts neither expired nor cancelled
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * wakes the selector up when the first timeout is added, it does not select with a timeout before
+     */
+    private final Runnable wakeup;
+
+    private volatile Thread thread;
+
+    /**
+     * @param tickDuration duration of a tick, the precision of the timeouts
+     * @param unit         unit of the duration
+     * @param wheelSize    number of buckets, rounded up to a power of two
+     * @param wakeup       called when the wheel is no longer empty
+     */
+    TimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Runnable wakeup) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Illegal tick duration or wheel size");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int length = Integer.highestOneBit(wheelSize - 1) << 1;
+        wheel = new Bucket[Math.max(1, length)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = wheel.length - 1;
+        this.wakeup = wakeup;
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Bind the wheel to the thread that expires the timeouts
+     *
+     * @param thread selector thread
+     */
+    void setThread(Thread thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * Run the task on the selector thread after the delay, unless cancelled before
+     *
+     * @param task  task, it must not block
+     * @param delay delay
+     * @param unit  unit of the delay
+     * @return timeout
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(delay));
+        // counted before queued, so an empty wheel has nothing active pending
+        boolean first = size.getAndIncrement() == 0;
+        pending.offer(timeout);
+        if (first && Thread.currentThread() != thread) {
+            wakeup.run();
+        }
+        return timeout;
+    }
+
+    /**
+     * How long the selector may block before the next tick
+     *
+     * @return milliseconds, 0 to block until woken up as there is no timeout
+     */
+    long nextTickMillis() {
+        if (size.get() == 0) {
+            return 0;
+        }
+        long nanos = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999));
+    }
+
+    /**
+     * Expire the timeouts up to now, on the selector thread
+     */
+    void expire() {
+        removeCancelled();
+        transferPending();
+        long elapsed = System.nanoTime() - startTime;
+        if (size.get() == 0) {
+            // nothing to expire, just follow the clock
+            tick = Math.max(tick, elapsed / tickNanos);
+            return;
+        }
+        while ((tick + 1) * tickNanos <= elapsed) {
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state != Timeout.ACTIVE) {
+                continue;
+            }
+            long ticks = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            // already passed, expire it with the next tick
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * A task waiting in the wheel
+     */
+    static final class Timeout {
+        private static final int ACTIVE = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel timingWheel;
+        private final Runnable task;
+
+        /**
+         * nanoseconds since the start of the wheel
+         */
+        private final long deadline;
+
+        private volatile int state;
+
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task if it has not run yet
+         *
+         * @return true if cancelled by this call
+         */
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, ACTIVE, CANCELLED)) {
+                return false;
+            }
+            timingWheel.size.decrementAndGet();
+            if (Thread.currentThread() == timingWheel.thread) {
+                if (bucket != null) {
+                    bucket.remove(this);
+                }
+            } else {
+                // the buckets belong to the selector thread
+                timingWheel.cancelled.offer(this);
+            }
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, ACTIVE, EXPIRED)) {
+                return;
+            }
+            timingWheel.size.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logger.error("Error running timeout task", e);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked timeouts of one slot
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire() {
+            // detached before any task runs, as a task may cancel the other timeouts of the bucket
+            Timeout expired = null;
+            Timeout last = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (last == null) {
+                        expired = timeout;
+                    } else {
+                        last.next = timeout;
+                    }
+                    last = timeout;
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                // skipped if a task before cancelled it
+                expired.expire();
+                expired = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package org.modraedlau.http;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS over the non-blocking channel of one connection, guarded by the lock of the client.
+ * The plaintext goes through it as through the socket: a write wraps records and a read unwraps them.
+ * The network buffers are borrowed from the buffer pool while they hold bytes.
+ *
+ * @author modraedlau
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    private final BufferPool bufferPool;
+
+    /**
+     * bytes read from the socket and not unwrapped yet, ready to be written to
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * records not written to the socket yet, ready to be written to
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * plaintext that did not fit in the buffer of the caller, ready to be read
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * when the handshake started, a session created before was resumed
+     */
+    private long handshakeStarted;
+
+    /**
+     * the server closed its side, with close_notify or not
+     */
+    private boolean inputClosed;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool bufferPool) {
+        this.channel = channel;
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Go on with the handshake as far as the socket allows
+     *
+     * @return true once finished, false to wait for the socket, see {@link #handshakeInterest()}
+     * @throws IOException io exception, or SSLException if the server is not trusted
+     */
+    boolean handshake() throws IOException {
+        if (handshakeStarted == 0) {
+            handshakeStarted = System.currentTimeMillis();
+            engine.beginHandshake();
+        }
+        while (flush()) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(new ByteBuffer[]{EMPTY}, 0, 1);
+            } else if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                || status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                return true;
+            } else if (!unwrap(null)) {
+                if (inputClosed) {
+                    throw new SSLException("Connection closed during the TLS handshake");
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return what the handshake waits for, OP_WRITE while records are left, otherwise OP_READ
+     */
+    int handshakeInterest() {
+        return netOut != null ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+    }
+
+    /**
+     * @return true if the session of the handshake was created by an earlier one, after the handshake
+     */
+    boolean isResumed() {
+        return engine.getSession().getCreationTime() < handshakeStarted;
+    }
+
+    /**
+     * @return protocol selected by the server with ALPN, empty if none, after the handshake
+     */
+    String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null ? "" : protocol;
+    }
+
+    /**
+     * @return room the plaintext of a record may take
+     */
+    int getApplicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Unwrap the records read so far into the buffer, and read from the socket while it has room
+     *
+     * @param dst buffer
+     * @return bytes of plaintext, -1 once the server closed its side and everything has been read
+     * @throws IOException io exception
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (appIn != null) {
+                drainAppIn(dst);
+            } else if (!unwrap(dst)) {
+                break;
+            }
+        }
+        if (netIn != null && netIn.position() == 0) {
+            bufferPool.release(netIn);
+            netIn = null;
+        }
+        int read = dst.position() - start;
+        return read == 0 && inputClosed && !hasBuffered() ? -1 : read;
+    }
+
+    /**
+     * Is there plaintext, or a record, left after filling the buffer of the caller?
+     * No OP_READ comes for it, it has to be read again.
+     *
+     * @return true if a read would return bytes without the socket
+     */
+    boolean hasBuffered() {
+        if (appIn != null) {
+            return true;
+        }
+        // a whole record: the header of 5 bytes and the length it gives
+        return netIn != null && netIn.position() >= 5 && netIn.position() >= 5 + (netIn.getShort(3) & 0xffff);
+    }
+
+    /**
+     * Wrap the plaintext into records as long as the socket accepts them
+     *
+     * @return bytes of plaintext consumed, the last record may still wait for {@link #flush()}
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        while (flush() && hasRemaining(srcs, offset, length)) {
+            written += wrap(srcs, offset, length);
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     * Write the records wrapped so far to the socket
+     *
+     * @return true if none is left, false if the socket buffer is full
+     * @throws IOException io exception
+     */
+    boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        if (netOut.position() > 0) {
+            return false;
+        }
+        bufferPool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * @return true if a record, e.g. the answer to a key update, waits to be written
+     */
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closing belongs to the client, it closes the socket channel
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Give back the buffers, the connection is gone
+     */
+    void release() {
+        if (netIn != null) {
+            bufferPool.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            bufferPool.release(netOut);
+            netOut = null;
+        }
+        if (appIn != null) {
+            bufferPool.release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     * Wrap one record into the empty network buffer
+     */
+    private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        netOut = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+        SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new SSLException("TLS wrap " + result.getStatus());
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+        }
+        if (netOut.position() == 0) {
+            bufferPool.release(netOut);
+            netOut = null;
+        }
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Unwrap the next record, into the buffer if it fits, else into the plaintext kept for the next read
+     *
+     * @param dst buffer of the caller, null during the handshake
+     * @return false if no record is complete and the socket has nothing more for now
+     */
+    private boolean unwrap(ByteBuffer dst) throws IOException {
+        if (netIn == null) {
+            netIn = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+        }
+        while (true) {
+            SSLEngineResult result;
+            netIn.flip();
+            try {
+                result = dst == null ? engine.unwrap(netIn, appIn()) : engine.unwrap(netIn, dst);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && dst != null) {
+                    result = engine.unwrap(netIn, appIn());
+                }
+            } finally {
+                netIn.compact();
+            }
+            if (appIn != null && appIn.position() == 0) {
+                bufferPool.release(appIn);
+                appIn = null;
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                    if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP && dst != null && netOut == null) {
+                        // after the handshake, e.g. a key update, the answer goes with the next flush
+                        wrap(new ByteBuffer[]{EMPTY}, 0, 1);
+                    }
+                    return true;
+                case CLOSED:
+                    // close_notify
+                    inputClosed = true;
+                    return false;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+                    }
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        inputClosed = true;
+                        return false;
+                    }
+                    if (read == 0) {
+                        return false;
+                    }
+                    break;
+                default:
+                    throw new SSLException("TLS unwrap " + result.getStatus());
+            }
+        }
+    }
+
+    private ByteBuffer appIn() {
+        if (appIn == null) {
+            appIn = bufferPool.acquire(engine.getSession().getApplicationBufferSize());
+        }
+        return appIn;
+    }
+
+    private void drainAppIn(ByteBuffer dst) {
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        appIn.position(appIn.position() + n);
+        appIn.compact();
+        if (appIn.position() == 0) {
+            bufferPool.release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     * The certificate checks and key exchange, on the calling thread
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
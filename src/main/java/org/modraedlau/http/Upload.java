@@ -0,0 +1,158 @@
+package org.modraedlau.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the body of one attempt of a request from its publisher to the outbound segments.
+ * A few segments are requested ahead, one more each time a segment has been written.
+ *
+ * @author modraedlau
+ */
+final class Upload implements BodySubscriber {
+    /**
+     * segments requested ahead of the socket
+     */
+    private static final int WINDOW = 4;
+
+    private static final byte[] CRLF = {13, 10};
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final SimpleHttpClient client;
+
+    private final TimedRequest request;
+
+    /**
+     * Content-Length, -1 if chunked
+     */
+    private final long length;
+
+    /**
+     * body bytes queued so far, guarded by the lock of the client
+     */
+    private long sent;
+
+    private volatile BodySubscription subscription;
+
+    private volatile boolean cancelled;
+
+    /**
+     * requests one more segment, run when a segment has been written
+     */
+    private final Runnable demand = this::requestOne;
+
+    Upload(SimpleHttpClient client, TimedRequest request, long length) {
+        this.client = client;
+        this.request = request;
+        this.length = length;
+    }
+
+    @Override
+    public void onSubscribe(BodySubscription subscription) {
+        this.subscription = subscription;
+        if (cancelled) {
+            subscription.cancel();
+        } else {
+            subscription.request(WINDOW);
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer segment) {
+        int n = segment.remaining();
+        if (n == 0) {
+            requestOne();
+            return;
+        }
+        // copied, the publisher may reuse its buffer
+        byte[] size = length < 0 ? Integer.toHexString(n).getBytes(StandardCharsets.US_ASCII) : null;
+        ByteBuffer buffer = client.getBufferPool().acquire(size == null ? n : size.length + n + 2 * CRLF.length);
+        if (size != null) {
+            buffer.put(size).put(CRLF);
+        }
+        buffer.put(segment);
+        if (size != null) {
+            buffer.put(CRLF);
+        }
+        buffer.flip();
+        try {
+            client.lock();
+            if (!isCurrent()) {
+                client.getBufferPool().release(buffer);
+                cancel();
+                return;
+            }
+            sent += n;
+            if (length >= 0 && sent > length) {
+                client.getBufferPool().release(buffer);
+                client.abortUpload(this, new IOException("Body longer than its Content-Length: " + length));
+                return;
+            }
+            client.getOutbound().add(buffer, demand);
+        } finally {
+            client.unlock();
+        }
+        client.scheduleFlush();
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        client.abortUpload(this, e);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            client.lock();
+            if (!isCurrent()) {
+                return;
+            }
+            if (length >= 0 && sent != length) {
+                client.abortUpload(this, new IOException("Body shorter than its Content-Length: " + length));
+                return;
+            }
+            // the last segment ends the request
+            client.getOutbound().addBody(ByteBuffer.wrap(length < 0 ? LAST_CHUNK : new byte[0]), request);
+            request.setBodyQueued(true);
+        } finally {
+            client.unlock();
+        }
+        // the next requests can be encoded
+        client.scheduleFlush();
+    }
+
+    TimedRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * The attempt is over, the publisher is told to stop
+     */
+    void cancel() {
+        cancelled = true;
+        BodySubscription subscription = this.subscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void requestOne() {
+        BodySubscription subscription = this.subscription;
+        if (subscription != null && !cancelled && !request.isBodyQueued()) {
+            try {
+                subscription.request(1);
+            } catch (RuntimeException e) {
+                onError(e);
+            }
+        }
+    }
+
+    /**
+     * @return true if this is still the attempt being written, with the lock held
+     */
+    private boolean isCurrent() {
+        return !cancelled && request.getUpload() == this && !request.getPromise().isDone();
+    }
+}
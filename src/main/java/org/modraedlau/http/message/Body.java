@@ -0,0 +1,136 @@
+package org.modraedlau.http.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Raw body bytes, one exact-sized array when the length is known and not too large, otherwise a list of segments
+ *
+ * @author modraedlau
+ */
+final class Body {
+    private static final int SEGMENT_SIZE = 8 * 1024;
+
+    /**
+     * the Content-Length of the server is trusted up to this, beyond it the body grows as it is read
+     */
+    private static final int MAX_PREALLOCATION = 1024 * 1024;
+
+    /**
+     * the segments grow with the body up to this size
+     */
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * the exact-sized array or the segment being filled
+     */
+    private byte[] bytes = EMPTY;
+
+    /**
+     * index for bytes
+     */
+    private int position;
+
+    /**
+     * full segments before bytes, null while the body fits in one array
+     */
+    private List<byte[]> segments;
+
+    private int length;
+
+    /**
+     * guards the merge against concurrent readers, not held while appending
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Allocate the whole body at once when its length is known, at most 1MB until the bytes arrive
+     *
+     * @param length body length
+     */
+    void expect(int length) {
+        if (bytes == EMPTY && length > 0) {
+            bytes = new byte[Math.min(length, MAX_PREALLOCATION)];
+        }
+    }
+
+    void append(ByteBuffer in, int n) {
+        while (n > 0) {
+            if (position == bytes.length) {
+                if (bytes != EMPTY) {
+                    if (segments == null) {
+                        segments = new ArrayList<>();
+                    }
+                    segments.add(bytes);
+                }
+                // about as much again as was read, so a large body is not in too many segments
+                bytes = new byte[Math.min(Math.max(SEGMENT_SIZE, length), MAX_SEGMENT_SIZE)];
+                position = 0;
+            }
+            int count = Math.min(n, bytes.length - position);
+            in.get(bytes, position, count);
+            position += count;
+            length += count;
+            n -= count;
+        }
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Locked like {@link #toStream()}, a response shared by coalesced requests is read from several threads
+     *
+     * @return read-only view of the bytes, the segments are merged once on the first call
+     */
+    ByteBuffer toBuffer() {
+        try {
+            lock.lock();
+            merge();
+            return ByteBuffer.wrap(bytes, 0, position).slice().asReadOnlyBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    InputStream toStream() {
+        try {
+            lock.lock();
+            if (segments == null) {
+                return new ByteArrayInputStream(bytes, 0, position);
+            }
+            List<InputStream> streams = new ArrayList<>(segments.size() + 1);
+            for (byte[] segment : segments) {
+                streams.add(new ByteArrayInputStream(segment));
+            }
+            streams.add(new ByteArrayInputStream(bytes, 0, position));
+            return new SequenceInputStream(Collections.enumeration(streams));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void merge() {
+        if (segments != null) {
+            byte[] merged = new byte[length];
+            int offset = 0;
+            for (byte[] segment : segments) {
+                System.arraycopy(segment, 0, merged, offset, segment.length);
+                offset += segment.length;
+            }
+            System.arraycopy(bytes, 0, merged, offset, position);
+            segments = null;
+            bytes = merged;
+            position = length;
+        }
+    }
+}
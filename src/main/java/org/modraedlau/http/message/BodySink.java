@@ -0,0 +1,42 @@
+package org.modraedlau.http.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the body bytes as they are decoded, instead of the response keeping them
+ *
+ * @author modraedlau
+ */
+public interface BodySink {
+
+    /**
+     * The status line and headers have been decoded
+     *
+     * @param response response without body
+     */
+    void open(HttpResponse response);
+
+    /**
+     * Decoding of the body stops while the sink is not ready, and resumes once it is
+     *
+     * @return true if the sink accepts bytes now
+     */
+    boolean ready();
+
+    /**
+     * @param segment body bytes, only valid during the call
+     */
+    void write(ByteBuffer segment);
+
+    /**
+     * The whole body has been written
+     */
+    void complete();
+
+    /**
+     * The body could not be read to the end
+     *
+     * @param e cause
+     */
+    void error(Throwable e);
+}
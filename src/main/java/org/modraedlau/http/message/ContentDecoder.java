@@ -0,0 +1,348 @@
+package org.modraedlau.http.message;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip or deflate body as it is read. One per connection, reused by its responses:
+ * the byte arrays are kept and the inflater is borrowed from the pool for one body only.
+ * Each input segment gives at most one output segment, so a sink receives no more segments than it asked for.
+ *
+ * @author modraedlau
+ */
+final class ContentDecoder {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * output arrays grown beyond this by a highly compressed segment are not kept
+     */
+    private static final int MAX_KEPT_SIZE = 256 * 1024;
+
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+    private static final int GZIP_DEFLATE = 8;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private enum State {
+        /**
+         * the two bytes telling a zlib stream from raw deflate
+         */
+        DEFLATE_START,
+        GZIP_HEADER,
+        INFLATE,
+        GZIP_TRAILER,
+        DONE
+    }
+
+    private final InflaterPool inflaterPool;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] input = new byte[BUFFER_SIZE];
+
+    private byte[] output = new byte[BUFFER_SIZE];
+
+    private State state;
+
+    private boolean gzip;
+
+    /**
+     * null when no body is being decoded
+     */
+    private Inflater inflater;
+
+    private boolean nowrap;
+
+    /**
+     * bytes of the input array the inflater has been given
+     */
+    private int inputEnd;
+
+    /**
+     * input left after the end of a deflate stream, read by the trailer
+     */
+    private int pending;
+
+    /**
+     * header or trailer bytes, and the flags and field lengths of a gzip header
+     */
+    private final byte[] fields = new byte[12];
+    private int fieldCount;
+    private int flags;
+    private int skip;
+
+    /**
+     * decoded bytes of the current segment
+     */
+    private int produced;
+
+    ContentDecoder(InflaterPool inflaterPool) {
+        this.inflaterPool = inflaterPool;
+    }
+
+    /**
+     * @param coding value of the Content-Encoding header
+     * @return true if decoded here
+     */
+    static boolean isSupported(String coding) {
+        return isGzip(coding) || coding.equalsIgnoreCase("deflate");
+    }
+
+    private static boolean isGzip(String coding) {
+        return coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip");
+    }
+
+    /**
+     * Start decoding a body
+     *
+     * @param coding a supported content coding
+     */
+    void start(String coding) {
+        release();
+        gzip = isGzip(coding);
+        state = gzip ? State.GZIP_HEADER : State.DEFLATE_START;
+        fieldCount = 0;
+        skip = 0;
+        flags = 0;
+        pending = 0;
+        crc.reset();
+    }
+
+    /**
+     * Decode body bytes
+     *
+     * @param in     buffer, its position is moved past the bytes
+     * @param length number of bytes
+     * @return decoded bytes, valid until the next call
+     * @throws ProtocolException if the bytes are not in the coding
+     */
+    ByteBuffer decode(ByteBuffer in, int length) throws ProtocolException {
+        produced = 0;
+        int end = in.position() + length;
+        try {
+            while (true) {
+                if (state == State.INFLATE) {
+                    if (inflater.needsInput() && pending > 0) {
+                        // the next gzip member starts in the input of the previous one
+                        inflater.setInput(input, inputEnd - pending, pending);
+                        pending = 0;
+                    } else if (inflater.needsInput()) {
+                        int n = end - in.position();
+                        if (n == 0) {
+                            break;
+                        }
+                        n = Math.min(n, input.length);
+                        in.get(input, 0, n);
+                        inflater.setInput(input, 0, n);
+                        inputEnd = n;
+                    }
+                    inflate();
+                    if (inflater.finished()) {
+                        // the rest of the input belongs to the trailer
+                        pending = inflater.getRemaining();
+                        state = gzip ? State.GZIP_TRAILER : State.DONE;
+                        fieldCount = 0;
+                    }
+                    continue;
+                }
+                int b;
+                if (pending > 0) {
+                    b = input[inputEnd - pending--] & 0xff;
+                } else if (in.position() < end) {
+                    b = in.get() & 0xff;
+                } else {
+                    break;
+                }
+                next(b);
+            }
+        } catch (DataFormatException e) {
+            in.position(end);
+            throw new ProtocolException("Illegal " + (gzip ? "gzip" : "deflate") + " body: " + e.getMessage());
+        }
+        return ByteBuffer.wrap(output, 0, produced);
+    }
+
+    /**
+     * The body ended
+     *
+     * @throws ProtocolException if it was cut off
+     */
+    void finish() throws ProtocolException {
+        // an empty body is fine too
+        boolean complete = state == State.DONE
+            || (state != State.INFLATE && state != State.GZIP_TRAILER && fieldCount == 0);
+        release();
+        if (!complete) {
+            throw new ProtocolException("Compressed body cut off");
+        }
+    }
+
+    /**
+     * Give the inflater back, the body is not decoded any further
+     */
+    void release() {
+        if (inflater != null) {
+            inflaterPool.release(inflater, nowrap);
+            inflater = null;
+        }
+        if (output.length > MAX_KEPT_SIZE) {
+            output = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void inflate() throws DataFormatException {
+        while (true) {
+            if (produced == output.length) {
+                byte[] grown = new byte[output.length * 2];
+                System.arraycopy(output, 0, grown, 0, produced);
+                output = grown;
+            }
+            int n = inflater.inflate(output, produced, output.length - produced);
+            if (n == 0) {
+                if (inflater.finished() || inflater.needsInput()) {
+                    return;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new DataFormatException("preset dictionary");
+                }
+            }
+            if (gzip) {
+                crc.update(output, produced, n);
+            }
+            produced += n;
+        }
+    }
+
+    /**
+     * A byte outside of the deflate stream
+     */
+    private void next(int b) throws DataFormatException {
+        switch (state) {
+            case DEFLATE_START:
+                fields[fieldCount++] = (byte) b;
+                if (fieldCount == 2) {
+                    // a zlib header is CM 8 and a multiple of 31, some servers send raw deflate
+                    int cmf = fields[0] & 0xff;
+                    boolean zlib = (cmf & 0x0f) == GZIP_DEFLATE && ((cmf << 8) | b) % 31 == 0;
+                    startInflater(!zlib);
+                    input[0] = fields[0];
+                    input[1] = fields[1];
+                    inflater.setInput(input, 0, 2);
+                    inputEnd = 2;
+                }
+                break;
+            case GZIP_HEADER:
+                gzipHeader(b);
+                break;
+            case GZIP_TRAILER:
+                fields[fieldCount++] = (byte) b;
+                if (fieldCount == 8) {
+                    if ((int) crc.getValue() != intLe(0) || inflater.getBytesWritten() % (1L << 32) != (intLe(4) & 0xffffffffL)) {
+                        throw new DataFormatException("corrupt gzip trailer");
+                    }
+                    state = State.DONE;
+                }
+                break;
+            case DONE:
+                if (!gzip) {
+                    throw new DataFormatException("data after the end of the stream");
+                }
+                // another gzip member
+                state = State.GZIP_HEADER;
+                fieldCount = 0;
+                crc.reset();
+                gzipHeader(b);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void gzipHeader(int b) throws DataFormatException {
+        if (fieldCount < 10) {
+            fields[fieldCount++] = (byte) b;
+            if (fieldCount == 10) {
+                if ((fields[0] & 0xff) != GZIP_MAGIC_1 || (fields[1] & 0xff) != GZIP_MAGIC_2
+                    || fields[2] != GZIP_DEFLATE) {
+                    throw new DataFormatException("not in gzip format");
+                }
+                flags = fields[3] & (FHCRC | FEXTRA | FNAME | FCOMMENT);
+                endOfField();
+            }
+            return;
+        }
+        if ((flags & FEXTRA) != 0) {
+            if (fieldCount < 12) {
+                // length of the extra field, little endian
+                fields[fieldCount++] = (byte) b;
+                if (fieldCount == 12) {
+                    skip = (fields[10] & 0xff) | (fields[11] & 0xff) << 8;
+                    if (skip == 0) {
+                        flags &= ~FEXTRA;
+                        endOfField();
+                    }
+                }
+            } else if (--skip == 0) {
+                flags &= ~FEXTRA;
+                endOfField();
+            }
+            return;
+        }
+        if ((flags & FNAME) != 0) {
+            if (b == 0) {
+                flags &= ~FNAME;
+                endOfField();
+            }
+            return;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            if (b == 0) {
+                flags &= ~FCOMMENT;
+                endOfField();
+            }
+            return;
+        }
+        if (--skip == 0) {
+            flags &= ~FHCRC;
+            endOfField();
+        }
+    }
+
+    /**
+     * Go on with the next optional field of the gzip header, or the deflate stream
+     */
+    private void endOfField() {
+        if ((flags & (FEXTRA | FNAME | FCOMMENT)) != 0) {
+            return;
+        }
+        if ((flags & FHCRC) != 0) {
+            skip = 2;
+            return;
+        }
+        fieldCount = 0;
+        startInflater(true);
+    }
+
+    private void startInflater(boolean nowrap) {
+        if (inflater == null || this.nowrap != nowrap) {
+            release();
+            inflater = inflaterPool.acquire(nowrap);
+            this.nowrap = nowrap;
+        } else {
+            inflater.reset();
+        }
+        state = State.INFLATE;
+    }
+
+    private int intLe(int offset) {
+        return (fields[offset] & 0xff) | (fields[offset + 1] & 0xff) << 8
+            | (fields[offset + 2] & 0xff) << 16 | (fields[offset + 3] & 0xff) << 24;
+    }
+}
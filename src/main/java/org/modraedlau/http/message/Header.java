@@ -6,8 +6,29 @@ package org.modraedlau.http.message;
  * @author modraedlau
  */
 public class Header {
+    public static final String HOST = "Host";
     public static final String SERVER = "Server";
     public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_TYPE = "Content-Type";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String CONNECTION = "Connection";
+    public static final String KEEP_ALIVE = "Keep-Alive";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String PRAGMA = "Pragma";
+    public static final String DATE = "Date";
+    public static final String AGE = "Age";
+    public static final String EXPIRES = "Expires";
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String VARY = "Vary";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final String CHUNKED = "chunked";
+    public static final String CLOSE = "close";
+    public static final String KEEP_ALIVE_OPTION = "keep-alive";
 
     private String name;
     private String value;
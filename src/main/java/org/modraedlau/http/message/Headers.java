@@ -0,0 +1,358 @@
+package org.modraedlau.http.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Header fields of a message, a case-insensitive multimap in insertion order.
+ * The fields are kept in parallel arrays. The well-known names are interned and indexed, so looking one up
+ * does not scan. The values decoded from the wire stay in one byte array until they are asked for.
+ *
+ * @author modraedlau
+ */
+public class Headers implements Iterable<Header> {
+    /**
+     * well-known names, in their usual case
+     */
+    private static final String[] KNOWN = {
+        Header.HOST, Header.SERVER, Header.CONTENT_LENGTH, Header.CONTENT_TYPE, Header.TRANSFER_ENCODING,
+        Header.CONNECTION, Header.KEEP_ALIVE, Header.ACCEPT_ENCODING, Header.CONTENT_ENCODING,
+        Header.CACHE_CONTROL, Header.PRAGMA, Header.DATE, Header.AGE, Header.EXPIRES, Header.ETAG,
+        Header.LAST_MODIFIED, Header.VARY, Header.IF_NONE_MATCH, Header.IF_MODIFIED_SINCE,
+        "Accept", "Accept-Language", "Accept-Ranges", "Access-Control-Allow-Origin", "Allow",
+        "Authorization", "Content-Disposition", "Content-Language", "Content-Location",
+        "Content-Range", "Cookie", "Expect", "If-Match", "If-Range", "If-Unmodified-Since", "Link", "Location",
+        "Proxy-Authenticate", "Proxy-Authorization", "Range", "Referer", "Retry-After", "Set-Cookie",
+        "Strict-Transport-Security", "Trailer", "Upgrade", "User-Agent", "Via", "Warning",
+        "WWW-Authenticate", "X-Content-Type-Options", "X-Frame-Options", "X-Request-Id"
+    };
+
+    /**
+     * open addressing table of the known names by their case-folded hash, -1 for a free slot
+     */
+    private static final int[] TABLE = new int[256];
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    static {
+        Arrays.fill(TABLE, -1);
+        for (int id = 0; id < KNOWN.length; id++) {
+            int slot = hash(KNOWN[id]) & (TABLE.length - 1);
+            while (TABLE[slot] >= 0) {
+                slot = (slot + 1) & (TABLE.length - 1);
+            }
+            TABLE[slot] = id;
+        }
+    }
+
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    /**
+     * decoded values, null while still in the bytes
+     */
+    private String[] values = new String[INITIAL_CAPACITY];
+
+    /**
+     * id of the known name of each field, -1 for another name
+     */
+    private byte[] ids = new byte[INITIAL_CAPACITY];
+
+    /**
+     * values from the wire, the offset and length of each one
+     */
+    private byte[] bytes;
+    private int bytesLength;
+    private int[] offsets;
+    private int[] lengths;
+
+    /**
+     * position + 1 of the first field of each known name, 0 if absent
+     */
+    private final int[] first = new int[KNOWN.length];
+
+    private int size;
+
+    private List<Header> view;
+
+    /**
+     * Add a field, the other values of the name are kept
+     *
+     * @param name  name, a known one in any case is interned
+     * @param value value
+     */
+    public void add(String name, String value) {
+        int id = knownId(name);
+        int i = append(id, id >= 0 ? KNOWN[id] : name);
+        values[i] = value;
+    }
+
+    /**
+     * Add a field decoded from the wire, the value is copied and only made a string when asked for
+     *
+     * @param line       bytes of the line
+     * @param nameEnd    end of the name, it starts at 0
+     * @param valueStart start of the value
+     * @param valueEnd   end of the value
+     */
+    void add(byte[] line, int nameEnd, int valueStart, int valueEnd) {
+        int id = knownId(line, nameEnd);
+        int i = append(id, id >= 0 ? KNOWN[id] : new String(line, 0, nameEnd, StandardCharsets.ISO_8859_1));
+        int length = valueEnd - valueStart;
+        if (bytes == null) {
+            bytes = new byte[Math.max(256, length)];
+            offsets = new int[names.length];
+            lengths = new int[names.length];
+        } else if (bytesLength + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesLength + length));
+        }
+        System.arraycopy(line, valueStart, bytes, bytesLength, length);
+        offsets[i] = bytesLength;
+        lengths[i] = length;
+        bytesLength += length;
+    }
+
+    /**
+     * @param name name, in any case
+     * @return the first value of the name, null if absent
+     */
+    public String get(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * @param name name, in any case
+     * @return every value of the name in order, empty if absent
+     */
+    public List<String> getAll(String name) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return Collections.emptyList();
+        }
+        List<String> all = new ArrayList<>(1);
+        int id = ids[i];
+        for (; i < size; i++) {
+            if (id >= 0 ? ids[i] == id : names[i].equalsIgnoreCase(name)) {
+                all.add(value(i));
+            }
+        }
+        return all;
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * @param name name, in any case
+     * @return position of the first field of the name, -1 if absent
+     */
+    public int indexOf(String name) {
+        int id = knownId(name);
+        if (id >= 0) {
+            return first[id] - 1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ids[i] < 0 && names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove every field of the name
+     *
+     * @param name name, in any case
+     * @return number of fields removed
+     */
+    public int remove(String name) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return 0;
+        }
+        int id = ids[i];
+        int kept = i;
+        for (; i < size; i++) {
+            if (id >= 0 ? ids[i] == id : names[i].equalsIgnoreCase(name)) {
+                continue;
+            }
+            names[kept] = names[i];
+            values[kept] = values[i];
+            ids[kept] = ids[i];
+            if (offsets != null) {
+                offsets[kept] = offsets[i];
+                lengths[kept] = lengths[i];
+            }
+            kept++;
+        }
+        int removed = size - kept;
+        Arrays.fill(names, kept, size, null);
+        Arrays.fill(values, kept, size, null);
+        size = kept;
+        Arrays.fill(first, 0);
+        for (int j = size - 1; j >= 0; j--) {
+            if (ids[j] >= 0) {
+                first[ids[j]] = j + 1;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    public String value(int index) {
+        checkIndex(index);
+        String value = values[index];
+        if (value == null) {
+            value = new String(bytes, offsets[index], lengths[index], StandardCharsets.ISO_8859_1);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return read-only list of the fields, the elements are made as they are read
+     */
+    public List<Header> asList() {
+        if (view == null) {
+            view = new AbstractList<Header>() {
+                @Override
+                public Header get(int index) {
+                    return new Header(name(index), value(index));
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return view;
+    }
+
+    @Override
+    public Iterator<Header> iterator() {
+        return new Iterator<Header>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Header next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                Header header = new Header(names[next], value(next));
+                next++;
+                return header;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+
+    private int append(int id, String name) {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            if (offsets != null) {
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+        }
+        int i = size++;
+        names[i] = name;
+        ids[i] = (byte) id;
+        if (id >= 0 && first[id] == 0) {
+            first[id] = i + 1;
+        }
+        return i;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    /**
+     * @return id of the known name, -1 if not known
+     */
+    static int knownId(String name) {
+        int slot = hash(name) & (TABLE.length - 1);
+        int id;
+        while ((id = TABLE[slot]) >= 0) {
+            String known = KNOWN[id];
+            if (known.length() == name.length() && known.equalsIgnoreCase(name)) {
+                return id;
+            }
+            slot = (slot + 1) & (TABLE.length - 1);
+        }
+        return -1;
+    }
+
+    private static int knownId(byte[] line, int nameEnd) {
+        int h = 0;
+        for (int i = 0; i < nameEnd; i++) {
+            h = 31 * h + fold(line[i] & 0xff);
+        }
+        int slot = h & (TABLE.length - 1);
+        int id;
+        while ((id = TABLE[slot]) >= 0) {
+            if (matches(KNOWN[id], line, nameEnd)) {
+                return id;
+            }
+            slot = (slot + 1) & (TABLE.length - 1);
+        }
+        return -1;
+    }
+
+    private static boolean matches(String known, byte[] line, int nameEnd) {
+        if (known.length() != nameEnd) {
+            return false;
+        }
+        for (int i = 0; i < nameEnd; i++) {
+            if (fold(known.charAt(i)) != fold(line[i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0, n = name.length(); i < n; i++) {
+            h = 31 * h + fold(name.charAt(i));
+        }
+        return h;
+    }
+
+    /**
+     * ASCII lower case, names are tokens
+     */
+    private static int fold(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
@@ -0,0 +1,127 @@
+package org.modraedlau.http.message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The static table of HPACK, RFC 7541 appendix A, and the size rules shared by the encoder and the decoder
+ *
+ * @author modraedlau
+ */
+final class Hpack {
+    /**
+     * indexed from 1, the dynamic table follows
+     */
+    static final Header[] STATIC_TABLE = {
+        new Header(":authority", ""),
+        new Header(":method", "GET"),
+        new Header(":method", "POST"),
+        new Header(":path", "/"),
+        new Header(":path", "/index.html"),
+        new Header(":scheme", "http"),
+        new Header(":scheme", "https"),
+        new Header(":status", "200"),
+        new Header(":status", "204"),
+        new Header(":status", "206"),
+        new Header(":status", "304"),
+        new Header(":status", "400"),
+        new Header(":status", "404"),
+        new Header(":status", "500"),
+        new Header("accept-charset", ""),
+        new Header("accept-encoding", "gzip, deflate"),
+        new Header("accept-language", ""),
+        new Header("accept-ranges", ""),
+        new Header("accept", ""),
+        new Header("access-control-allow-origin", ""),
+        new Header("age", ""),
+        new Header("allow", ""),
+        new Header("authorization", ""),
+        new Header("cache-control", ""),
+        new Header("content-disposition", ""),
+        new Header("content-encoding", ""),
+        new Header("content-language", ""),
+        new Header("content-length", ""),
+        new Header("content-location", ""),
+        new Header("content-range", ""),
+        new Header("content-type", ""),
+        new Header("cookie", ""),
+        new Header("date", ""),
+        new Header("etag", ""),
+        new Header("expect", ""),
+        new Header("expires", ""),
+        new Header("from", ""),
+        new Header("host", ""),
+        new Header("if-match", ""),
+        new Header("if-modified-since", ""),
+        new Header("if-none-match", ""),
+        new Header("if-range", ""),
+        new Header("if-unmodified-since", ""),
+        new Header("last-modified", ""),
+        new Header("link", ""),
+        new Header("location", ""),
+        new Header("max-forwards", ""),
+        new Header("proxy-authenticate", ""),
+        new Header("proxy-authorization", ""),
+        new Header("range", ""),
+        new Header("referer", ""),
+        new Header("refresh", ""),
+        new Header("retry-after", ""),
+        new Header("server", ""),
+        new Header("set-cookie", ""),
+        new Header("strict-transport-security", ""),
+        new Header("transfer-encoding", ""),
+        new Header("user-agent", ""),
+        new Header("vary", ""),
+        new Header("via", ""),
+        new Header("www-authenticate", "")
+    };
+
+    /**
+     * overhead of an entry of the dynamic table
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * first static index of each name, and the index of each name and value pair
+     */
+    private static final Map<String, Integer> NAMES = new HashMap<>();
+    private static final Map<String, Integer> FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            Header header = STATIC_TABLE[i];
+            NAMES.put(header.getName(), i + 1);
+            if (!header.getValue().isEmpty()) {
+                FIELDS.put(header.getName() + ':' + header.getValue(), i + 1);
+            }
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * @param name lower case name
+     * @return static index of the name, 0 if none
+     */
+    static int nameIndex(String name) {
+        Integer index = NAMES.get(name);
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * @param name  lower case name
+     * @param value value
+     * @return static index of the field, 0 if none
+     */
+    static int fieldIndex(String name, String value) {
+        Integer index = FIELDS.get(name + ':' + value);
+        return index == null ? 0 : index;
+    }
+
+    static int entrySize(Header header) {
+        return header.getName().length() + header.getValue().length() + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,179 @@
+package org.modraedlau.http.message;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK decoder of one HTTP/2 connection, it keeps the dynamic table between the header blocks
+ *
+ * @author modraedlau
+ */
+public class HpackDecoder {
+    /**
+     * dynamic table, the newest entry last
+     */
+    private final List<Header> dynamicTable = new ArrayList<>();
+
+    private int tableSize;
+
+    /**
+     * the table size the encoder may use, as announced in the settings
+     */
+    private int maxTableSize = Hpack.DEFAULT_TABLE_SIZE;
+
+    /**
+     * the table size set by the encoder, at most the max
+     */
+    private int capacity = Hpack.DEFAULT_TABLE_SIZE;
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * position in the block being decoded
+     */
+    private int position;
+
+    /**
+     * Decode a whole header block, i.e. the fragments of a HEADERS frame and its CONTINUATION frames
+     *
+     * @param block  bytes
+     * @param offset first byte
+     * @param length number of bytes
+     * @return fields in order, the pseudo-header names start with ':'
+     * @throws ProtocolException if the block is not valid HPACK, the connection can not be used any more
+     */
+    public List<Header> decode(byte[] block, int offset, int length) throws ProtocolException {
+        List<Header> headers = new ArrayList<>();
+        position = offset;
+        int end = offset + length;
+        boolean fields = false;
+        while (position < end) {
+            int b = block[position] & 0xff;
+            if ((b & 0x80) != 0) {
+                // indexed field
+                headers.add(entry(readInteger(block, end, 7)));
+                fields = true;
+            } else if ((b & 0xc0) == 0x40) {
+                // literal with incremental indexing
+                Header header = literal(block, end, 6);
+                add(header);
+                headers.add(header);
+                fields = true;
+            } else if ((b & 0xe0) == 0x20) {
+                // dynamic table size update, only before the first field
+                int size = readInteger(block, end, 5);
+                if (fields || size > maxTableSize) {
+                    throw new ProtocolException("Illegal dynamic table size update: " + size);
+                }
+                capacity = size;
+                evict(0);
+            } else {
+                // literal without indexing, or never indexed
+                headers.add(literal(block, end, 4));
+                fields = true;
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * The SETTINGS_HEADER_TABLE_SIZE announced to the peer
+     *
+     * @param maxTableSize max size of the dynamic table
+     */
+    public void setMaxTableSize(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        if (capacity > maxTableSize) {
+            capacity = maxTableSize;
+            evict(0);
+        }
+    }
+
+    /**
+     * @return number of entries in the dynamic table
+     */
+    public int getTableLength() {
+        return dynamicTable.size();
+    }
+
+    private Header literal(byte[] block, int end, int prefix) throws ProtocolException {
+        int index = readInteger(block, end, prefix);
+        String name = index == 0 ? readString(block, end) : entry(index).getName();
+        String value = readString(block, end);
+        return new Header(name, value);
+    }
+
+    private Header entry(int index) throws ProtocolException {
+        if (index >= 1 && index <= Hpack.STATIC_TABLE.length) {
+            return Hpack.STATIC_TABLE[index - 1];
+        }
+        int dynamic = index - Hpack.STATIC_TABLE.length - 1;
+        if (dynamic < 0 || dynamic >= dynamicTable.size()) {
+            throw new ProtocolException("Illegal HPACK index: " + index);
+        }
+        return dynamicTable.get(dynamicTable.size() - 1 - dynamic);
+    }
+
+    private void add(Header header) {
+        int size = Hpack.entrySize(header);
+        evict(size);
+        if (size <= capacity) {
+            // an entry larger than the table only empties it
+            dynamicTable.add(header);
+            tableSize += size;
+        }
+    }
+
+    /**
+     * Evict the oldest entries until there is room for the size
+     */
+    private void evict(int size) {
+        while (!dynamicTable.isEmpty() && tableSize + size > capacity) {
+            tableSize -= Hpack.entrySize(dynamicTable.remove(0));
+        }
+    }
+
+    /**
+     * Integer with an N-bit prefix, RFC 7541 section 5.1
+     */
+    private int readInteger(byte[] block, int end, int prefix) throws ProtocolException {
+        int max = (1 << prefix) - 1;
+        int value = block[position++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; ; shift += 7) {
+            if (position == end || shift > 21) {
+                throw new ProtocolException("Illegal HPACK integer");
+            }
+            int b = block[position++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private String readString(byte[] block, int end) throws ProtocolException {
+        if (position == end) {
+            throw new ProtocolException("Truncated HPACK string");
+        }
+        boolean huffman = (block[position] & 0x80) != 0;
+        int length = readInteger(block, end, 7);
+        if (length > end - position) {
+            throw new ProtocolException("Truncated HPACK string");
+        }
+        String s;
+        if (huffman) {
+            text.setLength(0);
+            Huffman.decode(block, position, length, text);
+            s = text.toString();
+        } else {
+            s = new String(block, position, length, StandardCharsets.ISO_8859_1);
+        }
+        position += length;
+        return s;
+    }
+}
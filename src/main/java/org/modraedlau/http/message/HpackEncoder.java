@@ -0,0 +1,76 @@
+package org.modraedlau.http.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HPACK encoder, it only uses the static table and raw strings, so it keeps no state
+ * and the peer may announce any table size
+ *
+ * @author modraedlau
+ */
+public class HpackEncoder {
+    /**
+     * the bytes of an integer of up to 2^28 after its prefix
+     */
+    private static final int MAX_INTEGER_LENGTH = 5;
+
+    /**
+     * Upper bound of the encoded length of a field
+     *
+     * @param name  name
+     * @param value value
+     * @return max number of bytes
+     */
+    public static int maxLength(String name, String value) {
+        return 1 + 2 * MAX_INTEGER_LENGTH + name.length() + value.length();
+    }
+
+    /**
+     * Encode a field. The credentials are never indexed, so that no intermediary stores them either.
+     *
+     * @param name  lower case name, or pseudo-header name
+     * @param value value
+     * @param out   buffer with room for {@link #maxLength(String, String)} bytes
+     */
+    public void encode(String name, String value, ByteBuffer out) {
+        int index = Hpack.fieldIndex(name, value);
+        if (index > 0) {
+            writeInteger(0x80, 7, index, out);
+            return;
+        }
+        int first = isSensitive(name) ? 0x10 : 0x00;
+        int nameIndex = Hpack.nameIndex(name);
+        writeInteger(first, 4, nameIndex, out);
+        if (nameIndex == 0) {
+            writeString(name, out);
+        }
+        writeString(value, out);
+    }
+
+    private static boolean isSensitive(String name) {
+        return name.equals("authorization") || name.equals("proxy-authorization") || name.equals("cookie");
+    }
+
+    private static void writeInteger(int first, int prefix, int value, ByteBuffer out) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.put((byte) (first | value));
+            return;
+        }
+        out.put((byte) (first | max));
+        value -= max;
+        while (value >= 0x80) {
+            out.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void writeString(String s, ByteBuffer out) {
+        writeInteger(0x00, 7, s.length(), out);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            out.put((byte) (c < 256 ? c : '?'));
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package org.modraedlau.http.message;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -13,26 +12,38 @@ public class HttpMessage {
     public static final String HTTP_1_1 = "HTTP/1.1";
     public static final String HTTP_2_0 = "HTTP/2.0";
 
-    private List<Header> headers;
-
-    public HttpMessage() {
-        headers = new ArrayList<>();
-    }
+    private final Headers headers = new Headers();
 
+    /**
+     * Add a header, the other values of the name are kept
+     *
+     * @param name  name
+     * @param value value
+     */
     public void setHeader(String name, String value) {
-        headers.add(new Header(name, value));
+        headers.add(name, value);
     }
 
+    /**
+     * @param name name, in any case
+     * @return the first header of the name, null if absent
+     */
     public Header getHeader(String name) {
-        for (Header header : headers) {
-            if (header.getName().equalsIgnoreCase(name)) {
-                return header;
-            }
-        }
-        return null;
+        int index = headers.indexOf(name);
+        return index < 0 ? null : new Header(headers.name(index), headers.value(index));
     }
 
+    /**
+     * @return read-only list of the headers, see {@link #headers()} to look them up
+     */
     public List<Header> getHeaders() {
+        return headers.asList();
+    }
+
+    /**
+     * @return the headers, indexed by name
+     */
+    public Headers headers() {
         return headers;
     }
 }
@@ -1,5 +1,7 @@
 package org.modraedlau.http.message;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Http method
  *
@@ -9,10 +11,67 @@ public enum HttpMethod {
     /**
      * Http get method
      */
-    GET,
+    GET(true, false),
+
+    /**
+     * Http head method, the response has no body
+     */
+    HEAD(true, false),
 
     /**
      * Http post method
      */
-    POST,
+    POST(false, true),
+
+    /**
+     * Http put method
+     */
+    PUT(true, true),
+
+    /**
+     * Http delete method
+     */
+    DELETE(true, false),
+
+    /**
+     * Http patch method
+     */
+    PATCH(false, true),
+
+    /**
+     * Http options method
+     */
+    OPTIONS(true, false);
+
+    /**
+     * can be sent again when the response was lost
+     */
+    private final boolean idempotent;
+
+    /**
+     * the request carries a body, an empty one is sent with Content-Length: 0
+     */
+    private final boolean expectsBody;
+
+    /**
+     * method and SP, as written in the request line
+     */
+    private final byte[] bytes = (name() + " ").getBytes(StandardCharsets.US_ASCII);
+
+    HttpMethod(boolean idempotent, boolean expectsBody) {
+        this.idempotent = idempotent;
+        this.expectsBody = expectsBody;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    public boolean expectsBody() {
+        return expectsBody;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
 }
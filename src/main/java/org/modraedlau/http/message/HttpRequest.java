@@ -15,12 +15,40 @@ public class HttpRequest extends HttpMessage {
 
     private CompletableFuture<HttpResponse> promise;
 
+    /**
+     * receives the body instead of the response if not null
+     */
+    private BodySink bodySink;
+
+    /**
+     * encoded and queued to be written
+     */
+    private volatile boolean encoded = false;
+
+    /**
+     * all the bytes have been written to the channel
+     */
     private volatile boolean written = false;
 
+    /**
+     * the head of the response has been decoded
+     */
+    private volatile boolean answered = false;
+
+    /**
+     * times sent again on a new connection after an error
+     */
+    private int replays;
+
     public HttpRequest(HttpMethod method, String path, CompletableFuture<HttpResponse> promise) {
+        this(method, path, promise, null);
+    }
+
+    public HttpRequest(HttpMethod method, String path, CompletableFuture<HttpResponse> promise, BodySink bodySink) {
         this.method = method;
         this.path = path;
         this.promise = promise;
+        this.bodySink = bodySink;
     }
 
     public HttpMethod getMethod() {
@@ -35,6 +63,18 @@ public class HttpRequest extends HttpMessage {
         return promise;
     }
 
+    public BodySink getBodySink() {
+        return bodySink;
+    }
+
+    public boolean isEncoded() {
+        return encoded;
+    }
+
+    public void setEncoded(boolean encoded) {
+        this.encoded = encoded;
+    }
+
     public boolean isWritten() {
         return written;
     }
@@ -43,6 +83,32 @@ public class HttpRequest extends HttpMessage {
         this.written = written;
     }
 
+    public boolean isAnswered() {
+        return answered;
+    }
+
+    public void setAnswered(boolean answered) {
+        this.answered = answered;
+    }
+
+    public int getReplays() {
+        return replays;
+    }
+
+    /**
+     * Prepare to be sent again on a new connection
+     *
+     * @param counted true if it counts as a replay, i.e. the connection was lost by an error
+     */
+    public void replay(boolean counted) {
+        encoded = false;
+        written = false;
+        answered = false;
+        if (counted) {
+            replays++;
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -51,13 +117,14 @@ public class HttpRequest extends HttpMessage {
         builder.append(path);
         builder.append(" ");
         builder.append(HttpMessage.HTTP_1_1);
-        builder.append("\n");
+        builder.append("\r\n");
         for (Header header : getHeaders()) {
             builder.append(header.getName());
             builder.append(": ");
             builder.append(header.getValue());
+            builder.append("\r\n");
         }
-        builder.append("\n");
+        builder.append("\r\n");
         return builder.toString();
     }
 }
@@ -0,0 +1,120 @@
+package org.modraedlau.http.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Http request encoder, writes the request head straight into a byte buffer
+ *
+ * @author modraedlau
+ */
+public class HttpRequestEncoder {
+    private static final byte[] CRLF = {13, 10};
+    private static final byte[] COLON_SP = {58, 32};
+    private static final byte[] SP_HTTP_1_1_CRLF = (" " + HttpMessage.HTTP_1_1 + "\r\n")
+        .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * bytes of the well-known header names
+     */
+    private static final Map<String, byte[]> KNOWN_NAMES = new HashMap<>();
+
+    static {
+        for (String name : new String[]{Header.HOST, Header.CONTENT_LENGTH, Header.CONTENT_TYPE,
+            Header.TRANSFER_ENCODING}) {
+            KNOWN_NAMES.put(name, name.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * "Host: host[:port]" CRLF, the same for every request of a client
+     */
+    private final byte[] hostLine;
+
+    /**
+     * @param host host of the server
+     * @param port port of the server, -1 or 80 for the default
+     */
+    public HttpRequestEncoder(String host, int port) {
+        String authority = port == -1 || port == 80 ? host : host + ":" + port;
+        hostLine = (Header.HOST + ": " + authority + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Exact number of bytes {@link #encode(HttpRequest, ByteBuffer)} writes
+     *
+     * @param request request
+     * @return encoded length
+     */
+    public int encodedLength(HttpRequest request) {
+        int length = request.getMethod().getBytes().length + length(request.getPath()) + SP_HTTP_1_1_CRLF.length;
+        Headers headers = request.headers();
+        if (!headers.contains(Header.HOST)) {
+            length += hostLine.length;
+        }
+        for (int i = 0, n = headers.size(); i < n; i++) {
+            length += headers.name(i).length() + COLON_SP.length + headers.value(i).length() + CRLF.length;
+        }
+        return length + CRLF.length;
+    }
+
+    /**
+     * Write the request line and headers
+     *
+     * @param request request
+     * @param out     buffer with at least {@link #encodedLength(HttpRequest)} bytes remaining
+     */
+    public void encode(HttpRequest request, ByteBuffer out) {
+        out.put(request.getMethod().getBytes());
+        putPath(request.getPath(), out);
+        out.put(SP_HTTP_1_1_CRLF);
+        Headers headers = request.headers();
+        if (!headers.contains(Header.HOST)) {
+            out.put(hostLine);
+        }
+        for (int i = 0, n = headers.size(); i < n; i++) {
+            // the known names are interned, the same instances as the keys
+            byte[] name = KNOWN_NAMES.get(headers.name(i));
+            if (name != null) {
+                out.put(name);
+            } else {
+                putLatin1(headers.name(i), out);
+            }
+            out.put(COLON_SP);
+            putLatin1(headers.value(i), out);
+            out.put(CRLF);
+        }
+        out.put(CRLF);
+    }
+
+    /**
+     * Paths are expected to be percent-encoded ASCII, other characters are sent as UTF-8
+     */
+    private static void putPath(String path, ByteBuffer out) {
+        for (int i = 0, n = path.length(); i < n; i++) {
+            char c = path.charAt(i);
+            if (c >= 0x80) {
+                out.put(path.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            out.put((byte) c);
+        }
+    }
+
+    private static int length(String path) {
+        for (int i = 0, n = path.length(); i < n; i++) {
+            if (path.charAt(i) >= 0x80) {
+                return i + path.substring(i).getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return path.length();
+    }
+
+    private static void putLatin1(String s, ByteBuffer out) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+}
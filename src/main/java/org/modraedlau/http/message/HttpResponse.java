@@ -1,5 +1,16 @@
 package org.modraedlau.http.message;
 
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Http response
  *
@@ -8,9 +19,25 @@ package org.modraedlau.http.message;
 public class HttpResponse extends HttpMessage {
     private volatile Decoded decoded;
     private int status;
-    private String body = "";
-    private int contentLength;
-    private int length;
+    private String version = HTTP_1_1;
+    private final Body body = new Body();
+    private long contentLength = -1;
+    private List<Header> trailers;
+
+    /**
+     * receives the body instead of this response if not null
+     */
+    private BodySink bodySink;
+
+    /**
+     * decompresses the body before it is kept or streamed, null if it is not compressed
+     */
+    private ContentDecoder contentDecoder;
+
+    /**
+     * body decoded as text on the first call of {@link #getBody()}
+     */
+    private String text;
 
     public HttpResponse(int status) {
         this.status = status;
@@ -21,25 +48,224 @@ public class HttpResponse extends HttpMessage {
         return status;
     }
 
+    /**
+     * Body as text, decoded with the charset of the Content-Type, UTF-8 by default
+     *
+     * @return body text
+     */
     public String getBody() {
-        return body;
+        if (text == null) {
+            text = getBody(charset());
+        }
+        return text;
+    }
+
+    public String getBody(Charset charset) {
+        ByteBuffer buffer = body.toBuffer();
+        return charset.decode(buffer).toString();
+    }
+
+    /**
+     * @return read-only buffer of the body bytes, not copied
+     */
+    public ByteBuffer getBodyBuffer() {
+        return body.toBuffer();
+    }
+
+    /**
+     * @return a copy of the body bytes
+     */
+    public byte[] getBodyBytes() {
+        ByteBuffer buffer = body.toBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return stream over the body bytes, not copied
+     */
+    public InputStream getBodyStream() {
+        return body.toStream();
+    }
+
+    /**
+     * Append body bytes from the buffer
+     *
+     * @param in     byte buffer
+     * @param length number of bytes to append
+     * @throws ProtocolException if a compressed body can not be decompressed
+     */
+    public void appendBody(ByteBuffer in, int length) throws ProtocolException {
+        if (contentDecoder != null) {
+            ByteBuffer decoded = contentDecoder.decode(in, length);
+            if (!decoded.hasRemaining()) {
+                return;
+            }
+            if (bodySink != null) {
+                bodySink.write(decoded);
+            } else if ((long) body.length() + decoded.remaining() > Integer.MAX_VALUE) {
+                throw new ProtocolException("Decompressed body too large to be kept, stream it");
+            } else {
+                // copied, the decoder reuses its buffer
+                body.append(decoded, decoded.remaining());
+            }
+            return;
+        }
+        if (bodySink != null) {
+            ByteBuffer segment = in.duplicate();
+            segment.limit(in.position() + length);
+            in.position(in.position() + length);
+            bodySink.write(segment);
+            return;
+        }
+        if (contentLength > 0) {
+            // at most Integer.MAX_VALUE when kept, see the decoder
+            body.expect((int) contentLength);
+        }
+        body.append(in, length);
+    }
+
+    /**
+     * Decompress the body from now on, the Content-Encoding header is removed as the body is no longer encoded
+     *
+     * @param contentDecoder decoder of the connection
+     * @param coding         a supported content coding
+     */
+    void decodeContent(ContentDecoder contentDecoder, String coding) {
+        contentDecoder.start(coding);
+        this.contentDecoder = contentDecoder;
+        headers().remove(Header.CONTENT_ENCODING);
+    }
+
+    /**
+     * The last body byte was appended
+     *
+     * @throws ProtocolException if a compressed body was cut off
+     */
+    void endBody() throws ProtocolException {
+        ContentDecoder contentDecoder = this.contentDecoder;
+        if (contentDecoder != null) {
+            this.contentDecoder = null;
+            contentDecoder.finish();
+        }
+    }
+
+    /**
+     * The body will not be decoded any further, e.g. the connection is lost
+     */
+    void abortBody() {
+        ContentDecoder contentDecoder = this.contentDecoder;
+        if (contentDecoder != null) {
+            this.contentDecoder = null;
+            contentDecoder.release();
+        }
     }
 
-    public void appendLine(Line line) {
-        length += line.getLength();
-        body += line.all();
+    /**
+     * Stream the body to the sink instead of keeping it, the sink is opened immediately
+     *
+     * @param bodySink body sink
+     */
+    public void setBodySink(BodySink bodySink) {
+        this.bodySink = bodySink;
+        bodySink.open(this);
     }
 
-    public int getContentLength() {
+    /**
+     * @return true if the body goes to a sink instead of being kept
+     */
+    public boolean isStreamed() {
+        return bodySink != null;
+    }
+
+    /**
+     * @return false if body bytes can not be accepted now
+     */
+    public boolean isReady() {
+        return bodySink == null || bodySink.ready();
+    }
+
+    /**
+     * @return the Content-Length, -1 if there is none
+     */
+    public long getContentLength() {
         return contentLength;
     }
 
-    public void setContentLength(int contentLength) {
+    public void setContentLength(long contentLength) {
         this.contentLength = contentLength;
     }
 
+    public void setTrailer(String name, String value) {
+        if (trailers == null) {
+            trailers = new ArrayList<>();
+        }
+        trailers.add(new Header(name, value));
+    }
+
+    /**
+     * @return trailer fields of a chunked body, empty if none
+     */
+    public List<Header> getTrailers() {
+        return trailers == null ? Collections.<Header>emptyList() : trailers;
+    }
+
     public int getLength() {
-        return length;
+        return body.length();
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * Does the server close the connection after this response?
+     *
+     * @return true if the Connection header has the close option, or an HTTP/1.0 response has no keep-alive
+     */
+    public boolean isConnectionClose() {
+        if (hasConnectionOption(Header.CLOSE)) {
+            return true;
+        }
+        return HTTP_1_0.equals(version) && !hasConnectionOption(Header.KEEP_ALIVE_OPTION);
+    }
+
+    /**
+     * How long the server keeps the connection idle, from the Keep-Alive header
+     *
+     * @return seconds, -1 if not given
+     */
+    public int getKeepAliveTimeout() {
+        String keepAlive = headers().get(Header.KEEP_ALIVE);
+        if (keepAlive != null) {
+            for (String parameter : keepAlive.split(",")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase("timeout")) {
+                    try {
+                        return Math.max(0, Integer.parseInt(parameter.substring(equals + 1).trim()));
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasConnectionOption(String option) {
+        for (String connection : headers().getAll(Header.CONNECTION)) {
+            for (String value : connection.split(",")) {
+                if (value.trim().equalsIgnoreCase(option)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     public Decoded getDecoded() {
@@ -49,4 +275,22 @@ public class HttpResponse extends HttpMessage {
     public void setDecoded(Decoded decoded) {
         this.decoded = decoded;
     }
+
+    private Charset charset() {
+        String value = headers().get(Header.CONTENT_TYPE);
+        if (value != null) {
+            int index = value.toLowerCase().indexOf("charset=");
+            if (index >= 0) {
+                String name = value.substring(index + "charset=".length());
+                int end = name.indexOf(';');
+                name = (end >= 0 ? name.substring(0, end) : name).trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    // fall back to the default
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
 }
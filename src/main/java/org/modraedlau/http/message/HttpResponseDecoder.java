@@ -1,23 +1,101 @@
 package org.modraedlau.http.message;
 
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Http response decoder
+ * Http response decoder, an incremental state machine working on the bytes of the read buffer
  *
  * @author modraedlau
  */
 public class HttpResponseDecoder {
     private static final byte CR = 13;
     private static final byte LF = 10;
+    private static final byte SP = 32;
+    private static final byte HT = 9;
+    private static final byte COLON = 58;
+    private static final byte SEMICOLON = 59;
+    private static final byte COMMA = 44;
+
+    private static final byte[] HTTP = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0 = HttpMessage.HTTP_1_0.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1 = HttpMessage.HTTP_1_1.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = Header.CONTENT_LENGTH.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = Header.TRANSFER_ENCODING.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = Header.CHUNKED.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_ENCODING = Header.CONTENT_ENCODING.getBytes(StandardCharsets.US_ASCII);
+
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int MAX_LINE_SIZE = 64 * 1024;
 
     /**
-     * line buffer
+     * Decoder state
      */
-    private byte[] lineBuffer = new byte[128 * 1024];
+    private enum State {
+        /**
+         * Waiting for the status line
+         */
+        STATUS_LINE,
+
+        /**
+         * Reading header lines up to the blank line
+         */
+        HEADERS,
+
+        /**
+         * Reading a body of known length
+         */
+        BODY,
+
+        /**
+         * Reading a body delimited by the closing of the connection
+         */
+        BODY_UNTIL_CLOSE,
+
+        /**
+         * Reading the chunk-size line, extensions are ignored
+         */
+        CHUNK_SIZE,
+
+        /**
+         * Reading the chunk-data
+         */
+        CHUNK_DATA,
+
+        /**
+         * Reading the CRLF after the chunk-data
+         */
+        CHUNK_END,
+
+        /**
+         * Reading the trailer lines after the last chunk, up to the blank line
+         */
+        TRAILERS
+    }
+
+    /**
+     * Notified when the head of a final response has been decoded
+     */
+    public interface HeadersListener {
+        /**
+         * Called before any byte of the body, a body sink may be set on the response here
+         *
+         * @param response response without body
+         */
+        void onHeaders(HttpResponse response);
+    }
+
+    private State state = State.STATUS_LINE;
+
+    private HeadersListener headersListener;
+
+    /**
+     * holds the status and header lines, only the body is never copied here
+     */
+    private byte[] lineBuffer = new byte[INITIAL_LINE_SIZE];
 
     /**
      * index for line buffer
@@ -25,99 +103,469 @@ public class HttpResponseDecoder {
     private int index = 0;
 
     /**
-     * response list
-     */
-    private List<HttpResponse> responses = new LinkedList<>();
-
-    public List<HttpResponse> decode(ByteBuffer in) {
-        Line line;
-        while ((line = readLine(in)) != null) {
-            if (line.getLine().startsWith(HttpMessage.HTTP_1_1)
-                || line.getLine().startsWith(HttpMessage.HTTP_1_0)
-                || line.getLine().startsWith(HttpMessage.HTTP_2_0)) {
-                // status line
-                String[] statusArray = line.getLine().split("\\s+");
-                if (statusArray.length > 2) {
-                    int status = Integer.parseInt(statusArray[1].trim());
-                    responses.add(new HttpResponse(status));
-                }
-            } else if (line.getLine().isEmpty()) {
-                // empty line
-                for (HttpResponse response : responses) {
-                    if (response.getDecoded() == Decoded.STATUS) {
-                        response.setDecoded(Decoded.BLANK);
-                        break;
-                    }
-                }
-            } else {
-                for (HttpResponse response : responses) {
-                    if (response.getDecoded() == Decoded.STATUS) {
-                        // headers
-                        String[] headerArray = line.getLine().split(":");
-                        if (headerArray.length == 2) {
-                            response.setHeader(headerArray[0].trim(), headerArray[1].trim());
-                            Header header = response.getHeader(Header.CONTENT_LENGTH);
-                            if (header != null) {
-                                int contentLength = Integer.parseInt(header.getValue());
-                                response.setContentLength(contentLength);
-                            }
-                            break;
-                        }
-                    } else {
-                        if (response.getDecoded() == Decoded.BLANK) {
-                            // decode body
+     * the response being decoded
+     */
+    private HttpResponse response;
+
+    /**
+     * remaining body bytes, or chunk-data bytes
+     */
+    private long remaining;
+
+    /**
+     * Transfer-Encoding of the current response ends with chunked
+     */
+    private boolean chunked;
+
+    /**
+     * Transfer-Encoding of the current response is not only chunked, the body ends with the connection
+     */
+    private boolean encoded;
+
+    /**
+     * the current response answers a HEAD request
+     */
+    private boolean bodyless;
+
+    /**
+     * Content-Encoding of the current response, null if none
+     */
+    private String contentCoding;
+
+    /**
+     * decompresses the gzip and deflate bodies, null unless enabled
+     */
+    private ContentDecoder contentDecoder;
+
+    /**
+     * responses completed by the last call, reused between calls
+     */
+    private final List<HttpResponse> responses = new ArrayList<>();
 
-                            // by `Content-Length`
-                            response.appendLine(line);
-                            if (response.getLength() >= response.getContentLength()) {
-                                // The length reaches the total length of the content
-                                response.setDecoded(Decoded.END);
-                            }
+    /**
+     * The response being decoded has no body whatever its headers say, e.g. it answers a HEAD request.
+     * Called by the headers listener, before the body is decoded.
+     */
+    public void skipBody() {
+        bodyless = true;
+    }
 
-                            // TODO：by `Transfer-Encoding: chunked`
+    /**
+     * Decompress the gzip and deflate bodies, as they are read. The Content-Encoding header of such a response is removed,
+     * its Content-Length is still the compressed length.
+     *
+     * @param decompression true to decompress
+     */
+    public void setDecompression(boolean decompression) {
+        if (!decompression && contentDecoder != null && response != null) {
+            response.abortBody();
+        }
+        contentDecoder = decompression ? new ContentDecoder(InflaterPool.getDefault()) : null;
+    }
 
-                            break;
+    public boolean isDecompression() {
+        return contentDecoder != null;
+    }
+
+    public void setHeadersListener(HeadersListener headersListener) {
+        this.headersListener = headersListener;
+    }
+
+    /**
+     * Decode the bytes of the buffer, stops early while the body sink of the response is not ready
+     *
+     * @param in byte buffer
+     * @return the responses completed by these bytes, valid until the next call
+     * @throws ProtocolException if the bytes are not a http response
+     */
+    public List<HttpResponse> decode(ByteBuffer in) throws ProtocolException {
+        responses.clear();
+        while (in.hasRemaining()) {
+            if (isBody() && !response.isReady()) {
+                // leave the bytes in the buffer until the sink is ready
+                break;
+            }
+            switch (state) {
+                case STATUS_LINE:
+                    if (readLine(in) && index > 0) {
+                        // blank lines before the status line are ignored
+                        parseStatusLine();
+                    }
+                    break;
+                case HEADERS:
+                    if (readLine(in)) {
+                        if (index == 0) {
+                            endOfHeaders();
+                        } else {
+                            parseHeader();
                         }
                     }
-                }
+                    break;
+                case BODY:
+                    int length = (int) Math.min(remaining, in.remaining());
+                    response.appendBody(in, length);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        complete();
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    response.appendBody(in, in.remaining());
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(in)) {
+                        parseChunkSize();
+                    }
+                    break;
+                case CHUNK_DATA:
+                    length = (int) Math.min(remaining, in.remaining());
+                    response.appendBody(in, length);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(in)) {
+                        if (index != 0) {
+                            throw new ProtocolException("Missing CRLF after chunk-data");
+                        }
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if (readLine(in)) {
+                        if (index == 0) {
+                            complete();
+                        } else {
+                            parseHeader();
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(state.name());
             }
         }
         return responses;
     }
 
     /**
-     * Read a line
+     * @return false if decoding is stopped by a body sink that is not ready
+     */
+    public boolean isReady() {
+        return !isBody() || response.isReady();
+    }
+
+    private boolean isBody() {
+        return state == State.BODY || state == State.BODY_UNTIL_CLOSE || state == State.CHUNK_DATA;
+    }
+
+    /**
+     * The connection was closed by the server, completes a response delimited by the closing
+     *
+     * @return the completed response, null if none
+     * @throws ProtocolException if a response was cut off
+     */
+    public HttpResponse decodeEnd() throws ProtocolException {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            HttpResponse last = response;
+            response.endBody();
+            response.setDecoded(Decoded.END);
+            reset();
+            return last;
+        }
+        if (state != State.STATUS_LINE || index > 0) {
+            throw new ProtocolException("Connection closed before the end of the response");
+        }
+        return null;
+    }
+
+    /**
+     * Read bytes up to LF into the line buffer, without the CR LF
      *
      * @param in byte buffer
-     * @return line
-     */
-    private Line readLine(ByteBuffer in) {
-        byte read;
-        boolean more = true;
-        boolean includeCR = false;
-        while (in.hasRemaining() && more) {
-            read = in.get();
-            if (read == LF) {
-                // 行尾
-                more = false;
-            } else if (read == CR) {
-                includeCR = true;
-            } else {
-                // 其他内容放入行缓存　
-                lineBuffer[index] = read;
-                index++;
+     * @return true if a whole line has been read
+     * @throws ProtocolException if the line is too long
+     */
+    private boolean readLine(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        int limit = in.limit();
+        int end = start;
+        while (end < limit && in.get(end) != LF) {
+            end++;
+        }
+        boolean found = end < limit;
+        int length = end - start;
+        ensureLineCapacity(index + length);
+        in.get(lineBuffer, index, length);
+        index += length;
+        if (!found) {
+            return false;
+        }
+        // skip LF
+        in.get();
+        if (index > 0 && lineBuffer[index - 1] == CR) {
+            index--;
+        }
+        return true;
+    }
+
+    private void ensureLineCapacity(int capacity) throws ProtocolException {
+        if (capacity > lineBuffer.length) {
+            if (capacity > MAX_LINE_SIZE) {
+                throw new ProtocolException("Line exceeds " + MAX_LINE_SIZE + " bytes");
             }
+            byte[] larger = new byte[Math.min(MAX_LINE_SIZE, Math.max(capacity, lineBuffer.length * 2))];
+            System.arraycopy(lineBuffer, 0, larger, 0, index);
+            lineBuffer = larger;
+        }
+    }
+
+    /**
+     * HTTP-version SP status-code SP reason-phrase
+     */
+    private void parseStatusLine() throws ProtocolException {
+        if (!startsWith(lineBuffer, index, HTTP)) {
+            throw new ProtocolException("Illegal status line");
+        }
+        int i = HTTP.length;
+        while (i < index && lineBuffer[i] != SP) {
+            i++;
+        }
+        int version = i;
+        while (i < index && lineBuffer[i] == SP) {
+            i++;
+        }
+        if (i + 3 > index) {
+            throw new ProtocolException("Illegal status line");
+        }
+        int status = 0;
+        for (int end = i + 3; i < end; i++) {
+            int digit = lineBuffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ProtocolException("Illegal status code");
+            }
+            status = status * 10 + digit;
+        }
+        response = new HttpResponse(status);
+        response.setVersion(version(version));
+        state = State.HEADERS;
+        index = 0;
+    }
+
+    /**
+     * The version of the status line, the usual ones are not copied
+     */
+    private String version(int end) {
+        if (end == HTTP_1_1.length && startsWith(lineBuffer, end, HTTP_1_1)) {
+            return HttpMessage.HTTP_1_1;
         }
-        Line line = null;
-        if (!more) {
-            line = new Line(new String(lineBuffer, 0, index, StandardCharsets.UTF_8),
-                includeCR, includeCR ? index + 2 : index + 1);
+        if (end == HTTP_1_0.length && startsWith(lineBuffer, end, HTTP_1_0)) {
+            return HttpMessage.HTTP_1_0;
+        }
+        return new String(lineBuffer, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * field-name ":" OWS field-value OWS, a header or a trailer of a chunked body
+     */
+    private void parseHeader() throws ProtocolException {
+        int colon = 0;
+        while (colon < index && lineBuffer[colon] != COLON) {
+            colon++;
+        }
+        if (colon == index || colon == 0) {
+            throw new ProtocolException("Illegal header line");
+        }
+        int nameEnd = colon;
+        while (nameEnd > 0 && isWhitespace(lineBuffer[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < index && isWhitespace(lineBuffer[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = index;
+        while (valueEnd > valueStart && isWhitespace(lineBuffer[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        index = 0;
+        if (state == State.TRAILERS) {
+            response.setTrailer(new String(lineBuffer, 0, nameEnd, StandardCharsets.ISO_8859_1),
+                new String(lineBuffer, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+            return;
+        }
+
+        if (equalsIgnoreCase(lineBuffer, 0, nameEnd, CONTENT_LENGTH)) {
+            long length = parseLength(lineBuffer, valueStart, valueEnd);
+            if (response.getContentLength() >= 0 && response.getContentLength() != length) {
+                // the end of the body would be a guess, the next response could be read from inside it
+                throw new ProtocolException("Conflicting Content-Length");
+            }
+            response.setContentLength(length);
+        } else if (equalsIgnoreCase(lineBuffer, 0, nameEnd, TRANSFER_ENCODING)) {
+            // only the last coding tells how the message is delimited
+            int codingStart = valueEnd;
+            while (codingStart > valueStart && lineBuffer[codingStart - 1] != COMMA) {
+                codingStart--;
+            }
+            while (codingStart < valueEnd && isWhitespace(lineBuffer[codingStart])) {
+                codingStart++;
+            }
+            chunked = equalsIgnoreCase(lineBuffer, codingStart, valueEnd, CHUNKED);
+            encoded = !chunked;
+        } else if (equalsIgnoreCase(lineBuffer, 0, nameEnd, CONTENT_ENCODING)) {
+            contentCoding = new String(lineBuffer, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        }
+        // no strings made for the value until it is read
+        response.headers().add(lineBuffer, nameEnd, valueStart, valueEnd);
+    }
+
+    /**
+     * chunk-size [ chunk-ext ], a zero size is the last chunk
+     */
+    private void parseChunkSize() throws ProtocolException {
+        int end = 0;
+        while (end < index && lineBuffer[end] != SEMICOLON && !isWhitespace(lineBuffer[end])) {
+            end++;
+        }
+        if (end == 0) {
+            throw new ProtocolException("Illegal chunk size");
+        }
+        long size = 0;
+        for (int i = 0; i < end; i++) {
+            int digit = Character.digit(lineBuffer[i], 16);
+            if (digit < 0) {
+                throw new ProtocolException("Illegal chunk size");
+            }
+            size = size * 16 + digit;
+            if (size + response.getLength() > Integer.MAX_VALUE) {
+                throw new ProtocolException("Chunked body too large");
+            }
+        }
+        index = 0;
+        if (size == 0) {
+            state = State.TRAILERS;
+        } else {
+            remaining = size;
+            state = State.CHUNK_DATA;
+        }
+    }
+
+    private void endOfHeaders() throws ProtocolException {
+        index = 0;
+        response.setDecoded(Decoded.BLANK);
+        int status = response.getStatus();
+        if (status >= 100 && status < 200 && status != 101) {
+            // interim response, the final one follows
             reset();
+            return;
+        }
+        if ((chunked || encoded) && response.getContentLength() >= 0) {
+            // RFC 9112 6.3, a sign of response splitting rather than a framing to pick
+            throw new ProtocolException("Content-Length with Transfer-Encoding");
         }
-        return line;
+        if (headersListener != null) {
+            headersListener.onHeaders(response);
+        }
+        if (response.getContentLength() > Integer.MAX_VALUE && !response.isStreamed() && !bodyless) {
+            throw new ProtocolException("Body too large to be kept, stream it: " + response.getContentLength());
+        }
+        boolean hasBody = status != 204 && status != 304 && !bodyless;
+        if (hasBody && contentDecoder != null && contentCoding != null && ContentDecoder.isSupported(contentCoding)) {
+            response.decodeContent(contentDecoder, contentCoding);
+        }
+        if (!hasBody) {
+            complete();
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (encoded) {
+            state = State.BODY_UNTIL_CLOSE;
+        } else if (response.getContentLength() == 0) {
+            complete();
+        } else if (response.getContentLength() > 0) {
+            remaining = response.getContentLength();
+            state = State.BODY;
+        } else {
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void complete() throws ProtocolException {
+        response.endBody();
+        response.setDecoded(Decoded.END);
+        responses.add(response);
+        reset();
     }
 
-    private void reset() {
+    /**
+     * Drop the response being decoded, e.g. when the connection is lost
+     */
+    public void reset() {
+        if (response != null) {
+            response.abortBody();
+        }
+        this.state = State.STATUS_LINE;
+        this.response = null;
+        this.remaining = 0;
+        this.chunked = false;
+        this.encoded = false;
+        this.bodyless = false;
+        this.contentCoding = null;
         this.index = 0;
+        if (lineBuffer.length > INITIAL_LINE_SIZE) {
+            // do not keep a buffer grown for an unusually long line
+            lineBuffer = new byte[INITIAL_LINE_SIZE];
+        }
+    }
+
+    private static long parseLength(byte[] bytes, int start, int end) throws ProtocolException {
+        if (start == end) {
+            throw new ProtocolException("Illegal Content-Length");
+        }
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ProtocolException("Illegal Content-Length");
+            }
+            if (length > (Long.MAX_VALUE - digit) / 10) {
+                throw new ProtocolException("Content-Length too large");
+            }
+            length = length * 10 + digit;
+        }
+        return length;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == SP || b == HT;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare ASCII bytes ignoring case
+     */
+    static boolean equalsIgnoreCase(byte[] bytes, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if ((bytes[start + i] | 0x20) != (expected[i] | 0x20)) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -0,0 +1,62 @@
+package org.modraedlau.http.message;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of inflaters shared by the decoders, an inflater holds native memory that is costly to allocate
+ *
+ * @author modraedlau
+ */
+final class InflaterPool {
+    private static final int MAX_POOLED = 64;
+
+    private static final InflaterPool DEFAULT = new InflaterPool(MAX_POOLED);
+
+    private final int maxPooled;
+
+    /**
+     * zlib wrapped and raw deflate inflaters
+     */
+    private final Queue<Inflater> zlib = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> raw = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    InflaterPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    static InflaterPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param nowrap true for raw deflate, as in gzip
+     * @return reset inflater
+     */
+    Inflater acquire(boolean nowrap) {
+        Inflater inflater = (nowrap ? raw : zlib).poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        pooled.decrementAndGet();
+        return inflater;
+    }
+
+    /**
+     * @param inflater inflater from {@link #acquire(boolean)}, it must not be used any more
+     * @param nowrap   the mode it was acquired with
+     */
+    void release(Inflater inflater, boolean nowrap) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            inflater.reset();
+            (nowrap ? raw : zlib).offer(inflater);
+        } else {
+            pooled.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Buffer pool
+ *
+ * @author modraedlau
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(4, 4);
+        assertEquals(1024, pool.acquire(1).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+        assertEquals(64 * 1024, pool.acquire(64 * 1024).capacity());
+        assertEquals(64 * 1024 + 1, pool.acquire(64 * 1024 + 1).capacity());
+        assertEquals(5, pool.getOutstanding());
+    }
+
+    @Test
+    public void testReuse() throws InterruptedException {
+        BufferPool pool = new BufferPool(1, 1);
+        ByteBuffer first = pool.acquire(100);
+        ByteBuffer second = pool.acquire(100);
+        first.put((byte) 1);
+        pool.release(first);
+        // over the thread cache size, goes to the arena
+        pool.release(second);
+        assertEquals(0, pool.getOutstanding());
+
+        ByteBuffer reused = pool.acquire(100);
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+
+        // another thread finds the buffer in the arena
+        ByteBuffer[] fromArena = new ByteBuffer[1];
+        Thread thread = new Thread(() -> fromArena[0] = pool.acquire(100));
+        thread.start();
+        thread.join();
+        assertSame(second, fromArena[0]);
+        assertTrue(pool.getHitRate() > 0.49);
+    }
+}
@@ -0,0 +1,92 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Resolver with a hosts file stand-in
+ *
+ * @author modraedlau
+ */
+public class DefaultResolverTest {
+
+    /**
+     * Resolves test.local only, counting the lookups
+     */
+    private static class HostsResolver extends DefaultResolver {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        HostsResolver(long ttl, long negativeTtl) {
+            super(ttl, negativeTtl);
+        }
+
+        @Override
+        protected InetAddress[] lookup(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (host.equals("test.local")) {
+                return new InetAddress[]{
+                    InetAddress.getByName("127.0.0.2"),
+                    InetAddress.getByName("::1"),
+                    InetAddress.getByName("127.0.0.1")
+                };
+            }
+            throw new UnknownHostException(host);
+        }
+    }
+
+    @Test
+    public void testCacheWithTtl() throws Exception {
+        HostsResolver resolver = new HostsResolver(200, 200);
+        List<InetAddress> addresses = resolver.resolve("test.local").join();
+        // the families alternate
+        assertEquals(InetAddress.getByName("127.0.0.2"), addresses.get(0));
+        assertEquals(InetAddress.getByName("::1"), addresses.get(1));
+        assertEquals(InetAddress.getByName("127.0.0.1"), addresses.get(2));
+
+        assertSame(addresses, resolver.resolve("TEST.local").join());
+        assertEquals(1, resolver.lookups.get());
+
+        Thread.sleep(300);
+        resolver.resolve("test.local").join();
+        assertEquals(2, resolver.lookups.get());
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        HostsResolver resolver = new HostsResolver(10000, 200);
+        assertUnknown(resolver.resolve("unknown.local"));
+        assertUnknown(resolver.resolve("unknown.local"));
+        assertEquals(1, resolver.lookups.get());
+
+        Thread.sleep(300);
+        assertUnknown(resolver.resolve("unknown.local"));
+        assertEquals(2, resolver.lookups.get());
+    }
+
+    @Test
+    public void testLiteralWithoutLookupThread() {
+        CompletableFuture<List<InetAddress>> addresses = new DefaultResolver(1000, 1000).resolve("127.0.0.1");
+        assertTrue(addresses.isDone());
+        assertEquals(1, addresses.join().size());
+    }
+
+    private static void assertUnknown(CompletableFuture<List<InetAddress>> addresses) {
+        try {
+            addresses.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof UnknownHostException);
+        }
+    }
+}
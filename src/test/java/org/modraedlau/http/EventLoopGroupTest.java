@@ -0,0 +1,88 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Event loop group
+ *
+ * @author modraedlau
+ */
+public class EventLoopGroupTest {
+
+    @Test
+    public void testClientsSpreadOverLoops() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello\n"))) {
+            EventLoopGroup group = new EventLoopGroup(2, EventLoopGroup.Strategy.LEAST_LOADED);
+            group.start();
+
+            List<SimpleHttpClient> clients = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                SimpleHttpClient client = new SimpleHttpClient(server.url());
+                client.connect();
+                group.register(client);
+                clients.add(client);
+            }
+            assertNotSame(clients.get(0).getEventLoop(), clients.get(1).getEventLoop());
+            assertEquals(2, clients.get(0).getEventLoop().load());
+            assertEquals(2, clients.get(1).getEventLoop().load());
+
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (SimpleHttpClient client : clients) {
+                futures.add(client.get("/"));
+            }
+            for (CompletableFuture<HttpResponse> future : futures) {
+                assertEquals("hello\n", future.join().getBody());
+            }
+
+            for (SimpleHttpClient client : clients) {
+                client.close();
+            }
+            group.stop();
+        }
+    }
+
+    @Test
+    public void testInlineModeWithCallbackExecutor() throws Exception {
+        // answered once every callback is attached, so none runs on the calling thread
+        CountDownLatch attached = new CountDownLatch(1);
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            try {
+                attached.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return LocalHttpServer.response("hello\n");
+        })) {
+            ExecutorService callbackExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "callback"));
+            EventLoopGroup group = new EventLoopGroup(2, EventLoopGroup.Strategy.ROUND_ROBIN,
+                ExecutionMode.INLINE, callbackExecutor);
+            group.start();
+            PooledHttpClient client = new PooledHttpClient(group, 0, 2, 60000);
+
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(client.get(server.url() + "/")
+                    .thenApply(response -> response.getBody() + Thread.currentThread().getName()));
+            }
+            attached.countDown();
+            for (CompletableFuture<String> future : futures) {
+                assertEquals("hello\ncallback", future.join());
+            }
+
+            client.close();
+            group.stop();
+            callbackExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+import org.modraedlau.http.message.HttpMessage;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * HTTP/2 with prior knowledge against a local h2c server
+ *
+ * @author modraedlau
+ */
+public class Http2ConnectionTest {
+
+    @Test
+    public void testMultiplexing() throws Exception {
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange ->
+            exchange.respond(200, exchange.path().getBytes(StandardCharsets.US_ASCII)))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                futures.add(client.get("/" + i));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                HttpResponse response = futures.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(HttpMessage.HTTP_2_0, response.getVersion());
+                assertEquals("/" + i, response.getBody());
+            }
+            // one connection, far more requests at once than pipelining allows
+            assertEquals(1, server.getConnections());
+            assertTrue(client.getPeakInFlight() > client.getMaxInFlight());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testNoHeadOfLineBlocking() throws Exception {
+        AtomicReference<LocalHttp2Server.Exchange> held = new AtomicReference<>();
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange -> {
+            if (exchange.path().equals("/hold")) {
+                held.set(exchange);
+            } else {
+                exchange.respond(200, "released".getBytes(StandardCharsets.US_ASCII));
+                held.get().respond(200, "held".getBytes(StandardCharsets.US_ASCII));
+            }
+        })) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            CompletableFuture<HttpResponse> hold = client.get("/hold");
+            Thread.sleep(100);
+            assertFalse(hold.isDone());
+            // answered first although sent after
+            assertEquals("released", client.get("/release").get(5, TimeUnit.SECONDS).getBody());
+            assertEquals("held", hold.get(5, TimeUnit.SECONDS).getBody());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testFlowControl() throws Exception {
+        byte[] payload = new byte[300 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7);
+        }
+        Path file = Files.createTempFile("upload", ".bin");
+        Files.write(file, payload);
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange -> exchange.respond(200, exchange.body))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            // larger than the default windows of the server and of the client
+            CompletableFuture<HttpResponse> bytes = client.execute(
+                Request.post("/echo", RequestBody.of(payload)));
+            CompletableFuture<HttpResponse> fromFile = client.execute(
+                Request.put("/echo", RequestBody.ofFile(file)));
+            assertArrayEquals(payload, bytes.get(10, TimeUnit.SECONDS).getBodyBytes());
+            assertArrayEquals(payload, fromFile.get(10, TimeUnit.SECONDS).getBodyBytes());
+
+            // no streamed bodies
+            CompletableFuture<HttpResponse> streamed = client.execute(Request.post("/echo",
+                RequestBody.ofPublisher(subscriber -> {
+                }, 1)));
+            try {
+                streamed.get(5, TimeUnit.SECONDS);
+                throw new AssertionError("streamed body sent");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("HTTP/2"));
+            }
+
+            client.close();
+            eventLoop.stop();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSlowSubscriber() throws Exception {
+        byte[] payload = new byte[600 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 13);
+        }
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange -> exchange.respond(200,
+            exchange.path().equals("/big") ? payload : "small".getBytes(StandardCharsets.US_ASCII)))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            ExecutorService requester = Executors.newSingleThreadExecutor();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            CountDownLatch done = new CountDownLatch(1);
+            client.get("/big", new BodySubscriber() {
+                private BodySubscription subscription;
+
+                @Override
+                public void onSubscribe(BodySubscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(ByteBuffer segment) {
+                    byte[] bytes = new byte[segment.remaining()];
+                    segment.get(bytes);
+                    received.write(bytes, 0, bytes.length);
+                    // one segment at a time, asked for later from another thread
+                    requester.execute(() -> subscription.request(1));
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+            // the other streams are not stopped by the slow one
+            assertEquals("small", client.get("/small").get(5, TimeUnit.SECONDS).getBody());
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertArrayEquals(payload, received.toByteArray());
+
+            requester.shutdown();
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testRefusedAndGoAway() throws Exception {
+        AtomicBoolean refused = new AtomicBoolean();
+        AtomicBoolean goneAway = new AtomicBoolean();
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange -> {
+            if (exchange.path().equals("/refuse") && refused.compareAndSet(false, true)) {
+                exchange.reset(0x7);
+            } else if (exchange.path().equals("/goaway") && goneAway.compareAndSet(false, true)) {
+                exchange.goAway(exchange.streamId - 2);
+            } else {
+                exchange.respond(200, exchange.path().getBytes(StandardCharsets.US_ASCII));
+            }
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            // refused streams were not processed, a POST is sent again too
+            assertEquals("/refuse", client.execute(Request.post("/refuse",
+                RequestBody.of("x".getBytes(StandardCharsets.US_ASCII)))).get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(1, server.getConnections());
+
+            // the stream after the last one of the GOAWAY goes on a new connection
+            assertEquals("/goaway", client.execute(Request.post("/goaway",
+                RequestBody.of("y".getBytes(StandardCharsets.US_ASCII)))).get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(2, server.getConnections());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testDataBeforeHeaders() throws Exception {
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange -> {
+            if (exchange.path().equals("/headless")) {
+                exchange.connection.writeFrame(0x0, 0x1, exchange.streamId, "body".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                exchange.respond(200, exchange.path().getBytes(StandardCharsets.US_ASCII));
+            }
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            try {
+                client.get("/headless").get(5, TimeUnit.SECONDS);
+                fail("expected a stream error");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ProtocolException);
+            }
+            // only the stream is reset, the connection goes on
+            assertEquals("/next", client.get("/next").get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(1, server.getConnections());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.modraedlau.http;
+
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HpackDecoder;
+import org.modraedlau.http.message.HpackEncoder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blocking h2c server with prior knowledge on the loopback interface, for tests, or h2 with ALPN over TLS.
+ * It gives the request bodies back at once with WINDOW_UPDATE frames, and ignores the windows of the client.
+ *
+ * @author modraedlau
+ */
+class LocalHttp2Server implements Closeable {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    /**
+     * Handles a request, on the thread of its connection, it may answer later from another call
+     */
+    interface Handler {
+        void handle(Exchange exchange) throws IOException;
+    }
+
+    private final ServerSocket serverSocket;
+
+    private final boolean secure;
+
+    private final Handler handler;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    LocalHttp2Server(Handler handler) throws IOException {
+        this(handler, null);
+    }
+
+    /**
+     * @param handler    handler
+     * @param sslContext context of the server for h2 over TLS, null for h2c
+     */
+    LocalHttp2Server(Handler handler, SSLContext sslContext) throws IOException {
+        this.handler = handler;
+        this.secure = sslContext != null;
+        if (secure) {
+            SSLServerSocket socket = (SSLServerSocket) sslContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setApplicationProtocols(new String[]{"h2"});
+            socket.setSSLParameters(parameters);
+            serverSocket = socket;
+        } else {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+        Thread acceptor = new Thread(this::accept, "local-http2-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url() {
+        return (secure ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread thread = new Thread(() -> serve(socket), "local-http2-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            Connection connection = new Connection(s);
+            connection.run();
+        } catch (EOFException | SocketException e) {
+            // closed by the client
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * A request and the way to answer it
+     */
+    static final class Exchange {
+        final Connection connection;
+        final int streamId;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        Exchange(Connection connection, int streamId, Map<String, String> headers, byte[] body) {
+            this.connection = connection;
+            this.streamId = streamId;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String path() {
+            return headers.get(":path");
+        }
+
+        void respond(int status, byte[] body) throws IOException {
+            connection.respond(streamId, status, body);
+        }
+
+        void reset(int errorCode) throws IOException {
+            ByteBuffer payload = ByteBuffer.allocate(4).putInt(errorCode);
+            connection.writeFrame(0x3, 0, streamId, payload.array());
+        }
+
+        /**
+         * Tell the client the streams after the last one are not processed
+         */
+        void goAway(int lastStreamId) throws IOException {
+            ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(0);
+            connection.writeFrame(0x7, 0, 0, payload.array());
+        }
+    }
+
+    final class Connection {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final HpackDecoder hpackDecoder = new HpackDecoder();
+        private final HpackEncoder hpackEncoder = new HpackEncoder();
+        private final Map<Integer, Map<String, String>> heads = new HashMap<>();
+        private final Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+
+        Connection(Socket socket) throws IOException {
+            InputStream input = socket.getInputStream();
+            this.in = new DataInputStream(input);
+            this.out = socket.getOutputStream();
+        }
+
+        void run() throws IOException {
+            byte[] preface = new byte[PREFACE.length];
+            in.readFully(preface);
+            if (!Arrays.equals(PREFACE, preface)) {
+                throw new IOException("Illegal preface");
+            }
+            writeFrame(0x4, 0, 0, new byte[0]);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            boolean blockEndStream = false;
+            while (true) {
+                int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                switch (type) {
+                    case 0x0:
+                        bodies.get(streamId).write(payload);
+                        if (length > 0) {
+                            // given back at once
+                            byte[] increment = ByteBuffer.allocate(4).putInt(length).array();
+                            writeFrame(0x8, 0, 0, increment);
+                            writeFrame(0x8, 0, streamId, increment);
+                        }
+                        if ((flags & 0x1) != 0) {
+                            dispatch(streamId);
+                        }
+                        break;
+                    case 0x1:
+                    case 0x9:
+                        if (type == 0x1) {
+                            block.reset();
+                            blockEndStream = (flags & 0x1) != 0;
+                        }
+                        block.write(payload);
+                        if ((flags & 0x4) != 0) {
+                            Map<String, String> head = new HashMap<>();
+                            List<Header> fields = hpackDecoder.decode(block.toByteArray(), 0, block.size());
+                            for (Header field : fields) {
+                                head.put(field.getName(), field.getValue());
+                            }
+                            heads.put(streamId, head);
+                            bodies.put(streamId, new ByteArrayOutputStream());
+                            if (blockEndStream) {
+                                dispatch(streamId);
+                            }
+                        }
+                        break;
+                    case 0x4:
+                        if ((flags & 0x1) == 0) {
+                            writeFrame(0x4, 0x1, 0, new byte[0]);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void dispatch(int streamId) throws IOException {
+            byte[] body = bodies.remove(streamId).toByteArray();
+            handler.handle(new Exchange(this, streamId, heads.remove(streamId), body));
+        }
+
+        synchronized void respond(int streamId, int status, byte[] body) throws IOException {
+            ByteBuffer block = ByteBuffer.allocate(256);
+            String length = Integer.toString(body.length);
+            hpackEncoder.encode(":status", Integer.toString(status), block);
+            hpackEncoder.encode("content-length", length, block);
+            byte[] head = Arrays.copyOf(block.array(), block.position());
+            writeFrame(0x1, 0x4 | (body.length == 0 ? 0x1 : 0), streamId, head);
+            for (int offset = 0; offset < body.length; offset += MAX_FRAME_SIZE) {
+                int n = Math.min(MAX_FRAME_SIZE, body.length - offset);
+                writeFrame(0x0, offset + n == body.length ? 0x1 : 0, streamId,
+                    Arrays.copyOfRange(body, offset, offset + n));
+            }
+        }
+
+        synchronized void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+            byte[] header = ByteBuffer.allocate(9)
+                .put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length)
+                .put((byte) type).put((byte) flags).putInt(streamId).array();
+            out.write(header);
+            out.write(payload);
+            out.flush();
+        }
+    }
+}
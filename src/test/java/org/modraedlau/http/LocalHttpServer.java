@@ -0,0 +1,245 @@
+package org.modraedlau.http;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Blocking http server on the loopback interface, for tests, over TLS if given a context
+ *
+ * @author modraedlau
+ */
+class LocalHttpServer implements AutoCloseable {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final ServerSocket serverSocket;
+
+    private final boolean secure;
+
+    private final ExecutorService executor;
+
+    private final Function<String, byte[]> handler;
+
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    private final AtomicInteger open = new AtomicInteger();
+
+    private volatile boolean closeAfterResponse;
+
+    /**
+     * @param handler generate the whole raw response from the request head, followed by the body if any
+     */
+    LocalHttpServer(Function<String, byte[]> handler) throws IOException {
+        this(handler, null);
+    }
+
+    /**
+     * @param handler    generate the whole raw response from the request head, followed by the body if any
+     * @param sslContext context of the server for https, e.g. {@link #serverContext()}, null for http
+     */
+    LocalHttpServer(Function<String, byte[]> handler, SSLContext sslContext) throws IOException {
+        this.handler = handler;
+        this.secure = sslContext != null;
+        serverSocket = secure
+            ? sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress())
+            : new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool();
+        executor.execute(this::accept);
+    }
+
+    static byte[] response(String body) {
+        return ("HTTP/1.1 200 OK\r\n"
+            + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+            + "\r\n"
+            + body).getBytes(StandardCharsets.UTF_8);
+    }
+
+    String url() {
+        return (secure ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return context with the self-signed certificate of 127.0.0.1 and localhost
+     */
+    static SSLContext serverContext() throws IOException {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore(), PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return context trusting the certificate of {@link #serverContext()} only, a new session cache every time
+     */
+    static SSLContext clientContext() throws IOException {
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static KeyStore keyStore() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = LocalHttpServer.class.getResourceAsStream("/localhost.p12")) {
+            keyStore.load(in, PASSWORD);
+        }
+        return keyStore;
+    }
+
+    /**
+     * Close every connection after its first response, without telling the client
+     */
+    void setCloseAfterResponse(boolean closeAfterResponse) {
+        this.closeAfterResponse = closeAfterResponse;
+    }
+
+    int accepted() {
+        return accepted.get();
+    }
+
+    int open() {
+        return open.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                accepted.incrementAndGet();
+                open.incrementAndGet();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            String head;
+            while ((head = readHead(in)) != null) {
+                byte[] response = handler.apply(head + readBody(head, in));
+                out.write(response);
+                out.flush();
+                String text = new String(response, StandardCharsets.ISO_8859_1);
+                if (closeAfterResponse || text.contains("\r\nConnection: close\r\n")
+                    || (text.startsWith("HTTP/1.0 ") && !text.contains("\r\nConnection: keep-alive\r\n"))) {
+                    // the requests pipelined after this one are never answered
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by client
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read the body framed by Content-Length or chunked, as ISO-8859-1
+     */
+    private static String readBody(String head, InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String lower = head.toLowerCase();
+        if (lower.contains("\ntransfer-encoding: chunked\n")) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                copy(in, body, size);
+                readLine(in);
+            }
+            // no trailers
+            readLine(in);
+        } else {
+            int start = lower.indexOf("\ncontent-length: ");
+            if (start >= 0) {
+                start += "\ncontent-length: ".length();
+                copy(in, body, Integer.parseInt(lower.substring(start, lower.indexOf('\n', start)).trim()));
+            }
+        }
+        return body.toString("ISO-8859-1");
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, int n) throws IOException {
+        byte[] bytes = new byte[8192];
+        while (n > 0) {
+            int read = in.read(bytes, 0, Math.min(n, bytes.length));
+            if (read < 0) {
+                throw new IOException("Body cut off");
+            }
+            out.write(bytes, 0, read);
+            n -= read;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Line cut off");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Read up to the blank line
+     */
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int lineLength = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') {
+                continue;
+            }
+            head.write(b);
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    return head.toString("UTF-8");
+                }
+                lineLength = 0;
+            } else {
+                lineLength++;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,202 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pooled client against a local server
+ *
+ * @author modraedlau
+ */
+public class PooledHttpClientTest {
+
+    @Test
+    public void testConcurrentGetsShareBoundedConnections() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello\n"))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            PooledHttpClient client = new PooledHttpClient(eventLoop, 0, 4, 60000);
+
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(client.get(server.url() + "/" + i));
+            }
+            for (CompletableFuture<HttpResponse> future : futures) {
+                HttpResponse response = future.join();
+                assertEquals(200, response.getStatus());
+                assertEquals("hello\n", response.getBody());
+            }
+            assertTrue(server.accepted() <= 4);
+            assertEquals(server.accepted(), client.idleConnections(server.url()));
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testBlockingSend() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello\n"))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            PooledHttpClient client = new PooledHttpClient(eventLoop, 0, 2, 60000);
+
+            assertEquals("hello\n", client.send(server.url() + "/").getBody());
+            assertEquals("hello\n", client.send(Request.post(server.url() + "/again",
+                RequestBody.of("body".getBytes(StandardCharsets.US_ASCII)))).getBody());
+            assertEquals(1, server.accepted());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testInterruptedSend() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> served = new CopyOnWriteArrayList<>();
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            String path = head.substring(4, head.indexOf(' ', 4));
+            served.add(path);
+            if (path.equals("/slow")) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return LocalHttpServer.response(path);
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            PooledHttpClient client = new PooledHttpClient(eventLoop, 0, 1, 60000);
+
+            Thread slow = new Thread(() -> send(client, server.url() + "/slow"));
+            slow.start();
+            while (served.isEmpty()) {
+                Thread.sleep(10);
+            }
+            // waits for the only connection
+            Thread queued = new Thread(() -> send(client, server.url() + "/queued"));
+            queued.start();
+            Thread.sleep(100);
+            queued.interrupt();
+            queued.join();
+            slow.interrupt();
+            slow.join();
+
+            // given back without waiting for the answer of the abandoned request
+            long deadline = System.currentTimeMillis() + 1000;
+            while (client.idleConnections(server.url()) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, client.idleConnections(server.url()));
+            CompletableFuture<HttpResponse> next = client.get(server.url() + "/next");
+            release.countDown();
+            assertEquals("/next", next.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(Arrays.asList("/slow", "/next"), served);
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testStreamingConnectionLost() throws Exception {
+        // every connection is closed without an answer, the request fails once its replays are used up
+        try (LocalHttpServer server = new LocalHttpServer(head -> new byte[0])) {
+            server.setCloseAfterResponse(true);
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            PooledHttpClient client = new PooledHttpClient(eventLoop, 0, 1, 60000);
+
+            for (int i = 0; i < 3; i++) {
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                CompletableFuture<HttpResponse> head = client.get(server.url() + "/", new BodySubscriber() {
+                    @Override
+                    public void onSubscribe(BodySubscription subscription) {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer segment) {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        done.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        done.complete(null);
+                    }
+                });
+                // the only connection is given back every time
+                try {
+                    head.get(5, TimeUnit.SECONDS);
+                    fail("expected the connection to be lost");
+                } catch (ExecutionException e) {
+                    assertTrue(done.isCompletedExceptionally());
+                }
+            }
+            assertEquals(1, client.connections(server.url()));
+            assertEquals(1, client.idleConnections(server.url()));
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    private static void send(PooledHttpClient client, String url) {
+        try {
+            client.send(url);
+            fail("not interrupted");
+        } catch (InterruptedException e) {
+            // abandoned
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsEvicted() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello\n"))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            PooledHttpClient client = new PooledHttpClient(eventLoop, 1, 4, 100);
+
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(client.get(server.url() + "/"));
+            }
+            for (CompletableFuture<HttpResponse> future : futures) {
+                future.join();
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.connections(server.url()) > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, client.connections(server.url()));
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Response cache against a local server
+ *
+ * @author modraedlau
+ */
+public class ResponseCacheTest {
+
+    private static byte[] response(String headers, String body) {
+        return ("HTTP/1.1 200 OK\r\n"
+            + headers
+            + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+            + "\r\n"
+            + body).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFresh() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            requests.incrementAndGet();
+            return response("Cache-Control: max-age=60\r\n", "config");
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            ResponseCache cache = new ResponseCache();
+            client.setCache(cache);
+            eventLoop.register(client);
+
+            for (int i = 0; i < 3; i++) {
+                HttpResponse response = client.get("/config").get(5, TimeUnit.SECONDS);
+                assertEquals(200, response.getStatus());
+                assertEquals("config", response.getBody());
+                if (i > 0) {
+                    // served by the cache
+                    assertNotNull(response.headers().get(Header.AGE));
+                }
+            }
+            assertEquals(1, requests.get());
+            assertEquals(2, cache.getHits());
+            assertEquals(1, cache.count());
+
+            // the request asks for a response no older than 0s
+            client.execute(Request.get("/config").header(Header.CACHE_CONTROL, "max-age=0")).get(5, TimeUnit.SECONDS);
+            assertEquals(2, requests.get());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        AtomicInteger conditional = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            if (request.contains("\nIf-None-Match: \"v1\"\n")) {
+                conditional.incrementAndGet();
+                return "HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nX-Checked: yes\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+            }
+            return response("Cache-Control: no-cache\r\nETag: \"v1\"\r\nX-Checked: no\r\n", "catalog");
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            ResponseCache cache = new ResponseCache();
+            client.setCache(cache);
+            eventLoop.register(client);
+
+            assertEquals("no", client.get("/catalog").get(5, TimeUnit.SECONDS).headers().get("X-Checked"));
+            for (int i = 0; i < 2; i++) {
+                // the body is kept, the headers of the 304 replace the stored ones
+                HttpResponse response = client.get("/catalog").get(5, TimeUnit.SECONDS);
+                assertEquals(200, response.getStatus());
+                assertEquals("catalog", response.getBody());
+                assertEquals(Arrays.asList("yes"), response.headers().getAll("X-Checked"));
+            }
+            assertEquals(2, conditional.get());
+            assertEquals(2, cache.getRevalidated());
+            assertEquals(0, cache.getHits());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testNotStored() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            requests.incrementAndGet();
+            if (request.startsWith("GET /private ")) {
+                return response("Cache-Control: no-store\r\n", "secret");
+            }
+            if (request.startsWith("GET /vary ")) {
+                return response("Cache-Control: max-age=60\r\nVary: Accept-Language\r\n", "hello");
+            }
+            // neither freshness nor a validator
+            return response("", "plain");
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            ResponseCache cache = new ResponseCache();
+            client.setCache(cache);
+            eventLoop.register(client);
+
+            client.get("/private").get(5, TimeUnit.SECONDS);
+            client.get("/private").get(5, TimeUnit.SECONDS);
+            client.get("/plain").get(5, TimeUnit.SECONDS);
+            client.get("/plain").get(5, TimeUnit.SECONDS);
+            assertEquals(4, requests.get());
+            assertEquals(0, cache.count());
+
+            client.execute(Request.get("/vary").header("Accept-Language", "en")).get(5, TimeUnit.SECONDS);
+            client.execute(Request.get("/vary").header("Accept-Language", "en")).get(5, TimeUnit.SECONDS);
+            assertEquals(5, requests.get());
+            // another variant
+            client.execute(Request.get("/vary").header("Accept-Language", "fr")).get(5, TimeUnit.SECONDS);
+            assertEquals(6, requests.get());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        char[] body = new char[400];
+        Arrays.fill(body, 'e');
+        AtomicInteger requests = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            requests.incrementAndGet();
+            return response("Cache-Control: max-age=60\r\n", new String(body));
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            ResponseCache cache = new ResponseCache(8 * 1024);
+            client.setCache(cache);
+            eventLoop.register(client);
+
+            for (int i = 0; i < 40; i++) {
+                client.get("/" + i).get(5, TimeUnit.SECONDS);
+                // the first one is the most recently used
+                client.get("/0").get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(40, requests.get());
+            assertTrue(cache.size() <= cache.getMaxSize());
+            assertTrue(cache.count() < 40);
+
+            client.get("/39").get(5, TimeUnit.SECONDS);
+            assertEquals(40, requests.get());
+            client.get("/1").get(5, TimeUnit.SECONDS);
+            assertEquals(41, requests.get());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            requests.incrementAndGet();
+            return response("Cache-Control: max-age=60\r\n", "item");
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            PooledHttpClient client = new PooledHttpClient(eventLoop, 0, 2, 60000);
+            client.setCache(new ResponseCache());
+
+            client.get(server.url() + "/item").get(5, TimeUnit.SECONDS);
+            client.get(server.url() + "/item").get(5, TimeUnit.SECONDS);
+            assertEquals(1, requests.get());
+
+            client.execute(Request.put(server.url() + "/item",
+                RequestBody.of("new".getBytes(StandardCharsets.US_ASCII)))).get(5, TimeUnit.SECONDS);
+            client.get(server.url() + "/item").get(5, TimeUnit.SECONDS);
+            assertEquals(3, requests.get());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testCancel() {
+        ResponseCache cache = new ResponseCache();
+        CompletableFuture<HttpResponse> request = new CompletableFuture<>();
+        CompletableFuture<HttpResponse> response = cache.get("http://127.0.0.1:80/", null, headers -> request);
+        assertTrue(response.cancel(false));
+        assertTrue(request.isCancelled());
+    }
+}
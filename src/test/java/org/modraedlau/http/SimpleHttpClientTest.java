@@ -0,0 +1,1061 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+import org.modraedlau.http.message.Header;
+import org.modraedlau.http.message.HttpMethod;
+import org.modraedlau.http.message.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Simple http client against a local server
+ *
+ * @author modraedlau
+ */
+public class SimpleHttpClientTest {
+
+    @Test
+    public void testStreamingWithDemand() throws Exception {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            testStreamingWithDemand(mode);
+        }
+    }
+
+    private void testStreamingWithDemand(ExecutionMode mode) throws Exception {
+        byte[] payload = new byte[2 * 1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + payload.length + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] raw = Arrays.copyOf(head, head.length + payload.length);
+        System.arraycopy(payload, 0, raw, head.length, payload.length);
+
+        try (LocalHttpServer server = new LocalHttpServer(h -> raw)) {
+            EventLoop eventLoop = new EventLoop(mode);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            ExecutorService requester = Executors.newSingleThreadExecutor();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            AtomicLong outstanding = new AtomicLong();
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            CompletableFuture<HttpResponse> head1 = client.get("/", new BodySubscriber() {
+                private BodySubscription subscription;
+
+                @Override
+                public void onSubscribe(BodySubscription subscription) {
+                    this.subscription = subscription;
+                    outstanding.incrementAndGet();
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(ByteBuffer segment) {
+                    assertTrue(outstanding.decrementAndGet() >= 0);
+                    byte[] bytes = new byte[segment.remaining()];
+                    segment.get(bytes);
+                    received.write(bytes, 0, bytes.length);
+                    // ask for more later, from another thread
+                    requester.execute(() -> {
+                        outstanding.incrementAndGet();
+                        subscription.request(1);
+                    });
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    done.completeExceptionally(e);
+                }
+
+                @Override
+                public void onComplete() {
+                    done.complete(null);
+                }
+            });
+
+            assertEquals(200, head1.join().getStatus());
+            done.join();
+            assertArrayEquals(payload, received.toByteArray());
+            assertEquals(0, head1.join().getLength());
+
+            // the connection is still usable after the stream
+            assertEquals(payload.length, client.get("/").join().getLength());
+
+            requester.shutdown();
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testBuffersReturnedWhenIdle() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello\n"))) {
+            BufferPool bufferPool = new BufferPool(16, 16);
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url(), bufferPool);
+            eventLoop.register(client);
+
+            for (int i = 0; i < 20; i++) {
+                assertEquals("hello\n", client.get("/").join().getBody());
+            }
+            assertEquals(0, bufferPool.getOutstanding());
+            assertTrue(bufferPool.getHitRate() > 0.5);
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testRequestLargerThanSocketBuffer() throws Exception {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            testRequestLargerThanSocketBuffer(mode);
+        }
+    }
+
+    private void testRequestLargerThanSocketBuffer(ExecutionMode mode) throws Exception {
+        char[] chars = new char[8 * 1024 * 1024];
+        Arrays.fill(chars, 'a');
+        String path = "/" + new String(chars);
+
+        // answer with the length of the request line, so every byte must have been written
+        try (LocalHttpServer server = new LocalHttpServer(
+            head -> LocalHttpServer.response(String.valueOf(head.indexOf('\n'))))) {
+            BufferPool bufferPool = new BufferPool(16, 16);
+            EventLoop eventLoop = new EventLoop(mode);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url(), bufferPool);
+            eventLoop.register(client);
+
+            int requestLine = ("GET " + path + " HTTP/1.1").length();
+            assertEquals(String.valueOf(requestLine), client.get(path).join().getBody());
+            // the connection is still usable after the large request
+            assertEquals("14", client.get("/").join().getBody());
+            assertEquals(0, bufferPool.getOutstanding());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            testPipelinedRequests(mode);
+        }
+    }
+
+    private void testPipelinedRequests(ExecutionMode mode) throws Exception {
+        // answer with the path of the request
+        try (LocalHttpServer server = new LocalHttpServer(
+            head -> LocalHttpServer.response(head.substring(4, head.indexOf(' ', 4))))) {
+            BufferPool bufferPool = new BufferPool(16, 16);
+            EventLoop eventLoop = new EventLoop(mode);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url(), bufferPool);
+            eventLoop.register(client);
+
+            List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                responses.add(client.get("/" + i));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals("/" + i, responses.get(i).join().getBody());
+            }
+            assertEquals(0, bufferPool.getOutstanding());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testInFlightWindow() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(
+            head -> LocalHttpServer.response(head.substring(4, head.indexOf(' ', 4))))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+            client.setMaxInFlight(3);
+
+            List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                responses.add(client.get("/" + i));
+            }
+            assertTrue(client.getInFlight() <= 3);
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals("/" + i, responses.get(i).join().getBody());
+            }
+            assertEquals(3, client.getPeakInFlight());
+            assertEquals(0, client.getQueueDepth());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testReplayAfterConnectionClose() throws Exception {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            testReplayAfterConnectionClose(mode);
+        }
+    }
+
+    private void testReplayAfterConnectionClose(ExecutionMode mode) throws Exception {
+        // every connection answers 3 requests, the last one closes it
+        AtomicInteger answered = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            String path = head.substring(4, head.indexOf(' ', 4));
+            String connection = answered.incrementAndGet() % 3 == 0 ? "Connection: close\r\n" : "";
+            return ("HTTP/1.1 200 OK\r\nContent-Length: " + path.length() + "\r\n" + connection + "\r\n" + path)
+                .getBytes(StandardCharsets.US_ASCII);
+        })) {
+            EventLoop eventLoop = new EventLoop(mode);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                responses.add(client.get("/" + i));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals("/" + i, responses.get(i).join().getBody());
+            }
+            assertEquals(20, answered.get());
+            assertEquals(7, server.accepted());
+            assertTrue(client.getReplayed() >= 6);
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testRequestTimeoutKeepsConnection() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            String path = head.substring(4, head.indexOf(' ', 4));
+            if (path.equals("/slow")) {
+                try {
+                    Thread.sleep(400);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return LocalHttpServer.response(path);
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+            client.setMaxInFlight(1);
+            client.setRequestTimeout(200);
+
+            CompletableFuture<HttpResponse> slow = client.get("/slow");
+            // waiting behind the slow one, never written
+            CompletableFuture<HttpResponse> queued = client.get("/queued");
+            assertTrue(isTimeout(slow));
+            assertTrue(isTimeout(queued));
+
+            // the late response of the slow request is dropped, the connection is kept
+            client.setRequestTimeout(2000);
+            assertEquals("/fast", client.get("/fast").join().getBody());
+            assertEquals(1, server.accepted());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testResponseTimeout() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return LocalHttpServer.response("late");
+        })) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+            client.setResponseTimeout(100);
+
+            long start = System.nanoTime();
+            assertTrue(isTimeout(client.get("/")));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300));
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testTimeoutCallbackOffSelector() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return LocalHttpServer.response("late");
+        })) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.POOLED);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+            client.setRequestTimeout(100);
+
+            // the callbacks of a timed out request do not run on the selector thread
+            CompletableFuture<Boolean> onSelector = client.get("/").handle((response, e) -> eventLoop.inEventLoop());
+            assertFalse(onSelector.get(5, TimeUnit.SECONDS));
+            release.countDown();
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testReconnectAfterServerClose() throws Exception {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            testReconnectAfterServerClose(mode);
+        }
+    }
+
+    private void testReconnectAfterServerClose(ExecutionMode mode) throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello"))) {
+            server.setCloseAfterResponse(true);
+            EventLoop eventLoop = new EventLoop(mode);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals("hello", client.get("/").join().getBody());
+            }
+            assertEquals(10, server.accepted());
+            assertTrue(client.isOpen());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testCloseIdleBeforeKeepAliveTimeout() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(
+            head -> "HTTP/1.1 200 OK\r\nKeep-Alive: timeout=1\r\nContent-Length: 5\r\n\r\nhello"
+                .getBytes(StandardCharsets.US_ASCII))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            assertEquals("hello", client.get("/").join().getBody());
+            assertEquals(1, server.open());
+            // closed by the client after half of the timeout of the server
+            Thread.sleep(800);
+            assertEquals(0, server.open());
+            assertFalse(client.isConnected());
+
+            assertEquals("hello", client.get("/").join().getBody());
+            assertEquals(2, server.accepted());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testHttp10BodyUntilClose() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(
+            head -> "HTTP/1.0 200 OK\r\n\r\nuntil close".getBytes(StandardCharsets.US_ASCII))) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            assertEquals("until close", client.get("/").join().getBody());
+            assertEquals("until close", client.get("/").join().getBody());
+            assertEquals(2, server.accepted());
+
+            client.close();
+            assertFalse(client.isOpen());
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testFallbackToNextAddress() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello"))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            String url = server.url().replace("127.0.0.1", "test.local");
+            SimpleHttpClient client = new SimpleHttpClient(url);
+            // nothing listens on the first address
+            client.setResolver(host -> CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Arrays.asList(InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1"));
+                } catch (UnknownHostException e) {
+                    throw new CompletionException(e);
+                }
+            }));
+            eventLoop.register(client);
+
+            assertEquals("hello", client.get("/").join().getBody());
+            assertEquals(1, server.accepted());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testRequestsQueuedWhileConnecting() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("hello"))) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            CompletableFuture<List<InetAddress>> resolved = new CompletableFuture<>();
+            client.setResolver(host -> resolved);
+            eventLoop.register(client);
+
+            // no thread waits for the connection, the requests stay in the queue
+            List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                responses.add(client.get("/" + i));
+            }
+            assertFalse(client.isConnected());
+            resolved.complete(Collections.singletonList(InetAddress.getByName("127.0.0.1")));
+
+            for (CompletableFuture<HttpResponse> response : responses) {
+                assertEquals("hello", response.get(5, TimeUnit.SECONDS).getBody());
+            }
+            assertEquals(1, server.accepted());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testBlockingSend() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            if (head.startsWith("GET /slow")) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return LocalHttpServer.response("hello");
+        })) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE, CallbackExecutors.virtualThreads());
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            // thread per request, the callers wait on the same connection
+            ExecutorService callers = CallbackExecutors.virtualThreads();
+            List<Future<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String path = "/" + i;
+                responses.add(callers.submit(() -> client.send(path)));
+            }
+            for (Future<HttpResponse> response : responses) {
+                assertEquals("hello", response.get(5, TimeUnit.SECONDS).getBody());
+            }
+            assertEquals(1, server.accepted());
+
+            client.setRequestTimeout(100);
+            try {
+                client.send("/slow");
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            callers.shutdown();
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testRequestBodies() throws Exception {
+        // echo the method, the framing and the body
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            String body = head.substring(head.indexOf("\n\n") + 2);
+            String framing = head.contains("\nContent-Length: ") ? "length" : "none";
+            return LocalHttpServer.response(head.substring(0, head.indexOf(' ')) + " " + framing + " " + body);
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            Path file = Files.createTempFile("upload", ".txt");
+            Files.write(file, "from a file".getBytes(StandardCharsets.US_ASCII));
+            CompletableFuture<HttpResponse> post = client.execute(Request.post("/",
+                RequestBody.of("hello".getBytes(StandardCharsets.US_ASCII))));
+            CompletableFuture<HttpResponse> put = client.execute(Request.put("/", RequestBody.ofFile(file))
+                .header("Content-Type", "text/plain"));
+            CompletableFuture<HttpResponse> emptyPost = client.execute(new Request(HttpMethod.POST, "/"));
+            CompletableFuture<HttpResponse> delete = client.execute(Request.delete("/"));
+
+            assertEquals("POST length hello", post.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals("PUT length from a file", put.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals("POST length ", emptyPost.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals("DELETE none ", delete.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(1, server.accepted());
+            Files.delete(file);
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testLargeFileUpload() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(
+            head -> LocalHttpServer.response(Integer.toString(head.length() - head.indexOf("\n\n") - 2)))) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            // larger than the socket buffers, transferred in several writes
+            Path file = Files.createTempFile("upload", ".bin");
+            Files.write(file, new byte[8 * 1024 * 1024]);
+            CompletableFuture<HttpResponse> put = client.execute(Request.put("/", RequestBody.ofFile(file)));
+            CompletableFuture<HttpResponse> get = client.get("/");
+
+            assertEquals(Integer.toString(8 * 1024 * 1024), put.get(10, TimeUnit.SECONDS).getBody());
+            assertEquals("0", get.get(5, TimeUnit.SECONDS).getBody());
+            Files.delete(file);
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testStreamedUpload() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> {
+            String body = head.substring(head.indexOf("\n\n") + 2);
+            String framing = head.contains("\nTransfer-Encoding: chunked\n") ? "chunked" : "length";
+            return LocalHttpServer.response(framing + " " + body.length() + " " + body.substring(0, 3));
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            CompletableFuture<HttpResponse> chunked = client.execute(Request.post("/",
+                RequestBody.ofPublisher(new SegmentPublisher(100, 10000), -1)));
+            // written once the streamed body ends
+            CompletableFuture<HttpResponse> after = client.execute(Request.post("/",
+                RequestBody.ofPublisher(new SegmentPublisher(10, 1000), 10 * 1000)));
+            assertEquals("chunked 1000000 abc", chunked.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals("length 10000 abc", after.get(5, TimeUnit.SECONDS).getBody());
+
+            // shorter than announced, the connection can not be used any more
+            CompletableFuture<HttpResponse> shorter = client.execute(Request.post("/",
+                RequestBody.ofPublisher(new SegmentPublisher(1, 1000), 2000)));
+            try {
+                shorter.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals("length 3 abc", client.send(Request.post("/",
+                RequestBody.of("abc".getBytes(StandardCharsets.US_ASCII)))).getBody());
+            assertEquals(2, server.accepted());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testHeadHasNoBody() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> head.startsWith("HEAD ")
+            ? "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n".getBytes(StandardCharsets.US_ASCII)
+            : LocalHttpServer.response("hello"))) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            CompletableFuture<HttpResponse> head = client.execute(Request.head("/"));
+            CompletableFuture<HttpResponse> get = client.get("/");
+            assertEquals(5, head.get(5, TimeUnit.SECONDS).getContentLength());
+            assertEquals("", head.get().getBody());
+            assertEquals("hello", get.get(5, TimeUnit.SECONDS).getBody());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    /**
+     * Publishes segments of "abc..." as far as requested, reusing one buffer
+     */
+    private static class SegmentPublisher implements BodyPublisher {
+        private final int count;
+        private final ByteBuffer segment;
+
+        SegmentPublisher(int count, int size) {
+            this.count = count;
+            segment = ByteBuffer.allocate(size);
+            for (int i = 0; i < size; i++) {
+                segment.put((byte) ('a' + i % 26));
+            }
+        }
+
+        @Override
+        public void subscribe(BodySubscriber subscriber) {
+            // one thread, the segments are published in order
+            ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "publisher");
+                t.setDaemon(true);
+                return t;
+            });
+            subscriber.onSubscribe(new BodySubscription() {
+                private int published;
+
+                @Override
+                public void request(long n) {
+                    executor.execute(() -> {
+                        for (long i = 0; i < n && published < count; i++) {
+                            segment.clear();
+                            subscriber.onNext(segment);
+                            if (++published == count) {
+                                subscriber.onComplete();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void cancel() {
+                    published = count;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        byte[] payload = new byte[8 * 1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + payload.length + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] raw = Arrays.copyOf(head, head.length + payload.length);
+        System.arraycopy(payload, 0, raw, head.length, payload.length);
+        try (LocalHttpServer server = new LocalHttpServer(request -> request.startsWith("GET /missing ")
+            ? "HTTP/1.1 404 Not Found\r\nContent-Length: 9\r\n\r\nnot found".getBytes(StandardCharsets.US_ASCII)
+            : raw)) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            Path target = Files.createTempFile("download", ".bin");
+            HttpResponse response = client.download("/big", target).get(10, TimeUnit.SECONDS);
+            assertEquals(200, response.getStatus());
+            assertEquals(0, response.getLength());
+            assertArrayEquals(payload, Files.readAllBytes(target));
+
+            // an error page is not written
+            Files.delete(target);
+            assertEquals(404, client.download("/missing", target).get(5, TimeUnit.SECONDS).getStatus());
+            assertFalse(Files.exists(target));
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testDecompression() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] payload = text.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(payload);
+        }
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflate)) {
+            out.write(payload);
+        }
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            if (!request.contains("Accept-Encoding: gzip, deflate\n")) {
+                return "HTTP/1.1 200 OK\r\nContent-Length: 8\r\n\r\nidentity".getBytes(StandardCharsets.US_ASCII);
+            }
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            try {
+                if (request.startsWith("GET /gzip ")) {
+                    raw.write(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + gzip.size()
+                        + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    gzip.writeTo(raw);
+                } else {
+                    // one chunk
+                    raw.write(("HTTP/1.1 200 OK\r\nContent-Encoding: deflate\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + Integer.toHexString(deflate.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    deflate.writeTo(raw);
+                    raw.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return raw.toByteArray();
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient plain = new SimpleHttpClient(server.url());
+            eventLoop.register(plain);
+            assertEquals("identity", plain.get("/gzip").get(5, TimeUnit.SECONDS).getBody());
+
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setDecompression(true);
+            eventLoop.register(client);
+            HttpResponse response = client.get("/gzip").get(5, TimeUnit.SECONDS);
+            assertArrayEquals(payload, response.getBodyBytes());
+            assertNull(response.getHeader(Header.CONTENT_ENCODING));
+
+            Path target = Files.createTempFile("decompressed", ".txt");
+            client.download("/deflate", target).get(5, TimeUnit.SECONDS);
+            assertArrayEquals(payload, Files.readAllBytes(target));
+            Files.delete(target);
+
+            plain.close();
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testDownloadCutOff() throws Exception {
+        // the server closes before the end of the body
+        try (LocalHttpServer server = new LocalHttpServer(head ->
+            "HTTP/1.1 200 OK\r\nContent-Length: 100\r\nConnection: close\r\n\r\ncut off"
+                .getBytes(StandardCharsets.US_ASCII))) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            eventLoop.register(client);
+
+            Path target = Files.createTempFile("download", ".bin");
+            try {
+                client.download("/", target).get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertFalse(Files.exists(target));
+            }
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testSlowDownload() throws Exception {
+        byte[] payload = new byte[16 * 1024];
+        Arrays.fill(payload, (byte) 'd');
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + payload.length + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            executor.execute(() -> {
+                try (Socket socket = server.accept()) {
+                    // the first body keeps coming for longer than the request timeout, the second one stalls
+                    readHead(socket);
+                    socket.getOutputStream().write(head);
+                    for (int i = 0; i < 8; i++) {
+                        Thread.sleep(100);
+                        socket.getOutputStream().write(payload, i * 2048, 2048);
+                    }
+                    readHead(socket);
+                    socket.getOutputStream().write(head);
+                    socket.getOutputStream().write(payload, 0, 2048);
+                    Thread.sleep(2000);
+                } catch (IOException | InterruptedException e) {
+                    // closed by the client
+                }
+            });
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient("http://127.0.0.1:" + server.getLocalPort());
+            eventLoop.register(client);
+            client.setRequestTimeout(300);
+
+            Path target = Files.createTempFile("download", ".bin");
+            assertEquals(200, client.download("/slow", target).get(5, TimeUnit.SECONDS).getStatus());
+            assertArrayEquals(payload, Files.readAllBytes(target));
+
+            assertTrue(isTimeout(client.download("/stalled", target)));
+            assertFalse(Files.exists(target));
+
+            client.close();
+            eventLoop.stop();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void readHead(Socket socket) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = socket.getInputStream().read();
+            if (b < 0) {
+                throw new IOException("Closed before the end of the head");
+            }
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+    }
+
+    @Test
+    public void testConnectFallback() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(head -> LocalHttpServer.response("ok"));
+             ServerSocket blackhole = new ServerSocket()) {
+            int port = URI.create(server.url()).getPort();
+            InetSocketAddress dropping = new InetSocketAddress("127.0.0.2", port);
+            blackhole.bind(dropping, 1);
+            // once the backlog is full the SYNs are dropped, connecting neither succeeds nor fails
+            List<Socket> backlog = new ArrayList<>();
+            try {
+                for (int i = 0; i < 8; i++) {
+                    Socket socket = new Socket();
+                    try {
+                        socket.connect(dropping, 200);
+                        backlog.add(socket);
+                    } catch (SocketTimeoutException e) {
+                        socket.close();
+                        break;
+                    }
+                }
+                EventLoop eventLoop = new EventLoop();
+                eventLoop.start();
+                for (long connectTimeout : new long[]{0, 2000}) {
+                    SimpleHttpClient client = new SimpleHttpClient("http://test.local:" + port);
+                    client.setResolver(host -> CompletableFuture.completedFuture(
+                        Arrays.asList(dropping.getAddress(), InetAddress.getLoopbackAddress())));
+                    client.setConnectTimeout(connectTimeout);
+                    eventLoop.register(client);
+
+                    long start = System.nanoTime();
+                    assertEquals("ok", client.get("/").get(5, TimeUnit.SECONDS).getBody());
+                    // the first address is given up long before the connect timeout of the system
+                    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+                    client.close();
+                }
+                eventLoop.stop();
+            } finally {
+                for (Socket socket : backlog) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+        eventLoop.start();
+        SimpleHttpClient client = new SimpleHttpClient("http://unknown.local");
+        client.setResolver(host -> {
+            CompletableFuture<List<InetAddress>> addresses = new CompletableFuture<>();
+            addresses.completeExceptionally(new UnknownHostException(host));
+            return addresses;
+        });
+        eventLoop.register(client);
+
+        for (int i = 0; i < 20; i++) {
+            try {
+                client.get("/").join();
+                fail("expected UnknownHostException");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof UnknownHostException);
+            }
+        }
+
+        client.close();
+        eventLoop.stop();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            requests.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return LocalHttpServer.response(request.startsWith("GET /config ") ? "config" : "other");
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setCoalescing(true);
+            eventLoop.register(client);
+
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(client.get("/config"));
+            }
+            // other headers, another request
+            CompletableFuture<HttpResponse> json = client.execute(Request.get("/config").header("Accept", "json"));
+            // a cancelled caller leaves the others waiting
+            futures.remove(0).cancel(false);
+            release.countDown();
+
+            HttpResponse first = futures.get(0).get(5, TimeUnit.SECONDS);
+            for (CompletableFuture<HttpResponse> future : futures) {
+                assertSame(first, future.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals("config", first.getBody());
+            assertEquals("config", json.get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(2, requests.get());
+            assertEquals(49, client.getCoalesced());
+
+            // nothing in flight any more
+            assertEquals("config", client.get("/config").get(5, TimeUnit.SECONDS).getBody());
+            assertEquals(3, requests.get());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testCoalescedBodyReadConcurrently() throws Exception {
+        // chunked, so the body is kept in segments merged on the first read
+        StringBuilder chunked = new StringBuilder("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            char[] chunk = new char[4096];
+            Arrays.fill(chunk, (char) ('a' + i));
+            chunked.append("1000\r\n").append(chunk).append("\r\n");
+            expected.append(chunk);
+        }
+        chunked.append("0\r\n\r\n");
+        byte[] raw = chunked.toString().getBytes(StandardCharsets.US_ASCII);
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return raw;
+        })) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setCoalescing(true);
+            eventLoop.register(client);
+
+            for (int round = 0; round < 20; round++) {
+                List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    futures.add(client.get("/shared"));
+                }
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<String>> bodies = new ArrayList<>();
+                for (int i = 0; i < futures.size(); i++) {
+                    CompletableFuture<HttpResponse> future = futures.get(i);
+                    boolean stream = i % 2 == 1;
+                    bodies.add(readers.submit(() -> {
+                        HttpResponse response = future.get(5, TimeUnit.SECONDS);
+                        start.await();
+                        if (stream) {
+                            InputStream in = response.getBodyStream();
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            byte[] buffer = new byte[8192];
+                            int n;
+                            while ((n = in.read(buffer)) > 0) {
+                                out.write(buffer, 0, n);
+                            }
+                            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+                        }
+                        return response.getBody();
+                    }));
+                }
+                futures.get(0).get(5, TimeUnit.SECONDS);
+                start.countDown();
+                for (Future<String> body : bodies) {
+                    assertEquals(expected.toString(), body.get(5, TimeUnit.SECONDS));
+                }
+            }
+
+            client.close();
+            eventLoop.stop();
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private static boolean isTimeout(CompletableFuture<HttpResponse> future) {
+        try {
+            future.join();
+            return false;
+        } catch (CompletionException e) {
+            return e.getCause() instanceof TimeoutException;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timing wheel driven by the test thread
+ *
+ * @author modraedlau
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testExpireInOrder() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 8, () -> {
+        });
+        timingWheel.setThread(Thread.currentThread());
+        List<Integer> expired = new ArrayList<>();
+        Runnable first = () -> expired.add(50);
+        Runnable second = () -> expired.add(150);
+        Runnable third = () -> expired.add(300);
+        // longer than one round of the wheel
+        timingWheel.newTimeout(third, 300, TimeUnit.MILLISECONDS);
+        timingWheel.newTimeout(first, 50, TimeUnit.MILLISECONDS);
+        timingWheel.newTimeout(second, 150, TimeUnit.MILLISECONDS);
+        assertEquals(3, timingWheel.size());
+
+        long start = System.nanoTime();
+        timingWheel.expire();
+        assertTrue(expired.isEmpty());
+        while (timingWheel.size() > 0) {
+            Thread.sleep(5);
+            timingWheel.expire();
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(290));
+        assertEquals(3, expired.size());
+        assertEquals(Integer.valueOf(50), expired.get(0));
+        assertEquals(Integer.valueOf(150), expired.get(1));
+        assertEquals(Integer.valueOf(300), expired.get(2));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, () -> {
+        });
+        timingWheel.setThread(Thread.currentThread());
+        List<Integer> expired = new ArrayList<>();
+        TimingWheel.Timeout pending = timingWheel.newTimeout(() -> expired.add(1), 50, TimeUnit.MILLISECONDS);
+        TimingWheel.Timeout inBucket = timingWheel.newTimeout(() -> expired.add(2), 100, TimeUnit.MILLISECONDS);
+        timingWheel.newTimeout(() -> expired.add(3), 100, TimeUnit.MILLISECONDS);
+        timingWheel.expire();
+
+        assertTrue(pending.cancel());
+        assertFalse(pending.cancel());
+        // cancelled by another thread, removed by the next expire
+        Thread other = new Thread(inBucket::cancel);
+        other.start();
+        other.join();
+        assertTrue(inBucket.isCancelled());
+        assertEquals(1, timingWheel.size());
+
+        Thread.sleep(150);
+        timingWheel.expire();
+        assertEquals(1, expired.size());
+        assertEquals(Integer.valueOf(3), expired.get(0));
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    public void testTaskCancelsNextInBucket() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 8, () -> {
+        });
+        timingWheel.setThread(Thread.currentThread());
+        List<Integer> expired = new ArrayList<>();
+        TimingWheel.Timeout[] second = new TimingWheel.Timeout[1];
+        // same deadline, same bucket, as the deadlines of requests enqueued together
+        timingWheel.newTimeout(() -> {
+            expired.add(1);
+            assertTrue(second[0].cancel());
+        }, 30, TimeUnit.MILLISECONDS);
+        second[0] = timingWheel.newTimeout(() -> expired.add(2), 30, TimeUnit.MILLISECONDS);
+        timingWheel.newTimeout(() -> expired.add(3), 30, TimeUnit.MILLISECONDS);
+        timingWheel.expire();
+
+        while (expired.isEmpty()) {
+            Thread.sleep(5);
+            timingWheel.expire();
+        }
+        // the last one expires with the first, not a round later
+        assertEquals(2, expired.size());
+        assertEquals(Integer.valueOf(1), expired.get(0));
+        assertEquals(Integer.valueOf(3), expired.get(1));
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    public void testWakeupWhenNoLongerEmpty() {
+        int[] wakeups = new int[1];
+        TimingWheel timingWheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 8, () -> wakeups[0]++);
+        assertEquals(0, timingWheel.nextTickMillis());
+        TimingWheel.Timeout timeout = timingWheel.newTimeout(() -> {
+        }, 1, TimeUnit.SECONDS);
+        timingWheel.newTimeout(() -> {
+        }, 1, TimeUnit.SECONDS);
+        assertEquals(1, wakeups[0]);
+        assertTrue(timingWheel.nextTickMillis() > 0);
+        timeout.cancel();
+        assertEquals(1, timingWheel.size());
+    }
+}
@@ -0,0 +1,171 @@
+package org.modraedlau.http;
+
+import org.junit.Test;
+import org.modraedlau.http.message.HttpMessage;
+import org.modraedlau.http.message.HttpResponse;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * https against local servers with a self-signed certificate
+ *
+ * @author modraedlau
+ */
+public class TlsChannelTest {
+
+    @Test
+    public void testHttps() throws Exception {
+        char[] big = new char[200 * 1024];
+        Arrays.fill(big, 'b');
+        try (LocalHttpServer server = new LocalHttpServer(request -> {
+            if (request.startsWith("GET /big ")) {
+                return LocalHttpServer.response(new String(big));
+            }
+            // gives the body back
+            return LocalHttpServer.response(request.substring(request.indexOf("\n\n") + 2));
+        }, LocalHttpServer.serverContext())) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setSslContext(LocalHttpServer.clientContext());
+            eventLoop.register(client);
+
+            // many records in one read, more than the read buffer holds
+            List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(client.get("/big"));
+            }
+            for (CompletableFuture<HttpResponse> future : futures) {
+                assertEquals(big.length, future.get(10, TimeUnit.SECONDS).getBody().length());
+            }
+
+            byte[] payload = new byte[300 * 1024];
+            Arrays.fill(payload, (byte) 'p');
+            Path file = Files.createTempFile("upload", ".bin");
+            try {
+                Files.write(file, payload);
+                HttpResponse bytes = client.execute(Request.post("/echo", RequestBody.of(payload)))
+                    .get(10, TimeUnit.SECONDS);
+                assertArrayEquals(payload, bytes.getBodyBytes());
+                // no transferTo to the socket, the file is encrypted in chunks
+                HttpResponse fromFile = client.execute(Request.put("/echo", RequestBody.ofFile(file)))
+                    .get(10, TimeUnit.SECONDS);
+                assertArrayEquals(payload, fromFile.getBodyBytes());
+            } finally {
+                Files.delete(file);
+            }
+            assertEquals(1, client.getTlsHandshakes());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testResumption() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(request -> LocalHttpServer.response("ok"),
+            LocalHttpServer.serverContext())) {
+            server.setCloseAfterResponse(true);
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setSslContext(LocalHttpServer.clientContext());
+            eventLoop.register(client);
+
+            for (int i = 0; i < 3; i++) {
+                // every request on a new connection
+                assertEquals("ok", client.get("/").get(5, TimeUnit.SECONDS).getBody());
+                long deadline = System.currentTimeMillis() + 5000;
+                while (client.isConnected() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+            assertEquals(3, server.accepted());
+            assertEquals(3, client.getTlsHandshakes());
+            // the first handshake is full, the next ones resume its session
+            assertEquals(2, client.getTlsResumed());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testUntrusted() throws Exception {
+        try (LocalHttpServer server = new LocalHttpServer(request -> LocalHttpServer.response("ok"),
+            LocalHttpServer.serverContext())) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            // the self-signed certificate is not in the default trust store
+            client.setSslContext(SSLContext.getDefault());
+            eventLoop.register(client);
+
+            try {
+                client.get("/").get(5, TimeUnit.SECONDS);
+                throw new AssertionError("untrusted server answered");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SSLException);
+            }
+            assertEquals(0, client.getTlsHandshakes());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void testAlpn() throws Exception {
+        SSLContext clientContext = LocalHttpServer.clientContext();
+        try (LocalHttp2Server server = new LocalHttp2Server(exchange ->
+            exchange.respond(200, exchange.headers.get(":scheme").getBytes(StandardCharsets.US_ASCII)),
+            LocalHttpServer.serverContext())) {
+            EventLoop eventLoop = new EventLoop();
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setSslContext(clientContext);
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            // the server selects h2
+            HttpResponse response = client.get("/").get(5, TimeUnit.SECONDS);
+            assertEquals(HttpMessage.HTTP_2_0, response.getVersion());
+            assertEquals("https", response.getBody());
+
+            client.close();
+            eventLoop.stop();
+        }
+
+        try (LocalHttpServer server = new LocalHttpServer(request -> LocalHttpServer.response("ok"),
+            LocalHttpServer.serverContext())) {
+            EventLoop eventLoop = new EventLoop(ExecutionMode.INLINE);
+            eventLoop.start();
+            SimpleHttpClient client = new SimpleHttpClient(server.url());
+            client.setSslContext(clientContext);
+            client.setHttp2(true);
+            eventLoop.register(client);
+
+            // no ALPN on the server, HTTP/1.1
+            HttpResponse response = client.get("/").get(5, TimeUnit.SECONDS);
+            assertEquals(HttpMessage.HTTP_1_1, response.getVersion());
+            assertEquals("ok", response.getBody());
+
+            client.close();
+            eventLoop.stop();
+        }
+    }
+}
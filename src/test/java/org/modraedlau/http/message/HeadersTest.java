@@ -0,0 +1,80 @@
+package org.modraedlau.http.message;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Header multimap
+ *
+ * @author modraedlau
+ */
+public class HeadersTest {
+
+    @Test
+    public void testLookup() {
+        Headers headers = new Headers();
+        headers.add("content-type", "text/plain");
+        headers.add("X-Custom", "a");
+        headers.add("Set-Cookie", "a=1");
+        headers.add("x-custom", "b");
+        headers.add("SET-COOKIE", "b=2");
+
+        // known names are interned in their usual case
+        assertSame(Header.CONTENT_TYPE, headers.name(0));
+        assertEquals("text/plain", headers.get("Content-Type"));
+        assertEquals("text/plain", headers.get("CONTENT-TYPE"));
+        assertEquals(Arrays.asList("a=1", "b=2"), headers.getAll("set-cookie"));
+        assertEquals(Arrays.asList("a", "b"), headers.getAll("X-CUSTOM"));
+        assertEquals("X-Custom", headers.name(1));
+        assertEquals(Collections.emptyList(), headers.getAll("Vary"));
+        assertNull(headers.get("Content-Length"));
+        assertFalse(headers.contains("x-other"));
+        assertEquals(5, headers.size());
+    }
+
+    @Test
+    public void testFromWire() {
+        Headers headers = new Headers();
+        for (int i = 0; i < 40; i++) {
+            byte[] line = ("x-header-" + i + ": value " + i).getBytes(StandardCharsets.ISO_8859_1);
+            int colon = line.length - ("value " + i).length() - 2;
+            headers.add(line, colon, colon + 2, line.length);
+        }
+        byte[] line = "ETAG: \"v1\"".getBytes(StandardCharsets.ISO_8859_1);
+        headers.add(line, 4, 6, line.length);
+
+        assertEquals(41, headers.size());
+        assertEquals("value 39", headers.get("X-Header-39"));
+        assertEquals("\"v1\"", headers.get("etag"));
+        assertSame("ETag", headers.name(40));
+        assertEquals("x-header-7: value 7", headers.asList().get(7).toString());
+    }
+
+    @Test
+    public void testRemove() {
+        Headers headers = new Headers();
+        headers.add(Header.CONTENT_ENCODING, "gzip");
+        headers.add(Header.SERVER, "test");
+        headers.add("content-encoding", "br");
+        headers.add("Vary", "Accept-Encoding");
+
+        assertEquals(2, headers.remove(Header.CONTENT_ENCODING));
+        assertEquals(0, headers.remove(Header.CONTENT_ENCODING));
+        assertFalse(headers.contains(Header.CONTENT_ENCODING));
+        // the index follows the fields that moved
+        assertEquals(0, headers.indexOf(Header.SERVER));
+        assertEquals(1, headers.indexOf("vary"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        assertEquals(2, headers.size());
+        assertTrue(headers.iterator().hasNext());
+    }
+}
@@ -0,0 +1,87 @@
+package org.modraedlau.http.message;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * HPACK decoder, with the examples of RFC 7541 appendix C
+ *
+ * @author modraedlau
+ */
+public class HpackDecoderTest {
+
+    @Test
+    public void testRequestsWithoutHuffman() throws ProtocolException {
+        HpackDecoder decoder = new HpackDecoder();
+        assertFields(decode(decoder, "828684410f7777772e6578616d706c652e636f6d"),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertFields(decode(decoder, "828684be58086e6f2d6361636865"),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+            "cache-control", "no-cache");
+        assertFields(decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"),
+            ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+            "custom-key", "custom-value");
+        assertEquals(3, decoder.getTableLength());
+    }
+
+    @Test
+    public void testRequestsWithHuffman() throws ProtocolException {
+        HpackDecoder decoder = new HpackDecoder();
+        assertFields(decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertFields(decode(decoder, "828684be5886a8eb10649cbf"),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+            "cache-control", "no-cache");
+        assertFields(decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"),
+            ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+            "custom-key", "custom-value");
+    }
+
+    @Test
+    public void testEviction() throws ProtocolException {
+        HpackDecoder decoder = new HpackDecoder();
+        // a size update to 64 bytes, room for one entry of 41 or 42 bytes only
+        decode(decoder, "3f2140046e616d650576616c7565");
+        assertEquals(1, decoder.getTableLength());
+        assertFields(decode(decoder, "40046e616d650673656c6c6f77be"), "name", "sellow", "name", "sellow");
+        assertEquals(1, decoder.getTableLength());
+    }
+
+    @Test
+    public void testEncoderRoundTrip() throws ProtocolException {
+        HpackEncoder encoder = new HpackEncoder();
+        String[] fields = {":method", "POST", ":path", "/upload?a=b", "content-type", "text/plain",
+            "authorization", "secret", "x-custom", "v\u00e9"};
+        ByteBuffer out = ByteBuffer.allocate(256);
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.encode(fields[i], fields[i + 1], out);
+        }
+        assertFields(new HpackDecoder().decode(out.array(), 0, out.position()), fields);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testIllegalIndex() throws ProtocolException {
+        decode(new HpackDecoder(), "be");
+    }
+
+    private static List<Header> decode(HpackDecoder decoder, String hex) throws ProtocolException {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return decoder.decode(bytes, 0, bytes.length);
+    }
+
+    private static void assertFields(List<Header> headers, String... fields) {
+        assertEquals(fields.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(fields[2 * i], headers.get(i).getName());
+            assertEquals(fields[2 * i + 1], headers.get(i).getValue());
+        }
+    }
+}
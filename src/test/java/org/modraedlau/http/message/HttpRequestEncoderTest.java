@@ -0,0 +1,56 @@
+package org.modraedlau.http.message;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Http request encoder
+ *
+ * @author modraedlau
+ */
+public class HttpRequestEncoderTest {
+
+    @Test
+    public void testEncode() {
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/more?q=1", null);
+        request.setHeader(Header.CONTENT_TYPE, "text/plain");
+        request.setHeader("X-Custom", "value");
+        assertEquals("GET /more?q=1 HTTP/1.1\r\n"
+                + "Host: www.baidu.com\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "X-Custom: value\r\n"
+                + "\r\n",
+            encode(new HttpRequestEncoder("www.baidu.com", -1), request));
+    }
+
+    @Test
+    public void testHostLine() {
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/", null);
+        assertEquals("GET / HTTP/1.1\r\nHost: localhost:8080\r\n\r\n",
+            encode(new HttpRequestEncoder("localhost", 8080), request));
+
+        request.setHeader(Header.HOST, "virtual");
+        assertEquals("GET / HTTP/1.1\r\nHost: virtual\r\n\r\n",
+            encode(new HttpRequestEncoder("localhost", 8080), request));
+    }
+
+    @Test
+    public void testNonAsciiPath() {
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/café", null);
+        assertEquals("GET /café HTTP/1.1\r\nHost: h\r\n\r\n",
+            encode(new HttpRequestEncoder("h", 80), request));
+    }
+
+    private static String encode(HttpRequestEncoder encoder, HttpRequest request) {
+        int length = encoder.encodedLength(request);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        encoder.encode(request, buffer);
+        assertEquals(length, buffer.position());
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
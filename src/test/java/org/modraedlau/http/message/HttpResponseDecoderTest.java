@@ -0,0 +1,392 @@
+package org.modraedlau.http.message;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Http response decoder
+ *
+ * @author modraedlau
+ */
+public class HttpResponseDecoderTest {
+    private static final String PIPELINED = "HTTP/1.1 200 OK\r\n"
+        + "Server: test\r\n"
+        + "Content-Length:  5 \r\n"
+        + "\r\n"
+        + "hello"
+        + "HTTP/1.1 100 Continue\r\n"
+        + "\r\n"
+        + "HTTP/1.0 404 Not Found\n"
+        + "content-length: 0\n"
+        + "\n"
+        + "HTTP/1.1 204 No Content\r\n"
+        + "\r\n";
+
+    @Test
+    public void testDecodeWhole() throws ProtocolException {
+        List<HttpResponse> responses = decode(new HttpResponseDecoder(), PIPELINED, PIPELINED.length());
+        assertPipelined(responses);
+    }
+
+    @Test
+    public void testDecodeSplitAnywhere() throws ProtocolException {
+        for (int chunk = 1; chunk < 16; chunk++) {
+            assertPipelined(decode(new HttpResponseDecoder(), PIPELINED, chunk));
+        }
+    }
+
+    @Test
+    public void testBodyUntilClose() throws ProtocolException {
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        List<HttpResponse> responses = decode(decoder, "HTTP/1.0 200 OK\r\n\r\nuntil close", 4);
+        assertTrue(responses.isEmpty());
+        HttpResponse response = decoder.decodeEnd();
+        assertEquals("until close", response.getBody());
+        assertNull(decoder.decodeEnd());
+    }
+
+    @Test
+    public void testSkipBody() throws ProtocolException {
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        AtomicInteger heads = new AtomicInteger();
+        // the first response answers a HEAD request
+        decoder.setHeadersListener(response -> {
+            if (heads.getAndIncrement() == 0) {
+                decoder.skipBody();
+            }
+        });
+        List<HttpResponse> responses = decode(decoder, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n"
+            + "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", 7);
+        assertEquals(2, responses.size());
+        assertEquals("", responses.get(0).getBody());
+        assertEquals("hello", responses.get(1).getBody());
+    }
+
+    @Test
+    public void testBinaryBody() throws Exception {
+        byte[] payload = new byte[20000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + payload.length + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+        // exact-sized body
+        HttpResponse response = decode(new HttpResponseDecoder(), concat(head, payload), 1000).get(0);
+        assertArrayEquals(payload, response.getBodyBytes());
+        assertEquals(payload.length, response.getBodyBuffer().remaining());
+
+        // segmented body of unknown length
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        decode(decoder, concat("HTTP/1.0 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII), payload), 3000);
+        response = decoder.decodeEnd();
+        assertEquals(payload.length, response.getLength());
+        byte[] streamed = new byte[payload.length];
+        DataInputStream in = new DataInputStream(response.getBodyStream());
+        in.readFully(streamed);
+        assertEquals(-1, in.read());
+        assertArrayEquals(payload, streamed);
+        assertArrayEquals(payload, response.getBodyBytes());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testLargeContentLength() throws ProtocolException {
+        // not allocated before the bytes arrive
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        assertTrue(decode(decoder, "HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n\r\nx", 64).isEmpty());
+        decoder.decodeEnd();
+    }
+
+    @Test
+    public void testBodyBeyondPreallocation() throws Exception {
+        byte[] payload = new byte[3 * 1024 * 1024 + 7];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + payload.length + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+        HttpResponse response = decode(new HttpResponseDecoder(), concat(head, payload), 16 * 1024).get(0);
+        assertEquals(payload.length, response.getLength());
+        byte[] streamed = new byte[payload.length];
+        DataInputStream in = new DataInputStream(response.getBodyStream());
+        in.readFully(streamed);
+        assertEquals(-1, in.read());
+        assertArrayEquals(payload, streamed);
+        assertArrayEquals(payload, response.getBodyBytes());
+    }
+
+    @Test
+    public void testBodyCharset() throws ProtocolException {
+        byte[] head = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=ISO-8859-1\r\nContent-Length: 3\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] body = "af\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+        HttpResponse response = decode(new HttpResponseDecoder(), concat(head, body), 7).get(0);
+        assertEquals("af\u00e9", response.getBody());
+    }
+
+    @Test
+    public void testChunked() throws ProtocolException {
+        String raw = "HTTP/1.1 200 OK\r\n"
+            + "Transfer-Encoding: gzip, chunked\r\n"
+            + "\r\n"
+            + "5;name=value\r\n"
+            + "hello\r\n"
+            + "0000C\r\n"
+            + ", chunked!\r\n\r\n"
+            + "0\r\n"
+            + "Expires: never\r\n"
+            + "\r\n"
+            + "HTTP/1.1 200 OK\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "\r\n"
+            + "0\r\n"
+            + "\r\n";
+        for (int chunk = 1; chunk < 16; chunk++) {
+            List<HttpResponse> responses = decode(new HttpResponseDecoder(), raw, chunk);
+            assertEquals(2, responses.size());
+            assertEquals("hello, chunked!\r\n", responses.get(0).getBody());
+            assertEquals(-1, responses.get(0).getContentLength());
+            assertEquals("never", responses.get(0).getTrailers().get(0).getValue());
+            assertEquals("", responses.get(1).getBody());
+            assertTrue(responses.get(1).getTrailers().isEmpty());
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testIllegalChunkSize() throws ProtocolException {
+        decode(new HttpResponseDecoder(), "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n", 64);
+    }
+
+    @Test
+    public void testRepeatedContentLength() throws ProtocolException {
+        List<HttpResponse> responses = decode(new HttpResponseDecoder(),
+            "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello", 64);
+        assertEquals(1, responses.size());
+        assertEquals("hello", responses.get(0).getBody());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testConflictingContentLength() throws ProtocolException {
+        decode(new HttpResponseDecoder(),
+            "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Length: 0\r\n\r\nhello", 64);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testContentLengthWithTransferEncoding() throws ProtocolException {
+        decode(new HttpResponseDecoder(), "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n0\r\n\r\n", 64);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testCutOff() throws ProtocolException {
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        decode(decoder, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello", 64);
+        decoder.decodeEnd();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testIllegalStatusLine() throws ProtocolException {
+        decode(new HttpResponseDecoder(), "HTTX/1.1 200 OK\r\n\r\n", 64);
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        byte[] first = text(20000, "first");
+        byte[] second = text(300, "second");
+        // a member with every optional header field, then a plain one
+        byte[] gzip = gzip(first);
+        byte[] fields = {0x1f, (byte) 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, 3,
+            2, 0, 'x', 'y', 'a', '.', 't', 'x', 't', 0, 'c', 0, 0x12, 0x34};
+        byte[] body = concat(concat(fields, Arrays.copyOfRange(gzip, 10, gzip.length)), gzip(second));
+        byte[] raw = concat(concat(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + body.length
+            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII), body), PIPELINED.getBytes(StandardCharsets.US_ASCII));
+        for (int chunk : new int[]{1, 2, 3, 7, 64, 4096, raw.length}) {
+            HttpResponseDecoder decoder = new HttpResponseDecoder();
+            decoder.setDecompression(true);
+            List<HttpResponse> responses = decode(decoder, raw, chunk);
+            assertEquals(4, responses.size());
+            assertArrayEquals(concat(first, second), responses.get(0).getBodyBytes());
+            assertNull(responses.get(0).getHeader(Header.CONTENT_ENCODING));
+            assertEquals(body.length, responses.get(0).getContentLength());
+            assertPipelined(responses.subList(1, 4));
+        }
+
+        // left as is unless enabled
+        HttpResponse response = decode(new HttpResponseDecoder(), raw, 64).get(0);
+        assertArrayEquals(body, response.getBodyBytes());
+        assertEquals("gzip", response.getHeader(Header.CONTENT_ENCODING).getValue());
+    }
+
+    @Test
+    public void testDeflateChunked() throws IOException {
+        byte[] payload = text(10000, "deflate");
+        // zlib wrapped as it should be, and raw as some servers send it
+        for (boolean nowrap : new boolean[]{false, true}) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] compressed = new byte[payload.length];
+            int length = deflater.deflate(compressed);
+            deflater.end();
+            byte[] raw = concat(concat(("HTTP/1.1 200 OK\r\nContent-Encoding: Deflate\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + Integer.toHexString(length - 5) + "\r\n").getBytes(StandardCharsets.US_ASCII),
+                Arrays.copyOf(compressed, length - 5)),
+                concat(concat("\r\n5\r\n".getBytes(StandardCharsets.US_ASCII),
+                    Arrays.copyOfRange(compressed, length - 5, length)),
+                    "\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+            for (int chunk = 1; chunk < 16; chunk += 7) {
+                HttpResponseDecoder decoder = new HttpResponseDecoder();
+                decoder.setDecompression(true);
+                List<HttpResponse> responses = decode(decoder, raw, chunk);
+                assertEquals(1, responses.size());
+                assertArrayEquals(payload, responses.get(0).getBodyBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testGzipStreamed() throws IOException {
+        byte[] payload = text(100000, "streamed");
+        byte[] body = gzip(payload);
+        byte[] raw = concat(("HTTP/1.1 200 OK\r\nContent-Encoding: x-gzip\r\nContent-Length: " + body.length
+            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII), body);
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        decoder.setDecompression(true);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        AtomicInteger segments = new AtomicInteger();
+        decoder.setHeadersListener(response -> response.setBodySink(new BodySink() {
+            @Override
+            public void open(HttpResponse response) {
+            }
+
+            @Override
+            public boolean ready() {
+                return true;
+            }
+
+            @Override
+            public void write(ByteBuffer segment) {
+                segments.incrementAndGet();
+                while (segment.hasRemaining()) {
+                    streamed.write(segment.get());
+                }
+            }
+
+            @Override
+            public void complete() {
+            }
+
+            @Override
+            public void error(Throwable e) {
+            }
+        }));
+        int chunk = 512;
+        assertEquals(1, decode(decoder, raw, chunk).size());
+        assertArrayEquals(payload, streamed.toByteArray());
+        // never more segments than reads, a sink gets what it asked for
+        assertTrue(segments.get() <= (raw.length + chunk - 1) / chunk);
+    }
+
+    @Test
+    public void testGzipCutOff() throws IOException {
+        byte[] body = gzip(text(1000, "cut off"));
+        // the framing is fine, the gzip trailer is missing
+        byte[] raw = concat(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + (body.length - 8)
+            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII), Arrays.copyOf(body, body.length - 8));
+        HttpResponseDecoder decoder = new HttpResponseDecoder();
+        decoder.setDecompression(true);
+        try {
+            decode(decoder, raw, 64);
+            throw new AssertionError("cut off body decoded");
+        } catch (ProtocolException e) {
+            // expected
+        }
+        decoder.reset();
+
+        body[body.length / 2] ^= 0x55;
+        raw = concat(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + body.length
+            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII), body);
+        try {
+            decode(decoder, raw, 64);
+            throw new AssertionError("corrupt body decoded");
+        } catch (ProtocolException e) {
+            assertFalse(e.getMessage().isEmpty());
+        }
+    }
+
+    private static void assertPipelined(List<HttpResponse> responses) {
+        assertEquals(3, responses.size());
+        assertEquals(200, responses.get(0).getStatus());
+        assertEquals("test", responses.get(0).getHeader(Header.SERVER).getValue());
+        assertEquals(5, responses.get(0).getContentLength());
+        assertEquals("hello", responses.get(0).getBody());
+        assertEquals(404, responses.get(1).getStatus());
+        assertEquals("", responses.get(1).getBody());
+        assertEquals(204, responses.get(2).getStatus());
+        for (HttpResponse response : responses) {
+            assertEquals(Decoded.END, response.getDecoded());
+        }
+    }
+
+    /**
+     * Feed the decoder in chunks of the given size, as the reads of a channel would
+     */
+    private static List<HttpResponse> decode(HttpResponseDecoder decoder, String raw, int chunk)
+        throws ProtocolException {
+        return decode(decoder, raw.getBytes(StandardCharsets.UTF_8), chunk);
+    }
+
+    private static List<HttpResponse> decode(HttpResponseDecoder decoder, byte[] bytes, int chunk)
+        throws ProtocolException {
+        List<HttpResponse> all = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunk);
+        for (int i = 0; i < bytes.length; i += chunk) {
+            buffer.clear();
+            buffer.put(bytes, i, Math.min(chunk, bytes.length - i));
+            buffer.flip();
+            all.addAll(decoder.decode(buffer));
+            assertTrue(!buffer.hasRemaining());
+        }
+        return all;
+    }
+
+    private static byte[] text(int lines, String word) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(word).append(' ').append(i).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+}